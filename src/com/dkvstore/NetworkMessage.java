@@ -48,6 +48,9 @@ public class NetworkMessage {
     public byte[] getDataBytes() {
         CRC32 crc = new CRC32();
         
+        if (mUniqueIdBytes == null) {
+            mUniqueIdBytes = mUniqueId.toByteArray();
+        }
         crc.update(mUniqueIdBytes);
         crc.update(mPayloadBytes);
         return Message.Msg.newBuilder()
@@ -130,7 +133,8 @@ public class NetworkMessage {
     
     public void setIdString(ByteString id) {
         mUniqueId = id;
-        mUniqueIdBytes = id.toByteArray();
+        // Only copied out if the message is sent, received ids are views of the receive buffer.
+        mUniqueIdBytes = null;
     }
 
     public byte[] getPayload() {
@@ -12,6 +12,14 @@ public class Protocol {
     public static final int IS_ALIVE = 0x06;
     public static final int GET_PID = 0x07;
     public static final int GET_MEMBERSHIP_COUNT = 0x08;
+    public static final int GET_STATS = 0x09;
+    public static final int MULTI_GET = 0x0A;
+    public static final int MULTI_PUT = 0x0B;
+    public static final int SCAN = 0x0C;
+    public static final int CAS = 0x0D;
+    public static final int INCREMENT = 0x0E;
+    public static final int APPEND = 0x0F;
+    public static final int GET_RING = 0x10;
 
     public static final int ERR_SUCCESS = 0x00;
     public static final int ERR_NON_EXISTENT_KEY = 0x01;
@@ -21,8 +29,22 @@ public class Protocol {
     public static final int ERR_UNRECOGNIZED_COMMAND = 0x05;
     public static final int ERR_INVALID_KEY = 0x06;
     public static final int ERR_INVALID_VAL = 0x07;
+    public static final int ERR_VERSION_MISMATCH = 0x08;
+    public static final int ERR_NOT_OWNER = 0x09;
+    // The owner applied the write, but fewer replicas than the write quorum acknowledged it.
+    public static final int ERR_UNDER_REPLICATED = 0x0A;
+
+    // Which replicas may answer a GET: only the primary, any one replica, or a majority of them,
+    // which then answer with the newest value they have.
+    public static final int CONSISTENCY_PRIMARY = 0x00;
+    public static final int CONSISTENCY_ONE = 0x01;
+    public static final int CONSISTENCY_QUORUM = 0x02;
     
     public static int REPLICATION_FACTOR = 3;
+    // How many replicas must answer a GET, and acknowledge a write, before the client is answered.
+    // The defaults only wait for the primary.
+    public static int READ_QUORUM = 1;
+    public static int WRITE_QUORUM = 1;
     
     private static final int INIT_OVERLOAD_WAITTIME = 100;
 
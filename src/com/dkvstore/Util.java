@@ -142,7 +142,8 @@ public class Util {
         
         long num = mostSignificant;
         num = num << 32;
-        num |= leastSignificant;
+        // Without the mask the int would be sign extended over the most significant half.
+        num |= leastSignificant & 0xffffffffL;
         return num;
     }
 }
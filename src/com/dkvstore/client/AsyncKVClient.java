@@ -0,0 +1,256 @@
+package com.dkvstore.client;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.dkvstore.NetworkMessage;
+import com.dkvstore.Protocol;
+import com.dkvstore.Util;
+import com.google.protobuf.ByteString;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVRequest;
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * A client that does not wait for responses, so any number of requests can be outstanding at
+ * once over its one channel. Each request returns a future, which a receive thread completes once
+ * the response with the request's message id arrives.
+ *
+ * Requests are retried like PeriodicKVClient retries them: resent with the same id after 400
+ * milliseconds, then after twice as long each time, and failed with a TimeoutException once the
+ * retries run out or the request's deadline passes, whichever comes first. A request answered with
+ * system overload is sent again with a new id after the wait time the node asks for, up to
+ * MAX_RETRY_COUNT times and as long as that is before its deadline, after which the overload is
+ * its response.
+ *
+ * Callbacks attached to the futures without an executor run on the receive thread, and should
+ * not block it.
+ */
+public class AsyncKVClient {
+    // How often outstanding requests are checked for retries and deadlines, in milliseconds.
+    private static final int TICK_INTERVAL = 20;
+
+    private static final class PendingRequest {
+        final InetSocketAddress node;
+        final KVRequest request;
+        final CompletableFuture<KVResponse> future;
+        final long deadline; // In nanoseconds.
+        NetworkMessage msg;
+        long nextSendTime; // In nanoseconds.
+        int timeout; // In milliseconds.
+        int sendCount;
+        int overloadCount;
+
+        PendingRequest(InetSocketAddress node, KVRequest request, CompletableFuture<KVResponse> future, long deadline) {
+            this.node = node;
+            this.request = request;
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+
+    private final DatagramChannel mChannel;
+    private final Inet4Address mLocalAddress = (Inet4Address) InetAddress.getLoopbackAddress();
+    private final int mLocalPort;
+    private final Map<ByteString, PendingRequest> mPending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "AsyncKVClient-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Thread mReceiveThread;
+
+    /**
+     * @throws IOException if the channel cannot be opened.
+     */
+    public AsyncKVClient() throws IOException {
+        mChannel = DatagramChannel.open();
+        mChannel.bind(null);
+        // Room for bursts of responses while the receive thread is busy.
+        mChannel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+        mLocalPort = ((InetSocketAddress) mChannel.getLocalAddress()).getPort();
+        mReceiveThread = new Thread(this::receive, "AsyncKVClient-receive");
+        mReceiveThread.setDaemon(true);
+        mReceiveThread.start();
+        mTimer.scheduleWithFixedDelay(this::checkPending, TICK_INTERVAL, TICK_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    public CompletableFuture<KVResponse> get(InetSocketAddress node, ByteString key) {
+        return send(node, KVRequest.newBuilder().setCommand(Protocol.GET).setKey(key).build());
+    }
+
+    public CompletableFuture<KVResponse> put(InetSocketAddress node, ByteString key, ByteString value, int version) {
+        return send(node, KVRequest.newBuilder().setCommand(Protocol.PUT).setKey(key).setValue(value).setVersion(version).build());
+    }
+
+    public CompletableFuture<KVResponse> remove(InetSocketAddress node, ByteString key) {
+        return send(node, KVRequest.newBuilder().setCommand(Protocol.REMOVE).setKey(key).build());
+    }
+
+    /**
+     * Send a request with no deadline other than the retries running out.
+     */
+    public CompletableFuture<KVResponse> send(InetSocketAddress node, KVRequest request) {
+        return send(node, request, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param node the node to send the request to.
+     * @param request the request.
+     * @param timeoutMs how long the request may take, in milliseconds.
+     * @return a future completed with the response, which is an overload only if the node was
+     *  still overloaded once the request could not be sent again, or with a TimeoutException if
+     *  no response arrives in time, or with an IOException if the request cannot be sent.
+     */
+    public CompletableFuture<KVResponse> send(InetSocketAddress node, KVRequest request, long timeoutMs) {
+        CompletableFuture<KVResponse> future = new CompletableFuture<>();
+        long now = System.nanoTime();
+        long deadline = timeoutMs >= TimeUnit.NANOSECONDS.toMillis(Long.MAX_VALUE - now) ? Long.MAX_VALUE
+                : now + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        PendingRequest pending = new PendingRequest(node, request, future, deadline);
+        schedule(pending, now);
+        transmit(pending, now);
+        return future;
+    }
+
+    /**
+     * @return the number of requests sent and not answered or failed yet.
+     */
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    /**
+     * Close the channel, failing the requests that are still outstanding.
+     */
+    public void close() {
+        mTimer.shutdownNow();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (PendingRequest pending : mPending.values()) {
+            pending.future.completeExceptionally(new ClosedChannelException());
+        }
+        mPending.clear();
+    }
+
+    /**
+     * Give the request a new message id and make it due at sendTime. Registered before it is
+     * sent, so a fast response always finds it.
+     */
+    private void schedule(PendingRequest pending, long sendTime) {
+        pending.nextSendTime = sendTime;
+        pending.timeout = PeriodicKVClient.INITIAL_TIMEOUT;
+        pending.sendCount = 0;
+        ByteString id;
+        do {
+            NetworkMessage msg = new NetworkMessage(Util.getUniqueId(mLocalAddress, mLocalPort));
+            msg.setPayload(pending.request.toByteArray());
+            msg.setAddressAndPort(pending.node.getAddress(), pending.node.getPort());
+            pending.msg = msg;
+            id = msg.getIdString();
+        } while (mPending.putIfAbsent(id, pending) != null);
+    }
+
+    /**
+     * Send the request, at most once at a time, and work out when to send it again.
+     */
+    private void transmit(PendingRequest pending, long now) {
+        synchronized (pending) {
+            if (pending.nextSendTime - now > 0 || pending.future.isDone()) {
+                return;
+            }
+            pending.sendCount++;
+            pending.nextSendTime = now + TimeUnit.MILLISECONDS.toNanos(pending.timeout);
+            pending.timeout *= 2;
+            try {
+                mChannel.send(ByteBuffer.wrap(pending.msg.getDataBytes()), pending.node);
+            } catch (IOException e) {
+                fail(pending, e);
+            }
+        }
+    }
+
+    private void fail(PendingRequest pending, Throwable cause) {
+        mPending.remove(pending.msg.getIdString(), pending);
+        pending.future.completeExceptionally(cause);
+    }
+
+    private void checkPending() {
+        long now = System.nanoTime();
+        Iterator<PendingRequest> it = mPending.values().iterator();
+        while (it.hasNext()) {
+            PendingRequest pending = it.next();
+            if (pending.deadline != Long.MAX_VALUE && now - pending.deadline >= 0) {
+                fail(pending, new TimeoutException("No response from " + pending.node + " before the deadline"));
+            } else if (pending.nextSendTime - now <= 0) {
+                // The first send plus MAX_RETRY_COUNT + 1 retries, as in PeriodicKVClient.
+                if (pending.sendCount > PeriodicKVClient.MAX_RETRY_COUNT + 1) {
+                    fail(pending, new TimeoutException("No response from " + pending.node));
+                } else {
+                    transmit(pending, now);
+                }
+            }
+        }
+    }
+
+    private void receive() {
+        ByteBuffer buf = ByteBuffer.allocateDirect(NetworkMessage.ID_SIZE + NetworkMessage.MAX_PAYLOAD_SIZE);
+        while (mChannel.isOpen()) {
+            try {
+                buf.clear();
+                if (mChannel.receive(buf) == null) {
+                    continue;
+                }
+                buf.flip();
+                byte[] data = new byte[buf.remaining()];
+                buf.get(data);
+                NetworkMessage reply;
+                try {
+                    reply = NetworkMessage.contructMessage(data);
+                } catch (IOException e) {
+                    // A corrupted datagram, the request is sent again if need be.
+                    continue;
+                }
+                // Null for late replies to requests that were answered or failed.
+                PendingRequest pending = mPending.remove(reply.getIdString());
+                if (pending == null) {
+                    continue;
+                }
+                KVResponse response = KVResponse.parseFrom(reply.getPayload());
+                // Some overloads last, such as a quorum that cannot be met, so they are not waited out forever.
+                if (response.getErrCode() == Protocol.ERR_SYSTEM_OVERLOAD
+                        && pending.overloadCount++ < PeriodicKVClient.MAX_RETRY_COUNT) {
+                    long sendTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(response.getOverloadWaitTime());
+                    if (pending.deadline == Long.MAX_VALUE || pending.deadline - sendTime > 0) {
+                        synchronized (pending) {
+                            schedule(pending, sendTime);
+                        }
+                        continue;
+                    }
+                }
+                pending.future.complete(response);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -30,6 +30,28 @@ public interface KVClient {
      */
     void send(NetworkMessage msg, AddressHolder fromAddress, int requestId);
     
+    /**
+     * Send a given key/value request to another host, and hand the reply to listener instead of
+     * the listener set with setResponseListener.
+     * @param msg the network message to send, contains the address to send to.
+     * @param requestId the id passed on to listener.
+     * @param listener the listener to be invoked on response received, or with a reply carrying
+     *   ERR_SYSTEM_OVERLOAD if no reply is received before the retries run out.
+     */
+    void send(NetworkMessage msg, int requestId, OnResponseReceivedListener listener);
+    
+    /**
+     * Send an idempotent request, and a copy of it to another node that can answer it too should
+     * the first node take longer than it usually does, as far as the hedge budget allows. The
+     * first reply is handed to listener, and the other request is not retried anymore.
+     * @param msg the network message to send, contains the address to send to.
+     * @param hedgeMsg the copy, with a message id of its own and the address of the other node.
+     * @param requestId the id passed on to listener.
+     * @param listener the listener to be invoked with the first reply, or with a reply carrying
+     *   ERR_SYSTEM_OVERLOAD if neither node replies before the retries run out.
+     */
+    void sendHedged(NetworkMessage msg, NetworkMessage hedgeMsg, int requestId, OnResponseReceivedListener listener);
+    
     /**
      * Sets the callback listener for when the response is received, optional.
      * @param listener the listener to be invoked on response received.
@@ -0,0 +1,87 @@
+package com.dkvstore.client;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The round trip times of the peers this node sends requests to, and how many requests each has
+ * yet to answer, as seen by PeriodicKVClient. Used to pick between nodes that can serve the same
+ * request, and to decide when a request has taken long enough to hedge.
+ */
+public final class PeerStats {
+    public static final class Peer {
+        // The weight of a new sample in the smoothed round trip time, as in TCP.
+        private static final int SMOOTHING_SHIFT = 3;
+        // The percentile is taken over this many of the latest round trip times, once there are
+        // as many, and worked out again after every RTT_PERCENTILE_INTERVAL new ones.
+        private static final int RTT_SAMPLE_COUNT = 128;
+        private static final int RTT_PERCENTILE_INTERVAL = 16;
+        private static final int RTT_PERCENTILE = 95;
+
+        private final AtomicInteger mOutstanding = new AtomicInteger();
+        // In nanoseconds, guarded by this.
+        private long mSmoothedRtt = -1;
+        private final long[] mRttSamples = new long[RTT_SAMPLE_COUNT];
+        private long mRttSampleCount;
+        private long mRttPercentile = -1;
+
+        private Peer() {
+        }
+
+        /**
+         * @return the smoothed round trip time in nanoseconds, -1 if no request has been answered yet.
+         */
+        public synchronized long getSmoothedRtt() {
+            return mSmoothedRtt;
+        }
+
+        /**
+         * @return the 95th percentile of the latest round trip times in nanoseconds, -1 if too
+         *  few requests have been answered yet.
+         */
+        public synchronized long getRttPercentile() {
+            return mRttPercentile;
+        }
+
+        /**
+         * @return the number of requests sent to the peer that are not answered or failed yet.
+         */
+        public int getOutstanding() {
+            return mOutstanding.get();
+        }
+
+        synchronized void addRtt(long rtt) {
+            mSmoothedRtt = mSmoothedRtt < 0 ? rtt : mSmoothedRtt + ((rtt - mSmoothedRtt) >> SMOOTHING_SHIFT);
+            mRttSamples[(int) (mRttSampleCount++ % RTT_SAMPLE_COUNT)] = rtt;
+            if (mRttSampleCount >= RTT_SAMPLE_COUNT && mRttSampleCount % RTT_PERCENTILE_INTERVAL == 0) {
+                long[] sorted = mRttSamples.clone();
+                Arrays.sort(sorted);
+                mRttPercentile = sorted[RTT_SAMPLE_COUNT * RTT_PERCENTILE / 100];
+            }
+        }
+
+        void onSent() {
+            mOutstanding.incrementAndGet();
+        }
+
+        void onDone() {
+            mOutstanding.decrementAndGet();
+        }
+    }
+
+    private static final Map<InetSocketAddress, Peer> mPeers = new ConcurrentHashMap<>();
+
+    private PeerStats() {
+    }
+
+    /**
+     * @return the peer at the address and port, which is never null.
+     */
+    public static Peer get(InetAddress address, int port) {
+        return mPeers.computeIfAbsent(new InetSocketAddress(address, port), addr -> new Peer());
+    }
+}
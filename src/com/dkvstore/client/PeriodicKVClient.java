@@ -5,6 +5,7 @@ import com.dkvstore.Protocol;
 import com.dkvstore.Util;
 import com.dkvstore.server.MessageCache;
 import com.dkvstore.server.ReactorServer;
+import com.dkvstore.server.Stats;
 import com.dkvstore.server.WriteEventHandler;
 import com.dkvstore.server.distribution.RouteStrategy.AddressHolder;
 import com.google.protobuf.ByteString;
@@ -21,6 +22,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * This class aims to provide (more) reliable transmission using
@@ -29,9 +32,22 @@ import java.util.concurrent.TimeUnit;
  *
  */
 public class PeriodicKVClient implements KVClient {
-    private static final int INITIAL_TIMEOUT = 400; // In milliseconds.
+    // The retry rules of every client: the timeout doubles on each retry.
+    static final int INITIAL_TIMEOUT = 400; // In milliseconds.
     private static final int PERIODIC_TASK_INTERVAL = INITIAL_TIMEOUT; // In milliseconds.
-    private static final int MAX_RETRY_COUNT = 3;
+    static final int MAX_RETRY_COUNT = 3;
+    // How many hedges may be sent, as a percentage of the requests that could be hedged, 0 for none.
+    public static int HEDGE_BUDGET_PERCENT = 5;
+    // The most hedges the budget saves up while requests are answered in time.
+    private static final int HEDGE_BUDGET_BURST = 100;
+    // No request is hedged sooner than this, in nanoseconds, so scheduling jitter on a fast
+    // node does not use up the budget a stalled one needs.
+    private static final long HEDGE_MIN_DELAY = TimeUnit.MILLISECONDS.toNanos(2);
+    // The hedges that may be sent, in hundredths of a hedge.
+    private static final AtomicLong mHedgeBudget = new AtomicLong();
+    private static final LongAdder mHedgesSent = new LongAdder();
+    private static final LongAdder mHedgesWon = new LongAdder();
+    private static final LongAdder mHedgesOverBudget = new LongAdder();
     private static final byte[] FAILED_BYTES = KVResponse.newBuilder()
             .setErrCode(Protocol.ERR_SYSTEM_OVERLOAD)
             .build()
@@ -43,6 +59,9 @@ public class PeriodicKVClient implements KVClient {
         private int timer; // Time in milliseconds.
         private int retryCounter;
         private int requestId = -1;
+        private OnResponseReceivedListener listener;
+        private PeerStats.Peer peer;
+        private long sentTime; // In nanoseconds.
         
         private RequestBundle(NetworkMessage msg, AddressHolder fromAddress) {
             this.msg = msg;
@@ -58,6 +77,11 @@ public class PeriodicKVClient implements KVClient {
             this.retryCounter = 0;
             this.requestId = requestId;
         }
+        
+        private RequestBundle(NetworkMessage msg, OnResponseReceivedListener listener, int requestId) {
+            this(msg, (AddressHolder) null, requestId);
+            this.listener = listener;
+        }
     }
     
     private Map<ByteString, RequestBundle> mRequestMap;
@@ -76,6 +100,9 @@ public class PeriodicKVClient implements KVClient {
         mChannel = channel;
         mMessageCache = MessageCache.getInstance();
         mRequestMap = new ConcurrentHashMap<>();
+        Stats.register("hedges_sent", mHedgesSent::sum);
+        Stats.register("hedges_won", mHedgesWon::sum);
+        Stats.register("hedges_over_budget", mHedgesOverBudget::sum);
     }
     
     public DatagramChannel getChannel() {
@@ -92,6 +119,111 @@ public class PeriodicKVClient implements KVClient {
         send(new RequestBundle(msg, fromAddress, requestId));
     }
     
+    @Override
+    public void send(NetworkMessage msg, int requestId, OnResponseReceivedListener listener) {
+        send(new RequestBundle(msg, listener, requestId));
+    }
+    
+    @Override
+    public void sendHedged(NetworkMessage msg, NetworkMessage hedgeMsg, int requestId, OnResponseReceivedListener listener) {
+        HedgedRequest hedged = new HedgedRequest(hedgeMsg, requestId, listener);
+        hedged.mPrimary = new RequestBundle(msg, hedged, HedgedRequest.PRIMARY);
+        send(hedged.mPrimary);
+        if (HEDGE_BUDGET_PERCENT <= 0) {
+            return;
+        }
+        mHedgeBudget.accumulateAndGet(HEDGE_BUDGET_PERCENT, (budget, add) -> Math.min(budget + add, HEDGE_BUDGET_BURST * 100L));
+        // Hedged once the request takes longer than 95% of the node's recent replies did.
+        long delay = hedged.mPrimary.peer.getRttPercentile();
+        if (delay >= 0) {
+            Util.scheduler.schedule(hedged::hedge, Math.max(delay, HEDGE_MIN_DELAY), TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    private static boolean takeHedgeFromBudget() {
+        while (true) {
+            long budget = mHedgeBudget.get();
+            if (budget < 100) {
+                return false;
+            }
+            if (mHedgeBudget.compareAndSet(budget, budget - 100)) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * A hedged request and its copy, which hands the first reply to the request's listener. A
+     * failed reply is only handed on if the other request has failed too.
+     */
+    private class HedgedRequest implements OnResponseReceivedListener {
+        private static final int PRIMARY = 0;
+        private static final int HEDGE = 1;
+        
+        private final NetworkMessage mHedgeMsg;
+        private final int mRequestId;
+        private final OnResponseReceivedListener mListener;
+        private RequestBundle mPrimary;
+        // Guarded by this.
+        private RequestBundle mHedge;
+        private boolean mAnswered;
+        
+        private HedgedRequest(NetworkMessage hedgeMsg, int requestId, OnResponseReceivedListener listener) {
+            mHedgeMsg = hedgeMsg;
+            mRequestId = requestId;
+            mListener = listener;
+        }
+        
+        private void hedge() {
+            RequestBundle hedge;
+            synchronized (this) {
+                // Unless the request was answered or failed in the meantime.
+                if (mAnswered || !mRequestMap.containsKey(mPrimary.msg.getIdString())) {
+                    return;
+                }
+                if (!takeHedgeFromBudget()) {
+                    mHedgesOverBudget.increment();
+                    return;
+                }
+                hedge = mHedge = new RequestBundle(mHedgeMsg, this, HEDGE);
+            }
+            mHedgesSent.increment();
+            send(hedge);
+        }
+        
+        @Override
+        public void onResponseReceived(int requestId, NetworkMessage msg) {
+            RequestBundle other;
+            synchronized (this) {
+                if (mAnswered) {
+                    return;
+                }
+                other = requestId == PRIMARY ? mHedge : mPrimary;
+                // Bundles leave the request map before their listener is called, so of two
+                // failures the later one is handed on.
+                if (other != null && mRequestMap.containsKey(other.msg.getIdString()) && isFailed(msg)) {
+                    return;
+                }
+                mAnswered = true;
+            }
+            if (other != null && mRequestMap.remove(other.msg.getIdString(), other)) {
+                other.peer.onDone();
+            }
+            if (requestId == HEDGE) {
+                mHedgesWon.increment();
+            }
+            mListener.onResponseReceived(mRequestId, msg);
+        }
+        
+        private boolean isFailed(NetworkMessage msg) {
+            try {
+                return KVResponse.parseFrom(msg.getPayload()).getErrCode() == Protocol.ERR_SYSTEM_OVERLOAD;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+    }
+    
     private void checkPeriodicTask() {
         synchronized(PeriodicKVClient.this) {
             if (mTimerTaskEnded) {
@@ -112,6 +244,9 @@ public class PeriodicKVClient implements KVClient {
     
     private void send(RequestBundle requestBundle) {
         try {
+            requestBundle.peer = PeerStats.get(requestBundle.msg.getAddress(), requestBundle.msg.getPort());
+            requestBundle.peer.onSent();
+            requestBundle.sentTime = System.nanoTime();
             mRequestMap.put(requestBundle.msg.getIdString(), requestBundle);
             checkPeriodicTask();
             sendPacket(requestBundle.msg);
@@ -137,11 +272,18 @@ public class PeriodicKVClient implements KVClient {
                 // If requestBundle == null then that means we sent multiple requests due to timeout
                 // but we already processed and sent the reply
                 if (requestBundle != null) {
+                    if (requestBundle.retryCounter == 0) {
+                        // Only replies to a request sent once tell the round trip time.
+                        requestBundle.peer.addRtt(System.nanoTime() - requestBundle.sentTime);
+                    }
+                    requestBundle.peer.onDone();
                     if (requestBundle.fromAddress != null) {
                         mMessageCache.put(replyMessage.getIdString(),
                                           ByteString.copyFrom(replyMessage.getDataBytes()), 0, 0);
                     }
-                    if (mResponseListener != null) {
+                    if (requestBundle.listener != null) {
+                        requestBundle.listener.onResponseReceived(requestBundle.requestId, replyMessage);
+                    } else if (mResponseListener != null) {
                         if (requestBundle.requestId >= 0) {
                             mResponseListener.onResponseReceived(requestBundle.requestId, replyMessage);
                         }
@@ -182,7 +324,9 @@ public class PeriodicKVClient implements KVClient {
                                 e.printStackTrace();
                             }
                         }
-                        else {
+                        else if (mRequestMap.remove(entry.getKey(), bundle)) {
+                            // Unless the reply arrived in the meantime.
+                            bundle.peer.onDone();
                             if (bundle.fromAddress != null) {
                                 bundle.msg.setPayload(FAILED_BYTES);
                                 bundle.msg.setAddressAndPort(bundle.fromAddress.address,
@@ -190,8 +334,10 @@ public class PeriodicKVClient implements KVClient {
                                 mMessageCache.put(bundle.msg.getIdString(),
                                         ByteString.copyFrom(bundle.msg.getDataBytes()), 0, 0);
                                 sendPacket(bundle.msg);
+                            } else if (bundle.listener != null) {
+                                bundle.msg.setPayload(FAILED_BYTES);
+                                bundle.listener.onResponseReceived(bundle.requestId, bundle.msg);
                             }
-                            it.remove();
                         }
                     }
                     else {
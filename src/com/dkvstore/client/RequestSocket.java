@@ -0,0 +1,100 @@
+package com.dkvstore.client;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+
+import com.dkvstore.NetworkMessage;
+import com.dkvstore.Protocol;
+import com.dkvstore.Util;
+import com.google.protobuf.ByteString;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVRequest;
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * A blocking socket for the application clients, which sends one request at a time and waits for
+ * its response, resending it with the same id on timeouts, so nodes answer it at most once, and
+ * with a new id after waiting out an overload. Both are resent at most MAX_RETRY_COUNT times.
+ */
+class RequestSocket {
+    private final DatagramSocket mSocket;
+    private final byte[] mReceiveBuffer = NetworkMessage.getMaxDataBuffer();
+
+    RequestSocket() throws IOException {
+        mSocket = new DatagramSocket();
+    }
+
+    /**
+     * @return the response, an overload only if the node was still overloaded after the last resend.
+     * @throws IOException if the node does not answer.
+     */
+    KVResponse call(InetSocketAddress node, KVRequest request) throws IOException {
+        NetworkMessage msg = newMessage(request);
+        int timeout = PeriodicKVClient.INITIAL_TIMEOUT;
+        int overloads = 0;
+        for (int retry = 0; retry <= PeriodicKVClient.MAX_RETRY_COUNT; ) {
+            byte[] dataBytes = msg.getDataBytes();
+            mSocket.send(new DatagramPacket(dataBytes, dataBytes.length, node));
+            KVResponse response;
+            try {
+                response = receive(msg.getIdString(), timeout);
+            } catch (SocketTimeoutException e) {
+                retry++;
+                timeout *= 2;
+                continue;
+            }
+            // Some overloads last, such as a quorum that cannot be met, so they are not waited out forever.
+            if (response.getErrCode() != Protocol.ERR_SYSTEM_OVERLOAD || overloads++ == PeriodicKVClient.MAX_RETRY_COUNT) {
+                return response;
+            }
+            try {
+                Thread.sleep(response.getOverloadWaitTime());
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            msg = newMessage(request);
+        }
+        throw new IOException("No response from " + node);
+    }
+
+    void close() {
+        mSocket.close();
+    }
+
+    private KVResponse receive(ByteString id, int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true) {
+            int remaining = (int) (deadline - System.currentTimeMillis());
+            if (remaining <= 0) {
+                throw new SocketTimeoutException();
+            }
+            mSocket.setSoTimeout(remaining);
+            DatagramPacket packet = new DatagramPacket(mReceiveBuffer, mReceiveBuffer.length);
+            mSocket.receive(packet);
+            NetworkMessage reply;
+            try {
+                byte[] data = new byte[packet.getLength()];
+                System.arraycopy(mReceiveBuffer, 0, data, 0, data.length);
+                reply = NetworkMessage.contructMessage(data);
+            } catch (IOException e) {
+                // A corrupted datagram, wait for the retransmission.
+                continue;
+            }
+            // Late replies to earlier requests are dropped.
+            if (reply.getIdString().equals(id)) {
+                return KVResponse.parseFrom(reply.getPayload());
+            }
+        }
+    }
+
+    private NetworkMessage newMessage(KVRequest request) {
+        NetworkMessage msg = new NetworkMessage(Util.getUniqueId((Inet4Address) InetAddress.getLoopbackAddress(), mSocket.getLocalPort()));
+        msg.setPayload(request.toByteArray());
+        return msg;
+    }
+}
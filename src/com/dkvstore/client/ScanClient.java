@@ -0,0 +1,106 @@
+package com.dkvstore.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.dkvstore.Protocol;
+import com.dkvstore.Util;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.VirtualNode;
+import com.google.protobuf.ByteString;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVBatch;
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVEntry;
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVRequest;
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * Scans every key in the cluster with SCAN. The nodes are visited in the order their virtual nodes
+ * come up on the hash ring, and each node is asked for pages until its cursor runs out. Every node
+ * only returns the partitions it owns as primary, so each key is returned once as long as the ring
+ * does not change during the scan.
+ *
+ * A blocking client with its own socket, for applications rather than for the servers.
+ */
+public class ScanClient {
+    public interface EntryConsumer {
+        /**
+         * @param key a key.
+         * @param value the key's value.
+         * @param version the key's version.
+         */
+        void accept(ByteString key, ByteString value, int version);
+    }
+
+    private final RequestSocket mSocket;
+    private final List<InetSocketAddress> mNodes = new ArrayList<>();
+
+    /**
+     * @param nodes the nodes of the cluster, each as hostname:port like in the node list file.
+     * @param numVNodes the number of virtual nodes per node, the same as the servers'.
+     * @throws IOException if the socket cannot be created or a hostname cannot be resolved.
+     */
+    public ScanClient(List<String> nodes, int numVNodes) throws IOException {
+        mSocket = new RequestSocket();
+        // Order the nodes by their first virtual node on the ring, without changing the ring of
+        // the HashEntity instance, which servers use.
+        HashEntity hashEntity = HashEntity.getInstance();
+        Map<Long, InetSocketAddress> ring = new TreeMap<>();
+        for (String node : nodes) {
+            String[] hostAndPort = node.split(":");
+            String hostname = hostAndPort[0].equals("localhost") ? "127.0.0.1" : hostAndPort[0];
+            int port = Integer.parseInt(hostAndPort[1]);
+            InetSocketAddress addr = new InetSocketAddress(InetAddress.getByName(hostname), port);
+            byte[] pNode = Util.concatHostnameAndPort(hostname, port).toByteArray();
+            for (int i = 0; i < numVNodes; i++) {
+                ring.put(hashEntity.hash(VirtualNode.getKey(pNode, i)), addr);
+            }
+        }
+        for (InetSocketAddress addr : ring.values()) {
+            if (!mNodes.contains(addr)) {
+                mNodes.add(addr);
+            }
+        }
+    }
+
+    /**
+     * Pass every key in the cluster to the consumer.
+     * @throws IOException if a node does not answer.
+     */
+    public void scan(EntryConsumer consumer) throws IOException {
+        for (InetSocketAddress node : mNodes) {
+            scanNode(node, consumer);
+        }
+    }
+
+    /**
+     * Pass every key that a node owns as primary to the consumer.
+     * @throws IOException if the node does not answer.
+     */
+    public void scanNode(InetSocketAddress node, EntryConsumer consumer) throws IOException {
+        ByteString cursor = ByteString.EMPTY;
+        do {
+            KVResponse response = mSocket.call(node, KVRequest.newBuilder()
+                    .setCommand(Protocol.SCAN)
+                    .setCursor(cursor)
+                    .build());
+            if (response.getErrCode() != Protocol.ERR_SUCCESS) {
+                throw new IOException("SCAN failed with error " + response.getErrCode());
+            }
+            KVBatch batch = KVBatch.parseFrom(response.getValue());
+            for (KVEntry entry : batch.getEntriesList()) {
+                consumer.accept(entry.getKey(), entry.getValue(), entry.getVersion());
+            }
+            cursor = batch.getCursor();
+        } while (!cursor.isEmpty());
+    }
+
+    public void close() {
+        mSocket.close();
+    }
+}
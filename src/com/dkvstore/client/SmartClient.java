@@ -0,0 +1,159 @@
+package com.dkvstore.client;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.dkvstore.Protocol;
+import com.dkvstore.server.distribution.HashEntity;
+import com.google.protobuf.ByteString;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVRequest;
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVRing;
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVRingNode;
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * Sends requests straight to the node that owns their key, rather than to any node, which would
+ * route them to the owner for another hop. The client keeps a copy of the ring, as returned by
+ * GET_RING, and hashes keys the same way the nodes do. Its requests carry the epoch of that ring:
+ * a node that does not own a key answers them with not owner instead of routing them, and the
+ * client then gets the ring from that node and sends the request again.
+ *
+ * A blocking client with its own socket, for applications rather than for the servers. Not
+ * thread safe, each thread should have a client of its own.
+ */
+public class SmartClient {
+    // How many times a request is sent again after being redirected or going unanswered.
+    private static final int MAX_REDIRECT_COUNT = 3;
+
+    private final RequestSocket mSocket;
+    private final List<InetSocketAddress> mSeeds = new ArrayList<>();
+    // The address of each virtual node, by token.
+    private TreeMap<Long, InetSocketAddress> mRing = new TreeMap<>();
+    private long mRingEpoch;
+
+    /**
+     * @param nodes nodes to get the ring from, each as hostname:port like in the node list file.
+     * @throws IOException if the socket cannot be created, a hostname cannot be resolved, or no
+     *  node returns the ring.
+     */
+    public SmartClient(List<String> nodes) throws IOException {
+        mSocket = new RequestSocket();
+        for (String node : nodes) {
+            String[] hostAndPort = node.split(":");
+            mSeeds.add(new InetSocketAddress(InetAddress.getByName(hostAndPort[0]), Integer.parseInt(hostAndPort[1])));
+        }
+        refreshRing(null, null);
+    }
+
+    public KVResponse get(ByteString key) throws IOException {
+        return send(KVRequest.newBuilder().setCommand(Protocol.GET).setKey(key));
+    }
+
+    public KVResponse put(ByteString key, ByteString value, int version) throws IOException {
+        return send(KVRequest.newBuilder().setCommand(Protocol.PUT).setKey(key).setValue(value).setVersion(version));
+    }
+
+    public KVResponse remove(ByteString key) throws IOException {
+        return send(KVRequest.newBuilder().setCommand(Protocol.REMOVE).setKey(key));
+    }
+
+    /**
+     * Send a request for a key, such as a CAS or an INCREMENT, to the key's owner.
+     * @param request a request with a key, its ring epoch is set by the client.
+     * @return the owner's response, not owner if the ring kept changing.
+     * @throws IOException if the owner and the nodes asked for the ring do not answer.
+     */
+    public KVResponse send(KVRequest.Builder request) throws IOException {
+        ByteString key = request.getKey();
+        for (int redirects = 0; ; redirects++) {
+            InetSocketAddress owner = getOwner(key);
+            KVResponse response;
+            try {
+                response = mSocket.call(owner, request.setRingEpoch(mRingEpoch).build());
+            } catch (IOException e) {
+                if (redirects == MAX_REDIRECT_COUNT) {
+                    throw e;
+                }
+                // The owner may have left, ask another node.
+                refreshRing(null, owner);
+                continue;
+            }
+            if (response.getErrCode() != Protocol.ERR_NOT_OWNER || redirects == MAX_REDIRECT_COUNT) {
+                return response;
+            }
+            refreshRing(owner, null);
+        }
+    }
+
+    /**
+     * @return the epoch of the ring the client has, as returned by GET_RING.
+     */
+    public long getRingEpoch() {
+        return mRingEpoch;
+    }
+
+    public void close() {
+        mSocket.close();
+    }
+
+    private InetSocketAddress getOwner(ByteString key) {
+        // The first virtual node from the key's hash on, as in HashEntity.getKVNode.
+        Map.Entry<Long, InetSocketAddress> vnode = mRing.ceilingEntry(HashEntity.getInstance().hash(key));
+        return vnode != null ? vnode.getValue() : mRing.firstEntry().getValue();
+    }
+
+    /**
+     * Get the ring from the first node that answers.
+     * @param first the node to ask first, null to start with the seeds.
+     * @param skipped a node not to ask, null to ask any.
+     * @throws IOException if no node answers.
+     */
+    private void refreshRing(InetSocketAddress first, InetSocketAddress skipped) throws IOException {
+        List<InetSocketAddress> candidates = new ArrayList<>();
+        if (first != null) {
+            candidates.add(first);
+        }
+        candidates.addAll(mSeeds);
+        for (InetSocketAddress node : mRing.values()) {
+            if (!candidates.contains(node)) {
+                candidates.add(node);
+            }
+        }
+        KVRequest request = KVRequest.newBuilder().setCommand(Protocol.GET_RING).build();
+        for (InetSocketAddress node : candidates) {
+            if (node.equals(skipped)) {
+                continue;
+            }
+            KVResponse response;
+            try {
+                response = mSocket.call(node, request);
+            } catch (IOException e) {
+                continue;
+            }
+            if (response.getErrCode() != Protocol.ERR_SUCCESS) {
+                continue;
+            }
+            KVRing ring = KVRing.parseFrom(response.getValue());
+            TreeMap<Long, InetSocketAddress> tokens = new TreeMap<>();
+            for (KVRingNode ringNode : ring.getNodesList()) {
+                InetSocketAddress addr = new InetSocketAddress(InetAddress.getByName(ringNode.getAddress()), ringNode.getPort());
+                for (long token : ringNode.getTokensList()) {
+                    tokens.put(token, addr);
+                }
+            }
+            if (tokens.isEmpty()) {
+                continue;
+            }
+            mRing = tokens;
+            mRingEpoch = ring.getEpoch();
+            return;
+        }
+        throw new IOException("No node returned the ring");
+    }
+}
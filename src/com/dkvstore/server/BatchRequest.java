@@ -0,0 +1,250 @@
+package com.dkvstore.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dkvstore.NetworkMessage;
+import com.dkvstore.Protocol;
+import com.dkvstore.Util;
+import com.dkvstore.client.KVClient;
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.dkvstore.server.distribution.DirectRoute;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.RouteStrategy.AddressHolder;
+import com.dkvstore.server.distribution.VirtualNode;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVBatch;
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVEntry;
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVRequest;
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * A MULTI_GET or MULTI_PUT being served. The keys are split by the node that owns them: keys this
+ * node owns are served in place, the others are sent on as one sub-batch per owner, and once every
+ * owner has answered the client gets a single response, with a result per key. Sub-batches are
+ * marked with is_replica and never split again: if the owner's view of the ring differs from this
+ * node's, the keys it does not own get system overload, to be asked for again once the views
+ * agree, rather than being sent on, possibly back here.
+ *
+ * The response value is a KVBatch with one entry per request entry, in the same order. Results
+ * that do not fit into the response datagram get ERR_SYSTEM_OVERLOAD, to be asked for again.
+ */
+final class BatchRequest implements KVClient.OnResponseReceivedListener {
+    // The response's error code and the tag and length of its value.
+    private static final int SIZE_RESPONSE_OVERHEAD = 8;
+    // The most an entry with only an error code takes up in a KVBatch.
+    private static final int SIZE_ERROR_ENTRY = 4;
+
+    private static final KeyValueStore mKeyValStore = KeyValueStore.getInstance();
+    private static final HashEntity mHashEntity = HashEntity.getInstance();
+
+    private final DatagramChannel mChannel;
+    private final ByteString mId;
+    private final InetSocketAddress mAddr;
+    private final KVRequest.Builder mRequest;
+    private final KVEntry.Builder[] mResults;
+    // The request entry indices of each sub-batch, by request id.
+    private int[][] mSubBatches;
+    // Sub-batches without an answer, plus one while the batch is being split.
+    private final AtomicInteger mPending = new AtomicInteger(1);
+
+    /**
+     * @param channel the channel to reply on.
+     * @param id the message id, kept until the batch is answered.
+     * @param addr the address to reply to.
+     * @param request the request, only used until serve returns.
+     */
+    BatchRequest(DatagramChannel channel, ByteString id, InetSocketAddress addr, KVRequest.Builder request) {
+        mChannel = channel;
+        mId = id;
+        mAddr = addr;
+        mRequest = request;
+        mResults = new KVEntry.Builder[request.getEntriesCount()];
+    }
+
+    /**
+     * Serve the keys this node owns and send the rest on to their owners. The reply is sent once
+     * the last owner answers, or right away if there are none.
+     */
+    void serve() {
+        boolean isPut = mRequest.getCommand() == Protocol.MULTI_PUT;
+        int selfNodeId = DirectRoute.getInstance().getSelfNodeId();
+        MigrateKVHandler migrateKVHandler = MigrateKVHandler.getInstance();
+        Map<Integer, List<Integer>> remoteEntries = new LinkedHashMap<>();
+        for (int i = 0; i < mResults.length; i++) {
+            KVEntry entry = mRequest.getEntries(i);
+            ByteString key = entry.getKey();
+            mResults[i] = KVEntry.newBuilder();
+            if (key.isEmpty() || key.size() > Protocol.SIZE_MAX_KEY_LENGTH) {
+                mResults[i].setErrCode(Protocol.ERR_INVALID_KEY);
+                continue;
+            }
+            if (isPut ? entry.getValue().size() > Protocol.SIZE_MAX_VAL_LENGTH || entry.getTtlMs() < 0
+                    : !entry.getValue().isEmpty()) {
+                mResults[i].setErrCode(Protocol.ERR_INVALID_VAL);
+                continue;
+            }
+            VirtualNode vnode = mHashEntity.getKVNode(key);
+            int nodeId = vnode.getPNodeId();
+            if (nodeId == selfNodeId) {
+                if (isPut) {
+                    put(entry, vnode, mResults[i]);
+                } else {
+                    get(key, mResults[i]);
+                }
+            } else if (mRequest.getIsReplica() || (!isPut && migrateKVHandler.isMigrating(nodeId))) {
+                mResults[i].setErrCode(Protocol.ERR_SYSTEM_OVERLOAD);
+            } else {
+                remoteEntries.computeIfAbsent(nodeId, id -> new ArrayList<>()).add(i);
+            }
+        }
+
+        mSubBatches = new int[remoteEntries.size()][];
+        int requestId = 0;
+        for (Map.Entry<Integer, List<Integer>> remote : remoteEntries.entrySet()) {
+            List<Integer> indices = remote.getValue();
+            mSubBatches[requestId] = new int[indices.size()];
+            AddressHolder routedNode = DirectRoute.getInstance().getRoute(remote.getKey());
+            if (routedNode == null) {
+                System.out.println(String.format("[DEBUG]: Unable to route to nodeId %d", remote.getKey()));
+                for (int i : indices) {
+                    mResults[i].setErrCode(Protocol.ERR_SYSTEM_OVERLOAD);
+                }
+                continue;
+            }
+            // The entries are views of the receive buffer, the sub-batch is serialized before the task is done with it.
+            KVRequest.Builder subBatch = KVRequest.newBuilder()
+                    .setCommand(mRequest.getCommand())
+                    .setIsReplica(true);
+            for (int k = 0; k < indices.size(); k++) {
+                mSubBatches[requestId][k] = indices.get(k);
+                subBatch.addEntries(mRequest.getEntries(indices.get(k)));
+            }
+            NetworkMessage message = new NetworkMessage(Util.getUniqueId(ReactorServer.KEY_VALUE_PORT));
+            message.setPayload(subBatch.build().toByteArray());
+            message.setAddressAndPort(routedNode.address, routedNode.port);
+            mPending.incrementAndGet();
+            ReactorServer.getInstance().getPrimaryKVClient().send(message, requestId++, this);
+        }
+        complete();
+    }
+
+    @Override
+    public void onResponseReceived(int requestId, NetworkMessage msg) {
+        int[] indices = mSubBatches[requestId];
+        int errCode = Protocol.ERR_SUCCESS;
+        try {
+            KVResponse response = KVResponse.parseFrom(msg.getPayload());
+            errCode = response.getErrCode();
+            if (errCode == Protocol.ERR_SUCCESS) {
+                KVBatch batch = KVBatch.parseFrom(response.getValue());
+                for (int k = 0; k < indices.length; k++) {
+                    if (k < batch.getEntriesCount()) {
+                        mResults[indices[k]].mergeFrom(batch.getEntries(k));
+                    } else {
+                        mResults[indices[k]].setErrCode(Protocol.ERR_INTERNAL_KVSTORE_FAILURE);
+                    }
+                }
+            }
+        } catch (InvalidProtocolBufferException e) {
+            errCode = Protocol.ERR_INTERNAL_KVSTORE_FAILURE;
+        }
+        if (errCode != Protocol.ERR_SUCCESS) {
+            for (int i : indices) {
+                mResults[i].setErrCode(errCode);
+            }
+        }
+        complete();
+    }
+
+    private void get(ByteString key, KVEntry.Builder result) {
+        try {
+            ValuePair vPair = mKeyValStore.get(key);
+            if (vPair != null) {
+                result.setErrCode(Protocol.ERR_SUCCESS)
+                    .setValue(vPair.getValue())
+                    .setVersion(vPair.version);
+            } else {
+                result.setErrCode(Protocol.ERR_NON_EXISTENT_KEY);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            result.setErrCode(Protocol.ERR_INTERNAL_KVSTORE_FAILURE);
+        }
+    }
+
+    private void put(KVEntry entry, VirtualNode vnode, KVEntry.Builder result) {
+        try {
+            // The store keeps the key and value, which are views of the receive buffer.
+            ByteString key = copyOf(entry.getKey());
+            long expiryTime = entry.getTtlMs() > 0 ? System.currentTimeMillis() + entry.getTtlMs() : 0;
+            ValuePair curEntry = mKeyValStore.put(key, copyOf(entry.getValue()), false, entry.getVersion(), null,
+                    expiryTime);
+            result.setErrCode(Protocol.ERR_SUCCESS);
+            if (Protocol.REPLICATION_FACTOR > 1) {
+                KVRequest.Builder replicaRequest = KVRequest.newBuilder()
+                        .setCommand(Protocol.PUT)
+                        .setKey(key);
+                KeyValueRequestTask.replicate(new NetworkMessage(), replicaRequest, curEntry, vnode);
+            }
+        } catch (OutOfMemoryError e) {
+            result.setErrCode(Protocol.ERR_OUT_OF_SPACE);
+        } catch (Exception e) {
+            e.printStackTrace();
+            result.setErrCode(Protocol.ERR_INTERNAL_KVSTORE_FAILURE);
+        }
+    }
+
+    private void complete() {
+        if (mPending.decrementAndGet() == 0) {
+            reply();
+        }
+    }
+
+    private void reply() {
+        KVBatch.Builder batch = KVBatch.newBuilder();
+        int size = 0;
+        for (int i = 0; i < mResults.length; i++) {
+            KVEntry result = mResults[i].build();
+            int entrySize = CodedOutputStream.computeMessageSize(1, result);
+            // Leave room for the results after this one, should none of them fit either.
+            if (size + entrySize + (mResults.length - i - 1) * SIZE_ERROR_ENTRY
+                    > ResponseEncoder.MAX_PAYLOAD_SIZE - SIZE_RESPONSE_OVERHEAD) {
+                result = KVEntry.newBuilder().setErrCode(Protocol.ERR_SYSTEM_OVERLOAD).build();
+                entrySize = CodedOutputStream.computeMessageSize(1, result);
+            }
+            size += entrySize;
+            batch.addEntries(result);
+        }
+        KVResponse.Builder response = KVResponse.newBuilder()
+                .setErrCode(Protocol.ERR_SUCCESS)
+                .setValue(batch.build().toByteString());
+        try {
+            ByteBuffer buf = ResponseEncoder.encode(mId, response);
+            try {
+                MessageCache.getInstance().put(mId, ByteString.copyFrom(buf.duplicate()), 0, 0);
+            } catch (OutOfMemoryError e) {
+                // Still answered, retransmissions are dropped until the cache entry times out.
+                System.err.println("[ERROR]: Message cache full, batch response not cached");
+            }
+            WriteEventHandler.write(mChannel, buf, mAddr, true);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static ByteString copyOf(ByteString bytes) {
+        // The array is never shared, so it can be wrapped without another copy.
+        return UnsafeByteOperations.unsafeWrap(bytes.toByteArray());
+    }
+}
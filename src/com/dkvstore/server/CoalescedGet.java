@@ -0,0 +1,193 @@
+package com.dkvstore.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.dkvstore.NetworkMessage;
+import com.dkvstore.Protocol;
+import com.dkvstore.Util;
+import com.dkvstore.client.KVClient;
+import com.dkvstore.server.distribution.DirectRoute;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.RouteStrategy.AddressHolder;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVRequest;
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * A GET of a key owned by another node, shared by every client that asks for the key while it is
+ * being forwarded. Only the first client's GET goes to the owner, routed as any other request is,
+ * so the owner answers that client directly and a GET that is not shared takes no more hops than
+ * a routed one. The copy of the reply the owner sends this node is sent to each client that asked
+ * in the meantime under the client's message id, and cached under it like any other response. A
+ * hot key owned elsewhere so costs its owner one request per round trip rather than one per
+ * client request.
+ *
+ * The GET is hedged: should the owner take longer than it usually does, a copy goes to another
+ * replica of the key as a ONE GET, and whichever answers first answers the clients, which may then
+ * get the replica's copy.
+ */
+final class CoalescedGet implements KVClient.OnResponseReceivedListener {
+    private static final class Waiter {
+        final ByteString id;
+        final InetSocketAddress addr;
+
+        Waiter(ByteString id, InetSocketAddress addr) {
+            this.id = id;
+            this.addr = addr;
+        }
+    }
+
+    private static final Map<ByteString, CoalescedGet> mInFlight = new ConcurrentHashMap<>();
+    private static final LongAdder mForwarded = new LongAdder();
+    private static final LongAdder mCoalesced = new LongAdder();
+
+    private final ByteString mKey;
+    private final DatagramChannel mChannel;
+    // The client whose GET is sent to the owner.
+    private final Waiter mFirst;
+    // Guarded by this, no more waiters join once the reply has arrived.
+    private final List<Waiter> mWaiters = new ArrayList<>();
+    private boolean mAnswered;
+
+    private CoalescedGet(ByteString key, DatagramChannel channel, Waiter first) {
+        mKey = key;
+        mChannel = channel;
+        mFirst = first;
+        mWaiters.add(first);
+    }
+
+    static void init() {
+        Stats.register("gets_forwarded", mForwarded::sum);
+        Stats.register("gets_coalesced", mCoalesced::sum);
+    }
+
+    /**
+     * Answer a client's GET with the owner's reply, sending the GET to the owner unless it is
+     * already being sent for another client.
+     * @param channel the channel to reply on.
+     * @param id the message id, kept until the GET is answered.
+     * @param addr the address to reply to.
+     * @param key the key, only used until get returns.
+     * @param nodeId the node that owns the key.
+     */
+    static void get(DatagramChannel channel, ByteString id, InetSocketAddress addr, ByteString key, int nodeId) {
+        Waiter waiter = new Waiter(id, addr);
+        while (true) {
+            CoalescedGet flight = mInFlight.get(key);
+            if (flight == null) {
+                // The map keeps the key, which is a view of the receive buffer.
+                CoalescedGet newFlight = new CoalescedGet(UnsafeByteOperations.unsafeWrap(key.toByteArray()), channel, waiter);
+                if (mInFlight.putIfAbsent(newFlight.mKey, newFlight) == null) {
+                    newFlight.send(nodeId);
+                    return;
+                }
+            } else if (flight.join(waiter)) {
+                mCoalesced.increment();
+                return;
+            }
+            // The GET in flight was just answered, or another one started, look again.
+        }
+    }
+
+    private synchronized boolean join(Waiter waiter) {
+        if (mAnswered) {
+            return false;
+        }
+        mWaiters.add(waiter);
+        return true;
+    }
+
+    private void send(int nodeId) {
+        AddressHolder routedNode = DirectRoute.getInstance().getRoute(nodeId);
+        if (routedNode == null) {
+            System.out.println(String.format("[DEBUG]: Unable to route to nodeId %d", nodeId));
+            mInFlight.remove(mKey, this);
+            return;
+        }
+        // Under the first client's message id, and with its address to reply to, as routeToNode sends it.
+        NetworkMessage message = new NetworkMessage();
+        message.setIdString(mFirst.id);
+        message.setPayload(KVRequest.newBuilder()
+                .setCommand(Protocol.GET)
+                .setKey(mKey)
+                .setReplyIpAddress(mFirst.addr.getAddress().getHostAddress())
+                .setReplyPort(mFirst.addr.getPort())
+                .build()
+                .toByteArray());
+        message.setAddressAndPort(routedNode.address, routedNode.port);
+        mForwarded.increment();
+        KVClient kvClient = ReactorServer.getInstance().getPrimaryKVClient();
+        int hedgeNodeId = ReplicaRead.chooseSecondary(HashEntity.getInstance().getKVNode(mKey));
+        AddressHolder hedgeNode = hedgeNodeId >= 0 ? DirectRoute.getInstance().getRoute(hedgeNodeId) : null;
+        if (hedgeNode == null) {
+            kvClient.send(message, 0, this);
+            return;
+        }
+        NetworkMessage hedgeMessage = new NetworkMessage(Util.getUniqueId(ReactorServer.KEY_VALUE_PORT));
+        hedgeMessage.setPayload(KVRequest.newBuilder()
+                .setCommand(Protocol.GET)
+                .setKey(mKey)
+                .setConsistency(Protocol.CONSISTENCY_ONE)
+                .build()
+                .toByteArray());
+        hedgeMessage.setAddressAndPort(hedgeNode.address, hedgeNode.port);
+        kvClient.sendHedged(message, hedgeMessage, 0, this);
+    }
+
+    @Override
+    public void onResponseReceived(int requestId, NetworkMessage msg) {
+        // Clients asking from now on start another GET, they may be asking after a newer write.
+        mInFlight.remove(mKey, this);
+        List<Waiter> waiters;
+        synchronized (this) {
+            mAnswered = true;
+            waiters = mWaiters;
+        }
+
+        KVResponse.Builder response;
+        try {
+            response = KVResponse.parseFrom(msg.getPayload()).toBuilder();
+        } catch (InvalidProtocolBufferException e) {
+            response = KVResponse.newBuilder().setErrCode(Protocol.ERR_INTERNAL_KVSTORE_FAILURE);
+        }
+        boolean isValue = response.getErrCode() == Protocol.ERR_SUCCESS && response.hasValue();
+        // The owner answered the first client itself, unless this is the hedge's reply or an
+        // overload, which may be this node's own for a GET the owner never answered.
+        boolean firstAnswered = msg.getIdString().equals(mFirst.id) && response.getErrCode() != Protocol.ERR_SYSTEM_OVERLOAD;
+        MessageCache messageCache = MessageCache.getInstance();
+        for (Waiter waiter : waiters) {
+            try {
+                ByteBuffer buf = ResponseEncoder.encode(waiter.id, response);
+                try {
+                    if (isValue) {
+                        // Every waiter's cache entry refers to the same value.
+                        messageCache.put(waiter.id, response.getValue(), KeyValueRequestTask.CACHE_META_SUCCESS_GET
+                                | MessageCache.META_MASK_CACHE_REFERENCE, response.getVersion());
+                    } else {
+                        messageCache.put(waiter.id, ByteString.copyFrom(buf.duplicate()), 0, 0);
+                    }
+                } catch (OutOfMemoryError e) {
+                    // Still answered, retransmissions are dropped until the cache entry times out.
+                    System.err.println("[ERROR]: Message cache full, coalesced GET response not cached");
+                }
+                if (waiter != mFirst || !firstAnswered) {
+                    WriteEventHandler.write(mChannel, buf, waiter.addr, true);
+                } else {
+                    ResponseEncoder.release(buf);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -8,11 +8,17 @@ import java.nio.ByteBuffer;
 import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 import com.dkvstore.NetworkMessage;
 import com.dkvstore.Protocol;
 import com.dkvstore.Util;
 import com.dkvstore.client.KVClient;
+import com.dkvstore.server.KeyValueStore.CasResult;
 import com.dkvstore.server.KeyValueStore.ValuePair;
 import com.dkvstore.server.MessageCache.CacheEntry;
 import com.dkvstore.server.distribution.DirectRoute;
@@ -20,9 +26,11 @@ import com.dkvstore.server.distribution.EpidemicProtocol;
 import com.dkvstore.server.distribution.HashEntity;
 import com.dkvstore.server.distribution.RouteStrategy;
 import com.dkvstore.server.distribution.VectorClock;
+import com.dkvstore.server.distribution.VectorClock.CompareResult;
 import com.dkvstore.server.distribution.VirtualNode;
 import com.dkvstore.server.distribution.RouteStrategy.AddressHolder;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
 import ca.NetSysLab.ProtocolBuffers.KeyValueRequest;
 import ca.NetSysLab.ProtocolBuffers.KeyValueResponse;
@@ -31,8 +39,15 @@ import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
 public class KeyValueRequestTask implements Runnable {
     private static final int CACHE_META_COMPLETE_RESPONSE = 0;
     private static final int CACHE_META_SUCCESS_BYTES = 1;
-    private static final int CACHE_META_SUCCESS_GET = 2;
-    private byte[] mDataBytes;
+    static final int CACHE_META_SUCCESS_GET = 2;
+    // The size of the values INCREMENT works on, a big endian 64 bit integer.
+    private static final int SIZE_COUNTER = 8;
+    // Tasks are reused along with their receive buffers, beyond this many idle ones are dropped.
+    private static final int TASK_POOL_SIZE = 256;
+    private static final BlockingQueue<KeyValueRequestTask> mTaskPool = new ArrayBlockingQueue<>(TASK_POOL_SIZE);
+    private static final ThreadLocal<KVResponse.Builder> mResponseBuilder = ThreadLocal.withInitial(KVResponse::newBuilder);
+    private final ByteBuffer mBuffer = ByteBuffer.wrap(NetworkMessage.getMaxDataBuffer());
+    private final NetworkMessage mMessage = new NetworkMessage();
     private static KeyValueStore mKeyValStore;
     private static MessageCache mMessageCache;
     private static HashEntity mHashEntity;
@@ -44,17 +59,52 @@ public class KeyValueRequestTask implements Runnable {
     private DatagramChannel mChannel;
     private KeyValueRequest.KVRequest.Builder kvReqBuilder;
     private InetSocketAddress mAddr;
-    private static final byte[] SUCCESS_BYTES = KeyValueResponse.KVResponse.newBuilder()
-            .setErrCode(Protocol.ERR_SUCCESS)
-            .build()
-            .toByteArray();
+    // Set if the response waits for the replicas to acknowledge a write.
+    private ReplicaWrite mReplicaWrite;
 
-    public KeyValueRequestTask(DatagramChannel channel, InetSocketAddress addr, byte[] dataBytes) {
-        mChannel = channel;
-        mDataBytes = dataBytes;
+    private KeyValueRequestTask() {
+    }
+    
+    /**
+     * Get an idle task to receive a request into, the task returns itself to the pool once it has run.
+     * @param channel the channel the request is received on.
+     */
+    public static KeyValueRequestTask obtain(DatagramChannel channel) {
+        KeyValueRequestTask task = mTaskPool.poll();
+        if (task == null) {
+            task = new KeyValueRequestTask();
+        }
+        task.mChannel = channel;
+        task.mBuffer.clear();
+        return task;
+    }
+    
+    /**
+     * @return the buffer to receive the request datagram into, flipped once it is received.
+     */
+    public ByteBuffer getReceiveBuffer() {
+        return mBuffer;
+    }
+    
+    /**
+     * @param addr the address the request was received from.
+     */
+    public void setAddress(InetSocketAddress addr) {
         mAddr = addr;
     }
     
+    /**
+     * Return the task to the pool, the views of its receive buffer that the request was decoded
+     * into must not be used anymore.
+     */
+    public void release() {
+        mChannel = null;
+        mAddr = null;
+        kvReqBuilder = null;
+        mReplicaWrite = null;
+        mTaskPool.offer(this);
+    }
+    
     public static void init() {
         mKeyValStore = KeyValueStore.getInstance();
         mMessageCache = MessageCache.getInstance();
@@ -64,19 +114,22 @@ public class KeyValueRequestTask implements Runnable {
         mKVClient = ReactorServer.getInstance().getPrimaryKVClient();
         mSecondaryKVClient = ReactorServer.getInstance().getSecondaryKVClient();
         mMigrateKVHandler = MigrateKVHandler.getInstance();
+        CoalescedGet.init();
+        ReplicaRead.init();
+        ReplicaWrite.init();
     }
 
     @Override
     public void run() {
         try {   
-            kvReqBuilder = KeyValueRequest.KVRequest.newBuilder();
-            KeyValueResponse.KVResponse.Builder kvResBuilder = KeyValueResponse.KVResponse.newBuilder();
+            RequestDecoder decoder = RequestDecoder.get();
+            KeyValueResponse.KVResponse.Builder kvResBuilder = mResponseBuilder.get().clear();
     
-            NetworkMessage message = NetworkMessage.contructMessage(mDataBytes);
+            NetworkMessage message = mMessage;
+            decoder.decode(mBuffer, message);
             message.setAddressAndPort(mAddr.getAddress(), mAddr.getPort());
             
             KeyValueStore.ValuePair vPair;
-            byte[] dataBytes = null;
             int errCode;
             ByteString key;
             ByteString value;
@@ -97,28 +150,27 @@ public class KeyValueRequestTask implements Runnable {
                     metaInfo = (entry.metaInfo & 0x0000ffff);
                     switch(metaInfo) {
                     case CACHE_META_SUCCESS_GET: {
-                        dataBytes = kvResBuilder
-                                .setErrCode(Protocol.ERR_SUCCESS)
-                                .setValue(cachedMessageVal)
-                                .setVersion(entry.intField0)
-                                .build()
-                                .toByteArray();
-                        message.setPayload(dataBytes);
-                        dataBytes = message.getDataBytes();
+                        kvResBuilder
+                            .setErrCode(Protocol.ERR_SUCCESS)
+                            .setValue(cachedMessageVal)
+                            .setVersion(entry.intField0);
+                        send(ResponseEncoder.encode(message.getIdString(), kvResBuilder), true, message.getAddress(), message.getPort());
                         break;
                     }
                     case CACHE_META_SUCCESS_BYTES: {
-                        message.setPayload(SUCCESS_BYTES);
-                        dataBytes = message.getDataBytes();
+                        kvResBuilder.setErrCode(Protocol.ERR_SUCCESS);
+                        send(ResponseEncoder.encode(message.getIdString(), kvResBuilder), true, message.getAddress(), message.getPort());
                         break;
                     }
                     default:
-                        dataBytes = cachedMessageVal.toByteArray();
+                        // The complete response datagram is cached.
+                        send(cachedMessageVal.asReadOnlyByteBuffer(), false, message.getAddress(), message.getPort());
                     }
-                    send(dataBytes, message.getAddress(), message.getPort());
                     return;
                 } 
                 else {
+                    // The cache keeps the id beyond this task, copy it out of the receive buffer.
+                    message.setIdString(copyOf(message.getIdString()));
                     try {
                         if (!mMessageCache.putIfNotExist(message.getIdString(),
                                 MessageCache.ENTRY_BEING_PROCESSED, CACHE_META_COMPLETE_RESPONSE, 0)) {
@@ -131,7 +183,7 @@ public class KeyValueRequestTask implements Runnable {
                     }
                 }
 
-                kvReqBuilder = kvReqBuilder.mergeFrom(message.getPayload());
+                kvReqBuilder = decoder.getRequest();
 
                 key = kvReqBuilder.getKey();
                 value = kvReqBuilder.getValue();
@@ -142,40 +194,33 @@ public class KeyValueRequestTask implements Runnable {
                         errCode = Protocol.ERR_INVALID_KEY;
                     } else if (value.size() > Protocol.SIZE_MAX_VAL_LENGTH) {
                         errCode = Protocol.ERR_INVALID_VAL;
+                    } else if (kvReqBuilder.getIsCompressed() && kvReqBuilder.getVectorClockCount() == 0) {
+                        // Only other nodes ship compressed values, always along with the entry's vector clock.
+                        errCode = Protocol.ERR_INVALID_VAL;
+                    } else if (kvReqBuilder.getTtlMs() < 0) {
+                        errCode = Protocol.ERR_INVALID_VAL;
                     } else {
+                        // The store may keep the key and value, which are views of the receive buffer.
+                        key = copyOf(key);
+                        value = copyOf(value);
                         VirtualNode vnode = mHashEntity.getKVNode(key);
                         if (kvReqBuilder.getIsReplica()) {
-                            mKeyValStore.put(key, value, kvReqBuilder.getVersion(), VectorClock.getVectorClock(kvReqBuilder));
-                            dataBytes = SUCCESS_BYTES;
+                            mKeyValStore.put(key, value, kvReqBuilder.getIsCompressed(), kvReqBuilder.getVersion(),
+                                    VectorClock.getVectorClock(kvReqBuilder), getExpiryTime());
+                            kvResBuilder.setErrCode(Protocol.ERR_SUCCESS);
                             cacheMetaInfo = CACHE_META_SUCCESS_BYTES | MessageCache.META_MASK_CACHE_REFERENCE;
                         } else if(vnode.getPNodeId() != mNodeId) {
                             routeToNode(message, vnode.getPNodeId());
                             // message being processed by other node, move on
                             return;
                         } else {
-                            ValuePair curEntry = mKeyValStore.put(key, value, kvReqBuilder.getVersion(), VectorClock.getVectorClock(kvReqBuilder));
-                            dataBytes = SUCCESS_BYTES;
+                            ValuePair curEntry = mKeyValStore.put(key, value, kvReqBuilder.getIsCompressed(),
+                                    kvReqBuilder.getVersion(), VectorClock.getVectorClock(kvReqBuilder), getExpiryTime());
+                            kvResBuilder.setErrCode(Protocol.ERR_SUCCESS);
                             cacheMetaInfo = CACHE_META_SUCCESS_BYTES | MessageCache.META_MASK_CACHE_REFERENCE;
                             
                             if (Protocol.REPLICATION_FACTOR > 1) {
-                                kvReqBuilder
-                                    .setIsReplica(true)
-                                    .setValue(curEntry.value)
-                                    .setVersion(curEntry.version);
-
-                                kvReqBuilder.clearVectorClock();
-                                for(int i = 0; i < curEntry.vectorClock.length; i++) {
-                                    kvReqBuilder.addVectorClock(curEntry.vectorClock[i]);
-                                }
-                                
-                                message.setPayload(kvReqBuilder.build().toByteArray());
-                                
-                                int[] successorNodeIds = new int[Protocol.REPLICATION_FACTOR - 1];
-                                int numVNodes = mHashEntity.getSuccessorNodes(vnode, Protocol.REPLICATION_FACTOR - 1, successorNodeIds);
-                                
-                                for (int i = 0; i < numVNodes; i++) {
-                                    routeToReplicaNode(message, successorNodeIds[i]);
-                                }
+                                replicateWrite(message, curEntry, vnode);
                             }
                         }
                     }
@@ -186,26 +231,49 @@ public class KeyValueRequestTask implements Runnable {
                         errCode = Protocol.ERR_INVALID_KEY;
                     } else if (!value.isEmpty()) {
                         errCode = Protocol.ERR_INVALID_VAL;
+                    } else if (kvReqBuilder.getIsReplica()) {
+                        // Another node reading this node's copy, along with its vector clock.
+                        kvResBuilder
+                                .setErrCode(Protocol.ERR_SUCCESS)
+                                .setValue(ReplicaRead.readLocal(key).toByteString());
+                    } else if (kvReqBuilder.hasReadQuorum() || getReadQuorum() != 1) {
+                        // Answered once the read quorum has, which may be after this task has run.
+                        new ReplicaRead(mChannel, message.getIdString(), mAddr, copyOf(key), getReadQuorum()).serve();
+                        return;
                     } else {
-                        int nodeId = mHashEntity.getKVNodeId(key);
+                        VirtualNode vnode = mHashEntity.getKVNode(key);
+                        int primaryNodeId = vnode.getPNodeId();
+                        int nodeId = primaryNodeId;
+                        if (nodeId != mNodeId && kvReqBuilder.getConsistency() == Protocol.CONSISTENCY_ONE) {
+                            nodeId = ReplicaRead.chooseReplica(vnode, kvReqBuilder.hasReplyIpAddress());
+                        }
                         if(nodeId != mNodeId) {
                             if (mMigrateKVHandler.isMigrating(nodeId)) {
                                 sendOverloadMessage(message, kvResBuilder);
                                 return;
                             }
-                            routeToNode(message, nodeId);
+                            if (kvReqBuilder.hasReplyIpAddress() || kvReqBuilder.hasRingEpoch() || nodeId != primaryNodeId) {
+                                // Routed by another node, the client gets the reply straight from the owner,
+                                // or sent by a client with a stale ring, which is redirected.
+                                routeToNode(message, nodeId);
+                            } else {
+                                // Answered once the owner replies, along with other clients' GETs of the key.
+                                CoalescedGet.get(mChannel, message.getIdString(), mAddr, key, nodeId);
+                            }
                             // message being processed by other node, move on
                             return;
                         }
                         else {
                             vPair = mKeyValStore.get(key);
+                            if (nodeId != primaryNodeId) {
+                                ReplicaRead.onReplicaRead(key, vPair, primaryNodeId);
+                            }
                             if (vPair != null) {
-                            	dataBytes = kvResBuilder
+                                // The value is a view of the store's copy, it is copied once, into the response buffer.
+                            	kvResBuilder
                                         .setErrCode(Protocol.ERR_SUCCESS)
-                                        .setValue(vPair.value)
-                                        .setVersion(vPair.version)
-                                        .build()
-                                        .toByteArray();
+                                        .setValue(vPair.getValue())
+                                        .setVersion(vPair.version);
                                 cacheMetaInfo = CACHE_META_SUCCESS_GET | MessageCache.META_MASK_CACHE_REFERENCE;
                             } else {
                                 errCode = Protocol.ERR_NON_EXISTENT_KEY;
@@ -231,8 +299,8 @@ public class KeyValueRequestTask implements Runnable {
                             return;
                         }
                         else {
-                            if (mKeyValStore.remove(key)) {
-                                dataBytes = SUCCESS_BYTES;
+                            if (mKeyValStore.remove(copyOf(key))) {
+                                kvResBuilder.setErrCode(Protocol.ERR_SUCCESS);
                                 cacheMetaInfo = CACHE_META_SUCCESS_BYTES | MessageCache.META_MASK_CACHE_REFERENCE;
                             } else {
                                 errCode = Protocol.ERR_NON_EXISTENT_KEY;
@@ -241,6 +309,108 @@ public class KeyValueRequestTask implements Runnable {
                     }
                     break;
                 }
+                case Protocol.CAS: {
+                    if (key.isEmpty() || key.size() > Protocol.SIZE_MAX_KEY_LENGTH) {
+                        errCode = Protocol.ERR_INVALID_KEY;
+                    } else if (value.size() > Protocol.SIZE_MAX_VAL_LENGTH) {
+                        errCode = Protocol.ERR_INVALID_VAL;
+                    } else if (kvReqBuilder.getIsReplica() || kvReqBuilder.getIsCompressed()) {
+                        // Replicas only ever get the owner's entry as a PUT.
+                        errCode = Protocol.ERR_INVALID_VAL;
+                    } else if (kvReqBuilder.getTtlMs() < 0) {
+                        errCode = Protocol.ERR_INVALID_VAL;
+                    } else {
+                        VirtualNode vnode = mHashEntity.getKVNode(key);
+                        if(vnode.getPNodeId() != mNodeId) {
+                            routeToNode(message, vnode.getPNodeId());
+                            // message being processed by other node, move on
+                            return;
+                        }
+                        // The store may keep the key and value, which are views of the receive buffer.
+                        key = copyOf(key);
+                        value = copyOf(value);
+                        CasResult result = mKeyValStore.compareAndPut(key, value, kvReqBuilder.getVersion(),
+                                getExpiryTime(), getExpectedEntry());
+                        if (result.applied) {
+                            kvResBuilder.setErrCode(Protocol.ERR_SUCCESS);
+                            cacheMetaInfo = CACHE_META_SUCCESS_BYTES | MessageCache.META_MASK_CACHE_REFERENCE;
+                            if (Protocol.REPLICATION_FACTOR > 1) {
+                                replicateWrite(message, result.entry, vnode);
+                            }
+                        } else if (result.entry == null) {
+                            errCode = Protocol.ERR_NON_EXISTENT_KEY;
+                        } else {
+                            // The current entry comes back with the mismatch, so a retry needs no GET.
+                            kvResBuilder
+                                    .setErrCode(Protocol.ERR_VERSION_MISMATCH)
+                                    .setValue(result.entry.getValue())
+                                    .setVersion(result.entry.version);
+                        }
+                    }
+                    break;
+                }
+                case Protocol.INCREMENT:
+                case Protocol.APPEND: {
+                    boolean isIncrement = kvReqBuilder.getCommand() == Protocol.INCREMENT;
+                    if (key.isEmpty() || key.size() > Protocol.SIZE_MAX_KEY_LENGTH) {
+                        errCode = Protocol.ERR_INVALID_KEY;
+                    } else if (isIncrement ? !value.isEmpty() : value.size() > Protocol.SIZE_MAX_VAL_LENGTH) {
+                        errCode = Protocol.ERR_INVALID_VAL;
+                    } else if (kvReqBuilder.getIsReplica() || kvReqBuilder.getIsCompressed()) {
+                        // Replicas only ever get the owner's entry as a PUT.
+                        errCode = Protocol.ERR_INVALID_VAL;
+                    } else if (kvReqBuilder.getTtlMs() < 0) {
+                        errCode = Protocol.ERR_INVALID_VAL;
+                    } else {
+                        VirtualNode vnode = mHashEntity.getKVNode(key);
+                        if(vnode.getPNodeId() != mNodeId) {
+                            routeToNode(message, vnode.getPNodeId());
+                            // message being processed by other node, move on
+                            return;
+                        }
+                        key = copyOf(key);
+                        UnaryOperator<ByteString> update = isIncrement
+                                ? increment(kvReqBuilder.hasDelta() ? kvReqBuilder.getDelta() : 1)
+                                : append(copyOf(value));
+                        // Without a time to live the key keeps its expiry time.
+                        long expiryTime = kvReqBuilder.getTtlMs() > 0 ? getExpiryTime() : -1;
+                        ValuePair curEntry;
+                        try {
+                            curEntry = mKeyValStore.update(key, update, expiryTime);
+                        } catch (IllegalArgumentException | ArithmeticException e) {
+                            // The key's value cannot be incremented or appended to.
+                            errCode = Protocol.ERR_INVALID_VAL;
+                            break;
+                        }
+                        kvResBuilder.setErrCode(Protocol.ERR_SUCCESS);
+                        if (isIncrement) {
+                            kvResBuilder
+                                    .setValue(curEntry.getValue())
+                                    .setVersion(curEntry.version);
+                            cacheMetaInfo = CACHE_META_SUCCESS_GET | MessageCache.META_MASK_CACHE_REFERENCE;
+                        } else {
+                            cacheMetaInfo = CACHE_META_SUCCESS_BYTES | MessageCache.META_MASK_CACHE_REFERENCE;
+                        }
+                        if (Protocol.REPLICATION_FACTOR > 1) {
+                            replicateWrite(message, curEntry, vnode);
+                        }
+                    }
+                    break;
+                }
+                case Protocol.MULTI_GET:
+                case Protocol.MULTI_PUT:
+                    // The batch replies once the owners of its keys have, which may be after this task has run.
+                    new BatchRequest(mChannel, message.getIdString(), mAddr, kvReqBuilder).serve();
+                    return;
+                case Protocol.SCAN:
+                    if (!ScanHandler.isValidCursor(kvReqBuilder.getCursor())) {
+                        errCode = Protocol.ERR_INVALID_VAL;
+                    } else {
+                        kvResBuilder
+                            .setErrCode(Protocol.ERR_SUCCESS)
+                            .setValue(ScanHandler.scan(kvReqBuilder.getCursor()).toByteString());
+                    }
+                    break;
                 case Protocol.SHUTDOWN:
                     System.exit(0);
                     break;
@@ -252,30 +422,36 @@ public class KeyValueRequestTask implements Runnable {
                         return;
                     } 
                     mKeyValStore.removeAll();                        
-                    dataBytes = SUCCESS_BYTES;
+                    kvResBuilder.setErrCode(Protocol.ERR_SUCCESS);
                     cacheMetaInfo = CACHE_META_SUCCESS_BYTES | MessageCache.META_MASK_CACHE_REFERENCE;
                     break;
                 case Protocol.IS_ALIVE:
-                    dataBytes = SUCCESS_BYTES;
+                    kvResBuilder.setErrCode(Protocol.ERR_SUCCESS);
                     cacheMetaInfo = CACHE_META_SUCCESS_BYTES | MessageCache.META_MASK_CACHE_REFERENCE;
                     break;
                 case Protocol.GET_PID: {
                     String vmName = ManagementFactory.getRuntimeMXBean().getName();
                     int p = vmName.indexOf("@");
                     int pid = Integer.valueOf(vmName.substring(0, p));
-                    dataBytes = kvResBuilder
+                    kvResBuilder
                             .setErrCode(Protocol.ERR_SUCCESS)
-                            .setPid(pid)
-                            .build()
-                            .toByteArray();
+                            .setPid(pid);
                     break;
                 }
                 case Protocol.GET_MEMBERSHIP_COUNT:
-                    dataBytes = kvResBuilder
+                    kvResBuilder
+                    .setErrCode(Protocol.ERR_SUCCESS)
+                    .setMembershipCount(EpidemicProtocol.getInstance().getAliveMembers());
+                    break;
+                case Protocol.GET_RING:
+                    kvResBuilder
+                    .setErrCode(Protocol.ERR_SUCCESS)
+                    .setValue(getRing().toByteString());
+                    break;
+                case Protocol.GET_STATS:
+                    kvResBuilder
                     .setErrCode(Protocol.ERR_SUCCESS)
-                    .setMembershipCount(EpidemicProtocol.getInstance().getAliveMembers())
-                    .build()
-                    .toByteArray();
+                    .setValue(ByteString.copyFromUtf8(Stats.dump()));
                     break;
                 default:
                     errCode = Protocol.ERR_UNRECOGNIZED_COMMAND;
@@ -290,14 +466,19 @@ public class KeyValueRequestTask implements Runnable {
             }
             
             if (errCode != Protocol.ERR_SUCCESS) {
-                dataBytes = kvResBuilder
-                        .setErrCode(errCode)
-                        .build()
-                        .toByteArray();
+                kvResBuilder
+                        .clear()
+                        .setErrCode(errCode);
+            } else if (mReplicaWrite != null) {
+                // Answered once the write quorum has the entry, which may be after this task has run.
+                InetSocketAddress replyAddr = kvReqBuilder.hasReplyIpAddress() && kvReqBuilder.hasReplyPort()
+                        ? new InetSocketAddress(InetAddress.getByName(kvReqBuilder.getReplyIpAddress()), kvReqBuilder.getReplyPort())
+                        : null;
+                mReplicaWrite.reply(kvResBuilder.build(), mAddr, replyAddr);
+                return;
             }
 
-            message.setPayload(dataBytes);
-            dataBytes = message.getDataBytes();
+            ByteBuffer response = ResponseEncoder.encode(message.getIdString(), kvResBuilder);
             
             metaInfo = cacheMetaInfo & 0x0000ffff;
             switch(metaInfo) {
@@ -308,24 +489,139 @@ public class KeyValueRequestTask implements Runnable {
                 mMessageCache.put(message.getIdString(), null, cacheMetaInfo, 0);
                 break;
             default:
-                mMessageCache.put(message.getIdString(), ByteString.copyFrom(dataBytes), cacheMetaInfo, 0);
+                mMessageCache.put(message.getIdString(), ByteString.copyFrom(response.duplicate()), cacheMetaInfo, 0);
+            }
+            
+            ByteBuffer replyResponse = null;
+            if (kvReqBuilder != null && kvReqBuilder.hasReplyIpAddress() && kvReqBuilder.hasReplyPort()) {
+                // The pooled buffer is released once sent, the client a request was routed for gets a copy.
+                replyResponse = ByteBuffer.allocate(response.remaining());
+                replyResponse.put(response.duplicate()).flip();
             }
             
-            send(dataBytes, message.getAddress(), message.getPort());
+            send(response, true, message.getAddress(), message.getPort());
             
-            if (kvReqBuilder.hasReplyIpAddress() && kvReqBuilder.hasReplyPort()) {
-                send(dataBytes, InetAddress.getByName(kvReqBuilder.getReplyIpAddress()), kvReqBuilder.getReplyPort());
+            if (replyResponse != null) {
+                send(replyResponse, false, InetAddress.getByName(kvReqBuilder.getReplyIpAddress()), kvReqBuilder.getReplyPort());
             }
 
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            release();
+        }
+    }
+    
+    private static ByteString copyOf(ByteString bytes) {
+        // The array is never shared, so it can be wrapped without another copy.
+        return UnsafeByteOperations.unsafeWrap(bytes.toByteArray());
+    }
+    
+    /**
+     * @return the expiry time of a PUT, in milliseconds since the epoch, 0 if the key never expires.
+     *  Other nodes send the expiry time of their entry, clients send a time to live.
+     */
+    private long getExpiryTime() {
+        if (kvReqBuilder.hasExpiryTimeMs()) {
+            return kvReqBuilder.getExpiryTimeMs();
+        }
+        return kvReqBuilder.getTtlMs() > 0 ? System.currentTimeMillis() + kvReqBuilder.getTtlMs() : 0;
+    }
+    
+    /**
+     * @return what the entry of a CAS must be for the put to be applied: equal to the vector clock
+     *  of the request if it has one, otherwise of the expected version, or absent if neither is set.
+     */
+    private Predicate<ValuePair> getExpectedEntry() {
+        int[] vectorClock = VectorClock.getVectorClock(kvReqBuilder);
+        if (vectorClock != null) {
+            return entry -> entry != null
+                    && VectorClock.compareVectorClock(vectorClock, entry.vectorClock) == CompareResult.Equal;
+        }
+        if (kvReqBuilder.hasExpectedVersion()) {
+            int expectedVersion = kvReqBuilder.getExpectedVersion();
+            return entry -> entry != null && entry.version == expectedVersion;
+        }
+        return entry -> entry == null;
+    }
+    
+    /**
+     * @return an update that adds delta to a 64 bit big endian integer value, starting from 0 if
+     *  there is no value. Throws if the value is not 8 bytes long or the sum overflows.
+     */
+    private static UnaryOperator<ByteString> increment(long delta) {
+        return value -> {
+            long num = 0;
+            if (value != null) {
+                if (value.size() != SIZE_COUNTER) {
+                    throw new IllegalArgumentException("Value is not a 64 bit integer");
+                }
+                num = Util.longFromBytes(value.toByteArray(), 0);
+            }
+            byte[] bytes = new byte[SIZE_COUNTER];
+            Util.longToBytes(Math.addExact(num, delta), bytes, 0);
+            return UnsafeByteOperations.unsafeWrap(bytes);
+        };
+    }
+    
+    /**
+     * @return an update that appends suffix to a value, or makes it the value if there is none.
+     *  Throws if the value would get longer than a value may be.
+     */
+    private static UnaryOperator<ByteString> append(ByteString suffix) {
+        return value -> {
+            if (value == null) {
+                return suffix;
+            }
+            if (value.size() + suffix.size() > Protocol.SIZE_MAX_VAL_LENGTH) {
+                throw new IllegalArgumentException("Value too long");
+            }
+            // Flattened, so values appended to many times are not deep ropes.
+            byte[] bytes = new byte[value.size() + suffix.size()];
+            value.copyTo(bytes, 0);
+            suffix.copyTo(bytes, value.size());
+            return UnsafeByteOperations.unsafeWrap(bytes);
+        };
+    }
+    
+    /**
+     * @return the ring as this node sees it, with the address of every node that can be routed to.
+     */
+    private static KeyValueRequest.KVRing getRing() {
+        // Read first, so a ring that changes while it is being read comes with an older epoch.
+        long epoch = mHashEntity.getRingEpoch();
+        KeyValueRequest.KVRing.Builder ring = KeyValueRequest.KVRing.newBuilder().setEpoch(epoch);
+        for (Map.Entry<Integer, VirtualNode[]> node : mHashEntity.getVNodeMap().entrySet()) {
+            AddressHolder addr = mRouteStrat.getRoute(node.getKey());
+            if (addr == null) {
+                continue;
+            }
+            KeyValueRequest.KVRingNode.Builder ringNode = KeyValueRequest.KVRingNode.newBuilder()
+                    .setNodeId(node.getKey())
+                    .setAddress(addr.address.getHostAddress())
+                    .setPort(addr.port);
+            for (VirtualNode vnode : node.getValue()) {
+                ringNode.addTokens(mHashEntity.hash(vnode.getKey()));
+            }
+            ring.addNodes(ringNode);
         }
+        return ring.build();
     }
     
     private void routeToNode(NetworkMessage message, int nodeId) throws Exception {
+        if (kvReqBuilder.hasRingEpoch()) {
+            // The client hashed the key with a stale ring, it is told to get the ring again
+            // rather than being routed, so it sends straight to the owner from then on.
+            KVResponse.Builder kvResBuilder = mResponseBuilder.get()
+                    .clear()
+                    .setErrCode(Protocol.ERR_NOT_OWNER);
+            ByteBuffer response = ResponseEncoder.encode(message.getIdString(), kvResBuilder);
+            mMessageCache.put(message.getIdString(), ByteString.copyFrom(response.duplicate()), CACHE_META_COMPLETE_RESPONSE, 0);
+            send(response, true, message.getAddress(), message.getPort());
+            return;
+        }
         kvReqBuilder.setReplyIpAddress(message.getAddress().getHostAddress());
         kvReqBuilder.setReplyPort(message.getPort());
-        message.setPayload(kvReqBuilder.build().toByteArray());
         AddressHolder fromAddress = new AddressHolder(message.getAddress(), message.getPort());
         
         AddressHolder routedNode = mRouteStrat.getRoute(nodeId);
@@ -335,34 +631,136 @@ public class KeyValueRequestTask implements Runnable {
             return;
         }
         
-        message.setAddressAndPort(routedNode.address, routedNode.port);
-        mKVClient.send(message, fromAddress);
+        // The client keeps the message until it is answered, while this task's message is reused.
+        NetworkMessage routedMessage = new NetworkMessage();
+        routedMessage.setIdString(message.getIdString());
+        routedMessage.setPayload(kvReqBuilder.build().toByteArray());
+        routedMessage.setAddressAndPort(routedNode.address, routedNode.port);
+        mKVClient.send(routedMessage, fromAddress);
+    }
+    
+    /**
+     * Send the owner's entry of a key to the key's replicas.
+     * @param message a message whose payload is replaced with the replica request.
+     * @param kvReqBuilder the request that wrote the key, which is turned into the replica's PUT.
+     * @param curEntry the entry the key maps to once the PUT has been applied.
+     * @param vnode the virtual node that owns the key.
+     */
+    static void replicate(NetworkMessage message, KeyValueRequest.KVRequest.Builder kvReqBuilder, ValuePair curEntry,
+            VirtualNode vnode) throws Exception {
+        replicate(message, kvReqBuilder, curEntry, vnode, null);
+    }
+    
+    /**
+     * Send the owner's entry of a key to the key's replicas, and hand their acknowledgements to acks.
+     * @param acks the listener for the replicas' responses, null if nothing waits for them.
+     * @return the number of replicas the entry was sent to.
+     */
+    static int replicate(NetworkMessage message, KeyValueRequest.KVRequest.Builder kvReqBuilder, ValuePair curEntry,
+            VirtualNode vnode, KVClient.OnResponseReceivedListener acks) throws Exception {
+        kvReqBuilder
+            .setCommand(Protocol.PUT)
+            .setIsReplica(true)
+            .clearExpectedVersion()
+            .clearDelta()
+            .setValue(curEntry.value)
+            .setIsCompressed(curEntry.compressed)
+            .setVersion(curEntry.version)
+            .clearTtlMs();
+        // Replicas get the absolute expiry time, so all copies expire together.
+        if (curEntry.expiryTime != 0) {
+            kvReqBuilder.setExpiryTimeMs(curEntry.expiryTime);
+        } else {
+            kvReqBuilder.clearExpiryTimeMs();
+        }
+
+        kvReqBuilder.clearVectorClock();
+        for(int i = 0; i < curEntry.vectorClock.length; i++) {
+            kvReqBuilder.addVectorClock(curEntry.vectorClock[i]);
+        }
+        
+        message.setPayload(kvReqBuilder.build().toByteArray());
+        
+        // The first replica is the owner, which already has the entry.
+        int[] replicaNodeIds = ReplicaRead.getReplicas(vnode);
+        int numSent = 0;
+        for (int i = 1; i < replicaNodeIds.length; i++) {
+            if (routeToReplicaNode(message, replicaNodeIds[i], acks)) {
+                numSent++;
+            }
+        }
+        return numSent;
+    }
+    
+    /**
+     * Replicate the entry a write put, and make the response wait for the write quorum unless
+     * the quorum is the owner alone.
+     */
+    private void replicateWrite(NetworkMessage message, ValuePair curEntry, VirtualNode vnode) throws Exception {
+        int writeQuorum = Math.min(kvReqBuilder.hasWriteQuorum() ? kvReqBuilder.getWriteQuorum() : Protocol.WRITE_QUORUM,
+                Protocol.REPLICATION_FACTOR);
+        if (writeQuorum <= 1) {
+            replicate(message, kvReqBuilder, curEntry, vnode);
+            return;
+        }
+        mReplicaWrite = new ReplicaWrite(mChannel, message.getIdString(), writeQuorum);
+        mReplicaWrite.onSent(replicate(message, kvReqBuilder, curEntry, vnode, mReplicaWrite));
+    }
+    
+    /**
+     * @return the number of replicas a GET waits for, ReplicaRead.MAJORITY for a QUORUM GET, 1
+     *  if only one replica is asked.
+     */
+    private int getReadQuorum() {
+        if (kvReqBuilder.hasReadQuorum()) {
+            return kvReqBuilder.getReadQuorum();
+        }
+        switch (kvReqBuilder.getConsistency()) {
+        case Protocol.CONSISTENCY_QUORUM:
+            return ReplicaRead.MAJORITY;
+        case Protocol.CONSISTENCY_ONE:
+            return 1;
+        default:
+            return Protocol.READ_QUORUM;
+        }
     }
     
     private void sendOverloadMessage(NetworkMessage message, KVResponse.Builder kvResBuilder) throws IOException, InterruptedException {
-        message.setPayload(kvResBuilder
+        kvResBuilder
+                .clear()
                 .setErrCode(Protocol.ERR_SYSTEM_OVERLOAD)
-                .setOverloadWaitTime(Protocol.getOverloadWaittime())
-                .build()
-                .toByteArray());
-        byte[] dataBytes = message.getDataBytes();
-        send(dataBytes, message.getAddress(), message.getPort());
+                .setOverloadWaitTime(Protocol.getOverloadWaittime());
+        send(ResponseEncoder.encode(message.getIdString(), kvResBuilder), true, message.getAddress(), message.getPort());
     }
     
-    private void routeToReplicaNode(NetworkMessage message, int nodeId) throws Exception {
+    /**
+     * @return false if the node is this node or cannot be routed to.
+     */
+    private static boolean routeToReplicaNode(NetworkMessage message, int nodeId,
+            KVClient.OnResponseReceivedListener acks) throws Exception {
         if (nodeId == mNodeId) {
-            return;
+            return false;
+        }
+        AddressHolder routedNode = mRouteStrat.getRoute(nodeId);
+        if (routedNode == null) {
+            System.out.println(String.format("[DEBUG]: Unable to route to nodeId %d", nodeId));
+            return false;
         }
         // Each replica message must be independent from another, since they are sent to different addresses.
         NetworkMessage replicaMsg = NetworkMessage.clone(message, Util.getUniqueId(ReactorServer.KEY_VALUE_PORT));
-        
-        AddressHolder routedNode = mRouteStrat.getRoute(nodeId);
         replicaMsg.setAddressAndPort(routedNode.address, routedNode.port);
-        mSecondaryKVClient.send(replicaMsg, null);
+        if (acks != null) {
+            mSecondaryKVClient.send(replicaMsg, 0, acks);
+        } else {
+            mSecondaryKVClient.send(replicaMsg, null);
+        }
+        return true;
     }
     
-    private void send(byte[] dataBytes, InetAddress addr, int port) throws IOException, InterruptedException {
-        ByteBuffer buf = ByteBuffer.wrap(dataBytes);
-        WriteEventHandler.write(mChannel, buf, new InetSocketAddress(addr, port));
+    /**
+     * @param pooled true if buf was returned by ResponseEncoder.encode.
+     */
+    private void send(ByteBuffer buf, boolean pooled, InetAddress addr, int port) throws IOException, InterruptedException {
+        WriteEventHandler.write(mChannel, buf, new InetSocketAddress(addr, port), pooled);
     }
 }
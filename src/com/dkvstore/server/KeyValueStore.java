@@ -1,42 +1,233 @@
 package com.dkvstore.server;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
-import com.dkvstore.Util;
+import com.dkvstore.server.cache.CachePolicy;
+import com.dkvstore.server.cache.LruPolicy;
+import com.dkvstore.server.cache.WTinyLfuPolicy;
 import com.dkvstore.server.distribution.DirectRoute;
 import com.dkvstore.server.distribution.HashEntity;
-import com.dkvstore.server.distribution.NodeTable;
+import com.dkvstore.server.distribution.TokenRange;
 import com.dkvstore.server.distribution.VectorClock;
 import com.dkvstore.server.distribution.VectorClock.CompareResult;
+import com.dkvstore.server.storage.BlockCompressor;
+import com.dkvstore.server.storage.Checkpoint;
+import com.dkvstore.server.storage.LsmStore;
+import com.dkvstore.server.storage.MapStore;
+import com.dkvstore.server.storage.OffHeapStore;
+import com.dkvstore.server.storage.StorageEngine;
+import com.dkvstore.server.storage.StorageEngine.RangeKeyVisitor;
+import com.dkvstore.server.storage.StorageEngine.RangeVisitor;
+import com.dkvstore.server.storage.ValuePool;
+import com.dkvstore.server.storage.WriteAheadLog;
+import com.dkvstore.server.storage.WriteAheadLog.SyncMode;
 import com.google.protobuf.ByteString;
 
 public class KeyValueStore {
     public static final class ValuePair {
         public static final int SIZE_META_INFO = 8;
         
+        // The value as stored, which is compressed with BlockCompressor if compressed is set.
         public final ByteString value;
+        public final boolean compressed;
+        // Set if value is the digest of a value in the store's ValuePool, which is only the case
+        // inside the storage engine, entries handed out by the store always hold the value.
+        public final boolean pooled;
         public final int version;
         public int[] vectorClock;
+        // In milliseconds since the epoch, 0 if the entry never expires.
+        public final long expiryTime;
         
         public ValuePair(ByteString value, int version, int[] vectorClock) {
+            this(value, false, false, version, vectorClock, 0);
+        }
+        
+        public ValuePair(ByteString value, boolean compressed, int version, int[] vectorClock, long expiryTime) {
+            this(value, compressed, false, version, vectorClock, expiryTime);
+        }
+        
+        public ValuePair(ByteString value, boolean compressed, boolean pooled, int version, int[] vectorClock,
+                long expiryTime) {
             this.value = value;
+            this.compressed = compressed;
+            this.pooled = pooled;
             this.version = version;
             this.vectorClock = vectorClock;
+            this.expiryTime = expiryTime;
+        }
+        
+        /**
+         * @param now the current time in milliseconds since the epoch.
+         * @return true if the entry has an expiry time and it has passed.
+         */
+        public boolean isExpired(long now) {
+            return expiryTime != 0 && now >= expiryTime;
+        }
+        
+        /**
+         * @return the value as it was put, decompressed on every call if it is stored compressed.
+         */
+        public ByteString getValue() {
+            return compressed ? BlockCompressor.decompress(value) : value;
+        }
+        
+        /**
+         * @return the length of the value as it was put, which is read without decompressing it.
+         */
+        public int getValueSize() {
+            return compressed ? BlockCompressor.getLength(value) : value.size();
+        }
+    }
+    
+    /**
+     * The outcome of a compareAndPut.
+     */
+    public static final class CasResult {
+        // True if the put was applied.
+        public final boolean applied;
+        // The entry mapped to by the key after the call, null if there is none.
+        public final ValuePair entry;
+        
+        CasResult(boolean applied, ValuePair entry) {
+            this.applied = applied;
+            this.entry = entry;
         }
     }
     
     // Maximum number of bytes that is allowed in the key value store.
     public static int MAX_SIZE_BYTES = 40 * 1024 * 1024;
-    private volatile int mSize;
+    public static final String ENGINE_MAP = "map";
+    public static final String ENGINE_OFF_HEAP = "offheap";
+    public static final String ENGINE_LSM = "lsm";
+    // Where entries are kept, one of the ENGINE_* names.
+    public static String STORAGE_ENGINE = ENGINE_MAP;
+    // The directory of the lsm engine.
+    public static File LSM_DIR = new File("lsm-data");
+    public static final String CACHE_POLICY_TINY_LFU = "tinylfu";
+    public static final String CACHE_POLICY_LRU = "lru";
+    // If set the store is used as a cache, which evicts keys with this policy instead of
+    // rejecting puts once MAX_SIZE_BYTES is reached.
+    public static String CACHE_POLICY = null;
+    // Values of at least this many bytes are compressed, -1 disables compression.
+    public static int COMPRESSION_MIN_SIZE = -1;
+    // Values of at least this many bytes are interned in a pool so that equal values are stored
+    // once, -1 disables deduplication.
+    public static int DEDUP_MIN_SIZE = -1;
+    // How late expired keys may be reclaimed, expired keys are never returned in the meantime.
+    private static final long EXPIRY_TICK_MS = 100;
     private static KeyValueStore mKeyValueStore;
-    private Map<ByteString, ValuePair> mKeyValMap;
+    private final StorageEngine mEngine;
+    private final CachePolicy mCachePolicy;
+    private final ValuePool mValuePool;
+    private final LongAdder mCacheHits = new LongAdder();
+    private final LongAdder mCacheMisses = new LongAdder();
+    private final LongAdder mCacheEvictions = new LongAdder();
+    private final LongAdder mCompressedPuts = new LongAdder();
+    private final LongAdder mCompressionSavedBytes = new LongAdder();
+    private final LongAdder mExpiredKeys = new LongAdder();
+    private final TimingWheel mTimingWheel;
+    private volatile WriteAheadLog mWriteAheadLog;
+    private volatile int mSelfNodeId = -1;
     
     private KeyValueStore() {
-        mKeyValMap = new ConcurrentHashMap<>();
-        mSize = 0;
+        mEngine = createEngine(STORAGE_ENGINE);
+        mCachePolicy = createCachePolicy(CACHE_POLICY);
+        mValuePool = createValuePool(DEDUP_MIN_SIZE);
+        mTimingWheel = new TimingWheel(EXPIRY_TICK_MS, this::expire);
+        HashEntity.getInstance().addRingListener(this::onRingChanged);
+        onRingChanged();
+        
+        Stats.register("kvstore_size_bytes", this::getSizeBytes);
+        Stats.register("expired_keys", mExpiredKeys::sum);
+        if (mCachePolicy != null) {
+            Stats.register("cache_hits", mCacheHits::sum);
+            Stats.register("cache_misses", mCacheMisses::sum);
+            Stats.register("cache_hit_ratio", () -> {
+                long hits = mCacheHits.sum();
+                long total = hits + mCacheMisses.sum();
+                return String.format("%.4f", total == 0 ? 0.0 : (double) hits / total);
+            });
+            Stats.register("cache_evictions", mCacheEvictions::sum);
+            Stats.register("cache_weight_bytes", mCachePolicy::getWeight);
+        }
+        if (COMPRESSION_MIN_SIZE >= 0) {
+            // Both are totals over all puts, including values that were overwritten since.
+            Stats.register("compressed_puts", mCompressedPuts::sum);
+            Stats.register("compression_saved_bytes", mCompressionSavedBytes::sum);
+        }
+        if (mValuePool != null) {
+            Stats.register("dedup_unique_bytes", mValuePool::getUniqueBytes);
+            Stats.register("dedup_referenced_bytes", mValuePool::getReferencedBytes);
+            Stats.register("dedup_ratio", () -> {
+                long uniqueBytes = mValuePool.getUniqueBytes();
+                return String.format("%.4f", uniqueBytes == 0 ? 1.0 : (double) mValuePool.getReferencedBytes() / uniqueBytes);
+            });
+        }
+    }
+    
+    private static ValuePool createValuePool(int minSize) {
+        if (minSize < 0) {
+            return null;
+        }
+        // The pool only lives in memory, so it cannot back the entries an engine keeps on disk.
+        if (STORAGE_ENGINE.equals(ENGINE_LSM)) {
+            throw new IllegalArgumentException("Value deduplication is not supported by the lsm storage engine");
+        }
+        return new ValuePool();
+    }
+    
+    private static CachePolicy createCachePolicy(String name) {
+        if (name == null) {
+            return null;
+        }
+        // Off-heap slabs round entries up to their size class, leave room for that.
+        long budget = STORAGE_ENGINE.equals(ENGINE_OFF_HEAP) ? MAX_SIZE_BYTES / 4 * 3 : MAX_SIZE_BYTES;
+        switch(name) {
+        case CACHE_POLICY_TINY_LFU:
+            return new WTinyLfuPolicy(budget);
+        case CACHE_POLICY_LRU:
+            return new LruPolicy(budget);
+        default:
+            throw new IllegalArgumentException("Unknown cache policy: " + name);
+        }
+    }
+    
+    /**
+     * Let the engine repartition, reading the tokens while holding the lock so that the
+     * last change to the ring is always the one the engine ends up with.
+     */
+    private synchronized void onRingChanged() {
+        mEngine.setTokens(HashEntity.getInstance().getTokens());
+    }
+    
+    private static StorageEngine createEngine(String name) {
+        switch(name) {
+        case ENGINE_MAP:
+            return new MapStore(MAX_SIZE_BYTES);
+        case ENGINE_OFF_HEAP:
+            return new OffHeapStore(MAX_SIZE_BYTES);
+        case ENGINE_LSM:
+            try {
+                // MAX_SIZE_BYTES bounds memory here, the data on disk is only bounded by the disk.
+                return new LsmStore(LSM_DIR, MAX_SIZE_BYTES / 8, MAX_SIZE_BYTES / 4);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        default:
+            throw new IllegalArgumentException("Unknown storage engine: " + name);
+        }
     }
     
     /**
@@ -47,81 +238,428 @@ public class KeyValueStore {
         MAX_SIZE_BYTES = maxKeyValueStoreSize;
     }
     
+    public ValuePair put(ByteString key, ByteString value, int version, int[] vectorClock) {
+        return put(key, value, false, version, vectorClock, 0);
+    }
+    
     /**
+     * The put is applied atomically per key inside the storage engine's compute, so writers to
+     * different keys never block each other.
      * 
      * @param key
      * @param value
+     * @param compressed true if value was compressed with BlockCompressor, such as values
+     *  shipped by other nodes, which are stored as is.
      * @param version
      * @param vectorClock
+     * @param expiryTime when the key expires in milliseconds since the epoch, 0 if it never does.
      * 
      * @return the current entry mapped to by key.
      * 
      * @throws OutOfMemoryError if there is no more space to put values into
-     *  the key value store.
+     *  the key value store, never thrown in cache mode.
+     */
+    public ValuePair put(ByteString key, ByteString value, boolean compressed, int version, int[] vectorClock,
+            long expiryTime) {
+        return put(key, value, compressed, version, vectorClock, expiryTime, null, new boolean[1]);
+    }
+    
+    /**
+     * Put a client's value only if the key's current entry is the one expected. The check and the
+     * put are done while the key is locked, so no other put or remove of the key can come in
+     * between.
+     * 
+     * @param key
+     * @param value
+     * @param version
+     * @param expiryTime when the key expires in milliseconds since the epoch, 0 if it never does.
+     * @param expected given the current entry, null if the key is not in the store, returns true
+     *  if the put should be applied. Called while the key is locked.
+     * 
+     * @return whether the put was applied, along with the entry mapped to by key after the call,
+     *  the current entry if the put was not applied.
+     * 
+     * @throws OutOfMemoryError as put does, even if the put would not have been applied.
+     */
+    public CasResult compareAndPut(ByteString key, ByteString value, int version, long expiryTime,
+            Predicate<ValuePair> expected) {
+        boolean[] applied = new boolean[1];
+        ValuePair entry = put(key, value, false, version, null, expiryTime, expected, applied);
+        return new CasResult(applied[0], entry);
+    }
+    
+    /**
+     * Replace the value of a key with one computed from its current value, as a client's put
+     * would, keeping the key's version. The new value is computed outside the key's lock and put
+     * with compareAndPut, computing it again if the key was written in between, so the update is
+     * atomic without holding the lock while the value is compressed or pooled.
+     * 
+     * @param key
+     * @param update given the current value, null if the key is not in the store, returns the
+     *  new value. May throw, in which case the key is left as it is.
+     * @param expiryTime when the key expires in milliseconds since the epoch, 0 if it never does,
+     *  or -1 to keep the current entry's expiry time.
+     * 
+     * @return the new entry mapped to by key.
+     * 
+     * @throws OutOfMemoryError as put does.
+     */
+    public ValuePair update(ByteString key, UnaryOperator<ByteString> update, long expiryTime) {
+        while (true) {
+            ValuePair curEntry = get(key);
+            ByteString newValue = update.apply(curEntry != null ? curEntry.getValue() : null);
+            int version = curEntry != null ? curEntry.version : 0;
+            long newExpiryTime = expiryTime != -1 ? expiryTime : curEntry != null ? curEntry.expiryTime : 0;
+            CasResult result = compareAndPut(key, newValue, version, newExpiryTime,
+                    entry -> entry == null ? curEntry == null : curEntry != null && isSameEntry(entry, curEntry));
+            if (result.applied) {
+                return result.entry;
+            }
+        }
+    }
+    
+    /**
+     * Called while the key is locked, so a pooled entry's value is still in the pool.
+     * @return true if both entries hold the same value, version, vector clock and expiry time,
+     *  even if only one of them refers to the value pool. Engines that keep entries serialized
+     *  return a copy on every get, so entries cannot be compared by reference.
+     */
+    private boolean isSameEntry(ValuePair entry, ValuePair resolvedEntry) {
+        if (entry.version != resolvedEntry.version || entry.expiryTime != resolvedEntry.expiryTime
+                || entry.compressed != resolvedEntry.compressed
+                || !Arrays.equals(entry.vectorClock, resolvedEntry.vectorClock)) {
+            return false;
+        }
+        // Comparing the values as well rules out a key removed and put again with the same clock.
+        ValuePair resolved = resolve(entry);
+        return resolved != null && resolved.value.equals(resolvedEntry.value);
+    }
+    
+    /**
+     * @param expected decides whether the put is applied given the current entry, null to always
+     *  merge the put into the current entry.
+     * @param changed set to true if the stored entry was replaced.
+     * @return the entry mapped to by key after the call, null if the put was not applied and the
+     *  key is not in the store.
      */
-    public synchronized ValuePair put(ByteString key, ByteString value, int version, int[] vectorClock) {
-        if (mSize + key.size() + value.size() + ValuePair.SIZE_META_INFO > MAX_SIZE_BYTES) {
-            throw new OutOfMemoryError();
+    private ValuePair put(ByteString key, ByteString value, boolean compressed, int version, int[] vectorClock,
+            long expiryTime, Predicate<ValuePair> expected, boolean[] changed) {
+        ByteString storedValue = value;
+        boolean storedCompressed = compressed;
+        if (!compressed && COMPRESSION_MIN_SIZE >= 0 && value.size() >= COMPRESSION_MIN_SIZE) {
+            // Only keep the compressed value if it saves at least an eighth, the compressor gives
+            // up as soon as it cannot.
+            ByteString compressedValue = BlockCompressor.compress(value, value.size() - value.size() / 8);
+            if (compressedValue != null) {
+                storedValue = compressedValue;
+                storedCompressed = true;
+                mCompressedPuts.increment();
+                mCompressionSavedBytes.add(value.size() - compressedValue.size());
+            }
+        }
+        ByteString digest = null;
+        if (mValuePool != null && storedValue.size() >= DEDUP_MIN_SIZE && storedValue.size() > ValuePool.SIZE_DIGEST) {
+            digest = ValuePool.digest(storedValue);
+        }
+        if (mCachePolicy == null) {
+            checkCapacity(key, storedValue, digest);
+        }
+        if (digest != null && !mValuePool.acquire(digest, storedValue)) {
+            // The digest is taken by another value, store this one as is.
+            digest = null;
         }
         
-    	ValuePair entry = mKeyValMap.get(key);
+        ByteString newValue = digest != null ? digest : storedValue;
+        ByteString fullValue = storedValue;
+        boolean newCompressed = storedCompressed;
+        boolean newPooled = digest != null;
+        long[] lsn = new long[1];
+        // The entry with its value, even if the stored entry refers to the value pool.
+        ValuePair[] entryHolder = new ValuePair[1];
+        boolean stored = false;
+        try {
+            compute(key, curEntry -> {
+                if (expected != null) {
+                    ValuePair liveEntry = curEntry != null && !curEntry.isExpired(System.currentTimeMillis()) ? curEntry : null;
+                    if (!expected.test(liveEntry)) {
+                        // The key is locked, so the current entry's value is still in the pool.
+                        entryHolder[0] = liveEntry != null ? resolve(liveEntry) : null;
+                        return curEntry;
+                    }
+                }
+                ValuePair newEntry = merge(curEntry, newValue, newCompressed, newPooled, version, vectorClock, expiryTime);
+                if (newEntry != curEntry) {
+                    changed[0] = true;
+                    entryHolder[0] = newPooled
+                            ? new ValuePair(fullValue, newCompressed, newEntry.version, newEntry.vectorClock, newEntry.expiryTime)
+                            : newEntry;
+                    if (mWriteAheadLog != null) {
+                        // Logged while the key is locked so the log has the same order as the store.
+                        lsn[0] = mWriteAheadLog.appendPut(key, entryHolder[0]);
+                    }
+                } else {
+                    // The key is locked, so the current entry's value is still in the pool.
+                    entryHolder[0] = resolve(curEntry);
+                }
+                return newEntry;
+            });
+            stored = true;
+        } finally {
+            if (newPooled && !(stored && changed[0])) {
+                mValuePool.release(digest);
+            }
+        }
+        commit(lsn[0]);
+        ValuePair entry = entryHolder[0];
+        if (changed[0] && entry.expiryTime != 0) {
+            mTimingWheel.schedule(key, entry.expiryTime);
+        }
+        if (mCachePolicy != null) {
+            if (expected == null || changed[0]) {
+                mCachePolicy.recordWrite(key, getWeight(key, entry), this::evict);
+            } else {
+                mCachePolicy.recordRead(key, entry != null);
+            }
+        }
         
+        return entry;
+    }
+    
+    /**
+     * Atomically replace the entry mapped to by key.
+     * @param key the key.
+     * @param remapping given the current entry (null if none) returns the entry to store,
+     *  returning the current entry leaves the store unchanged and returning null removes the key.
+     * @return the entry mapped to by key after the call.
+     */
+    private ValuePair compute(ByteString key, UnaryOperator<ValuePair> remapping) {
+        if (mValuePool == null) {
+            return mEngine.compute(key, remapping);
+        }
+        ValuePair[] replaced = new ValuePair[1];
+        ValuePair entry = mEngine.compute(key, curEntry -> {
+            ValuePair newEntry = remapping.apply(curEntry);
+            replaced[0] = newEntry != curEntry ? curEntry : null;
+            return newEntry;
+        });
+        // Only released once the engine no longer refers to the value, readers that got the
+        // replaced entry before that and find its value gone read the key again.
+        if (replaced[0] != null && replaced[0].pooled) {
+            mValuePool.release(replaced[0].value);
+        }
+        return entry;
+    }
+    
+    /**
+     * @throws OutOfMemoryError if an entry of key and value does not fit, counting only the
+     *  digest for a value that is already pooled.
+     */
+    private void checkCapacity(ByteString key, ByteString value, ByteString digest) {
+        mEngine.checkCapacity(key, digest != null ? digest : value);
+        if (mValuePool != null) {
+            long size = key.size() + ValuePair.SIZE_META_INFO;
+            if (digest == null) {
+                size += value.size();
+            } else {
+                size += digest.size() + (mValuePool.contains(digest) ? 0 : value.size());
+            }
+            if (getSizeBytes() + size > MAX_SIZE_BYTES) {
+                throw new OutOfMemoryError();
+            }
+        }
+    }
+    
+    /**
+     * @return the entry with its value pooled if it is large enough, the entry itself otherwise.
+     */
+    private ValuePair intern(ValuePair entry) {
+        if (mValuePool == null || entry.value.size() < DEDUP_MIN_SIZE || entry.value.size() <= ValuePool.SIZE_DIGEST) {
+            return entry;
+        }
+        ByteString digest = ValuePool.digest(entry.value);
+        if (!mValuePool.acquire(digest, entry.value)) {
+            return entry;
+        }
+        return new ValuePair(digest, entry.compressed, true, entry.version, entry.vectorClock, entry.expiryTime);
+    }
+    
+    /**
+     * @return the entry with its value taken from the pool if it is pooled, or null if the value
+     *  is no longer in the pool because the entry was replaced since it was read.
+     */
+    private ValuePair resolve(ValuePair entry) {
+        if (!entry.pooled) {
+            return entry;
+        }
+        ByteString value = mValuePool.get(entry.value);
+        if (value == null) {
+            return null;
+        }
+        return new ValuePair(value, entry.compressed, entry.version, entry.vectorClock, entry.expiryTime);
+    }
+    
+    private void commit(long lsn) {
+        if (lsn != 0) {
+            mWriteAheadLog.commit(lsn);
+        }
+    }
+    
+    /**
+     * Rebuild the store from a write ahead log and log all further mutations to it.
+     * Must be called before the store starts serving requests.
+     * @param file the log file.
+     * @param fromGeneration the first log generation to replay, as returned by loadCheckpoint.
+     * @param syncMode when log records are forced to disk.
+     * @param syncIntervalMs the force interval for SyncMode.Interval.
+     * @throws IOException if the log cannot be read or opened.
+     */
+    public void openWriteAheadLog(File file, long fromGeneration, SyncMode syncMode, int syncIntervalMs) throws IOException {
+        mWriteAheadLog = WriteAheadLog.open(file, fromGeneration, syncMode, syncIntervalMs, new WriteAheadLog.ReplayListener() {
+            @Override
+            public void onPut(ByteString key, ValuePair pair) {
+                restore(key, pair);
+            }
+            
+            @Override
+            public void onRemove(ByteString key) {
+                compute(key, entry -> null);
+                if (mCachePolicy != null) {
+                    mCachePolicy.recordRemove(key);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Load the store from a checkpoint, must be called before the store starts serving requests.
+     * @param file the checkpoint file.
+     * @param numThreads the number of threads used to load the checkpoint.
+     * @return the first write ahead log generation that has to be replayed on top of the checkpoint,
+     *  0 if there is no checkpoint.
+     * @throws IOException if the checkpoint exists but cannot be loaded.
+     */
+    public long loadCheckpoint(File file, int numThreads) throws IOException {
+        if (!file.exists()) {
+            System.out.println("[INFO]: No checkpoint found at " + file);
+            return 0;
+        }
+        return Checkpoint.load(file, this::restore, numThreads);
+    }
+    
+    private void restore(ByteString key, ValuePair pair) {
+        if (pair.isExpired(System.currentTimeMillis())) {
+            // Restoring an expired entry still has to replace what was restored before it.
+            compute(key, entry -> null);
+            if (mCachePolicy != null) {
+                mCachePolicy.recordRemove(key);
+            }
+            return;
+        }
+        ValuePair storedPair = intern(pair);
+        compute(key, entry -> storedPair);
+        if (pair.expiryTime != 0) {
+            mTimingWheel.schedule(key, pair.expiryTime);
+        }
+        if (mCachePolicy != null) {
+            mCachePolicy.recordWrite(key, getWeight(key, pair), this::evict);
+        }
+    }
+    
+    /**
+     * Periodically write the contents of the store to a checkpoint, writers are not stopped while a
+     * checkpoint is written. If a write ahead log is open, the generations covered by a checkpoint are
+     * deleted once it has been written.
+     * @param file the checkpoint file.
+     * @param intervalSec the number of seconds between checkpoints.
+     */
+    public void startCheckpoints(File file, int intervalSec) {
+        // Use a dedicated thread, a checkpoint can take a while and Util.scheduler runs the timers.
+        ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor();
+        checkpointer.scheduleWithFixedDelay(() -> {
+            try {
+                writeCheckpoint(file);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, intervalSec, intervalSec, TimeUnit.SECONDS);
+    }
+    
+    private void writeCheckpoint(File file) throws IOException {
+        long startTime = System.nanoTime();
+        WriteAheadLog wal = mWriteAheadLog;
+        // Everything before the roll is already in the store (or about to be, for writes in flight,
+        // which is why the rolled generation is kept), so the new checkpoint covers it.
+        long walGeneration = wal == null ? 0 : wal.roll();
+        long numEntries = Checkpoint.write(file, this::forEachResolved, walGeneration);
+        if (wal != null) {
+            wal.deleteGenerationsBefore(walGeneration);
+        }
+        System.out.println(String.format("[INFO]: Wrote checkpoint of %d entries in %dms", numEntries,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)));
+    }
+    
+    /**
+     * Decide which entry should be stored given the current entry and an incoming put.
+     * @param entry the current entry, null if key is not in store.
+     * @param value the incoming value.
+     * @param compressed true if the incoming value is compressed.
+     * @param pooled true if the incoming value is the digest of a pooled value.
+     * @param version the incoming version.
+     * @param vectorClock the incoming vector clock, null if the put came from a client.
+     * @param expiryTime the incoming expiry time, 0 if none.
+     * @return the entry to store, which is entry itself if the put should be ignored.
+     */
+    private ValuePair merge(ValuePair entry, ByteString value, boolean compressed, boolean pooled, int version,
+            int[] vectorClock, long expiryTime) {
         // if entry is in store
         if (entry != null) {
-        	int[] curVClock = entry.vectorClock;
-        	
             if (vectorClock == null) {
                 // Case1: request is received from the client
-                curVClock = VectorClock.incrementVectorClock(curVClock, DirectRoute.getInstance().getSelfNodeId());
-            	
-                entry = new ValuePair(value, version, curVClock);
-                mKeyValMap.put(key, entry);
-            }
-            else {
-                CompareResult compResult = VectorClock.compareVectorClock(vectorClock, curVClock);
-                
-                // Case2: Request received from another node
-                switch(compResult) {
-                case Larger:
-                    entry = new ValuePair(value, version, vectorClock);
-                    mKeyValMap.put(key, entry);
-                    break;
-                case Uncomparable:
-                    // If Uncomparable: We can pick either current or received value.
-                    // We pick one value randomly so that if this does happen it will eventually
-                    // lead to one consistent version throughout the key store, if we always
-                    // deterministically pick one then we could end up having two divergent copies
-                    // forever.
-                    if (Util.rand.nextBoolean()) {
-                        entry = new ValuePair(value, version, vectorClock);
-                        mKeyValMap.put(key, entry);
-                        break;
-                    }
-                default:
-                    // If Smaller: Ignore PUT, since it is old value.
-                    // If Equal: The two values should be the same so nothing needs to be done.
-                    return entry;
+                // Copy the clock since readers might be holding on to the current entry.
+                int[] curVClock = VectorClock.incrementVectorClock(entry.vectorClock.clone(), getSelfNodeId());
+                return new ValuePair(value, compressed, pooled, version, curVClock, expiryTime);
+            }
+            CompareResult compResult = VectorClock.compareVectorClock(vectorClock, entry.vectorClock);
+            
+            // Case2: Request received from another node
+            switch(compResult) {
+            case Larger:
+                return new ValuePair(value, compressed, pooled, version, vectorClock, expiryTime);
+            case Uncomparable:
+                // If Uncomparable: We can pick either current or received value.
+                // We pick one value randomly so that if this does happen it will eventually
+                // lead to one consistent version throughout the key store, if we always
+                // deterministically pick one then we could end up having two divergent copies
+                // forever.
+                if (ThreadLocalRandom.current().nextBoolean()) {
+                    return new ValuePair(value, compressed, pooled, version, vectorClock, expiryTime);
                 }
+            default:
+                // If Smaller: Ignore PUT, since it is old value.
+                // If Equal: The two values should be the same so nothing needs to be done.
+                return entry;
             }
-            mSize -= (key.size() + entry.value.size() + ValuePair.SIZE_META_INFO);
         }
-        else {
-            // if entry is not in store
-            int[] newVClock;
-            if (vectorClock == null) {
-                // Case 1: request is from client.
-                newVClock = VectorClock.create(DirectRoute.getInstance().getSelfNodeId(), 1);
-            }
-            else {
-                // Case 2: request is from other node.
-                newVClock = vectorClock;
-            }
-            entry = new ValuePair(value, version, newVClock);
-            mKeyValMap.put(key, entry);
+        // if entry is not in store
+        if (vectorClock == null) {
+            // Case 1: request is from client.
+            return new ValuePair(value, compressed, pooled, version, VectorClock.create(getSelfNodeId(), 1), expiryTime);
         }
-        mSize += key.size() + value.size() + ValuePair.SIZE_META_INFO;
-        
-        return entry;
+        // Case 2: request is from other node.
+        return new ValuePair(value, compressed, pooled, version, vectorClock, expiryTime);
+    }
+    
+    private static int getWeight(ByteString key, ValuePair entry) {
+        return key.size() + entry.value.size() + ValuePair.SIZE_META_INFO;
+    }
+    
+    private int getSelfNodeId() {
+        int selfNodeId = mSelfNodeId;
+        if (selfNodeId == -1) {
+            selfNodeId = DirectRoute.getInstance().getSelfNodeId();
+            mSelfNodeId = selfNodeId;
+        }
+        return selfNodeId;
     }
     
     /**
@@ -131,7 +669,36 @@ public class KeyValueStore {
      * @return the key value pair if it exists, otherwise null is returned.
      */
     public ValuePair get(ByteString key) {
-        return mKeyValMap.get(key);
+        ValuePair entry = peek(key);
+        if (mCachePolicy != null) {
+            mCachePolicy.recordRead(key, entry != null);
+            (entry != null ? mCacheHits : mCacheMisses).increment();
+        }
+        return entry;
+    }
+
+    /**
+     * Get value pair from the key store like get, without counting it as a read of the key for
+     * the cache policy, e.g. for a scan.
+     * @param key the key in the key value store.
+     * @return the key value pair if it exists, otherwise null is returned.
+     */
+    public ValuePair peek(ByteString key) {
+        ValuePair entry = mEngine.get(key);
+        while (entry != null && entry.pooled) {
+            ValuePair resolved = resolve(entry);
+            if (resolved != null) {
+                entry = resolved;
+                break;
+            }
+            // The value was released by a concurrent put or remove of the key, read the key again.
+            entry = mEngine.get(key);
+        }
+        if (entry != null && entry.isExpired(System.currentTimeMillis())) {
+            // Not reclaimed by the timing wheel yet.
+            entry = null;
+        }
+        return entry;
     }
     
     /**
@@ -140,29 +707,148 @@ public class KeyValueStore {
      * @return true if key was mapped to a value pair and that value pair
      *  was removed, false if key was not mapped to any value pair.
      */
-    public synchronized boolean remove(ByteString key) {
-        ValuePair prevVal = mKeyValMap.remove(key);
-        if (prevVal != null) {
-            mSize -= (key.size() + prevVal.value.size() + ValuePair.SIZE_META_INFO);
-            return true;
+    public boolean remove(ByteString key) {
+        boolean removed = removeEntry(key);
+        if (mCachePolicy != null) {
+            mCachePolicy.recordRemove(key);
+        }
+        return removed;
+    }
+    
+    /**
+     * Remove a key chosen for eviction by the cache policy. Called after the policy is unlocked, so
+     * a key written again in the meantime is removed all the same, and stays in the policy until it
+     * is chosen again or removed.
+     */
+    private void evict(ByteString key) {
+        removeEntry(key);
+        mCacheEvictions.increment();
+    }
+    
+    private boolean removeEntry(ByteString key) {
+        boolean[] removed = new boolean[1];
+        long[] lsn = new long[1];
+        long now = System.currentTimeMillis();
+        compute(key, entry -> {
+            if (entry != null) {
+                // An expired key is removed all the same, but to the client it did not exist.
+                removed[0] = !entry.isExpired(now);
+                if (mWriteAheadLog != null) {
+                    lsn[0] = mWriteAheadLog.appendRemove(key);
+                }
+            }
+            return null;
+        });
+        commit(lsn[0]);
+        return removed[0];
+    }
+    
+    /**
+     * Called by the timing wheel once a key's expiry time has passed.
+     */
+    private void expire(ByteString key, long expiryTime) {
+        boolean[] expired = new boolean[1];
+        long[] lsn = new long[1];
+        long now = System.currentTimeMillis();
+        compute(key, entry -> {
+            // The key may have been put again since the timer was scheduled.
+            if (entry == null || !entry.isExpired(now)) {
+                return entry;
+            }
+            expired[0] = true;
+            if (mWriteAheadLog != null) {
+                lsn[0] = mWriteAheadLog.appendRemove(key);
+            }
+            return null;
+        });
+        commit(lsn[0]);
+        if (expired[0]) {
+            mExpiredKeys.increment();
+            if (mCachePolicy != null) {
+                mCachePolicy.recordRemove(key);
+            }
         }
-        return false;
     }
     
     /**
      * Remove all keys currently in the key store.
      */
-    public synchronized void removeAll() {
-        mSize = 0;
-        mKeyValMap.clear();
+    public void removeAll() {
+        // Remove key by key so that removals are logged and consistent with concurrent puts.
+        mEngine.forEach((key, entry) -> remove(key));
+    }
+    
+    /**
+     * Pass every entry in the store to the consumer, without taking a snapshot of the keys first.
+     * Entries may be changed while this is running, including by the consumer. Expired entries
+     * are skipped.
+     * @param consumer receives each key and its entry.
+     */
+    public void forEach(BiConsumer<ByteString, ValuePair> consumer) {
+        forEachResolved(skipExpired(consumer));
+    }
+    
+    /**
+     * Like forEach, including expired entries. Entries replaced while they are visited may be
+     * skipped, since their pooled value may be gone.
+     */
+    private void forEachResolved(BiConsumer<ByteString, ValuePair> consumer) {
+        if (mValuePool == null) {
+            mEngine.forEach(consumer);
+            return;
+        }
+        mEngine.forEach((key, entry) -> {
+            ValuePair resolved = resolve(entry);
+            if (resolved != null) {
+                consumer.accept(key, resolved);
+            }
+        });
+    }
+    
+    /**
+     * Pass every entry whose key hashes into one of the ranges to the visitor, along with the
+     * index of its range and its position on the ring. Keys are classified by the ring position
+     * stored with them where the storage engine keeps it, and only the partitions of the ranges
+     * are visited if the engine is partitioned by virtual node. Expired entries are skipped.
+     * @param ranges ranges of the hash ring, such as the ranges of some virtual nodes.
+     * @param visitor receives each key, its entry, the index of its range and its position.
+     */
+    public void forEachInRanges(List<TokenRange> ranges, RangeVisitor visitor) {
+        mEngine.forEachInRanges(ranges, (rangeIndex, position, key, entry) -> {
+            if (!entry.isExpired(System.currentTimeMillis())) {
+                ValuePair resolved = resolve(entry);
+                if (resolved != null) {
+                    visitor.visit(rangeIndex, position, key, resolved);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Pass every key that hashes into one of the ranges to the visitor, like forEachInRanges but
+     * without reading the entries where the storage engine can avoid it, so pooled values are not
+     * looked up and values are not copied. Expired keys are passed as well.
+     * @param ranges ranges of the hash ring.
+     * @param visitor receives each key, the index of its range and its position.
+     */
+    public void forEachKeyInRanges(List<TokenRange> ranges, RangeKeyVisitor visitor) {
+        mEngine.forEachKeyInRanges(ranges, visitor);
+    }
+    
+    private static BiConsumer<ByteString, ValuePair> skipExpired(BiConsumer<ByteString, ValuePair> consumer) {
+        return (key, entry) -> {
+            if (!entry.isExpired(System.currentTimeMillis())) {
+                consumer.accept(key, entry);
+            }
+        };
     }
     
     /**
-     * Obtain set of all keys in KVStore
-     * @return set of keys
+     * @return the number of bytes taken up by the entries in the store, values shared through
+     *  the value pool are counted once.
      */
-    public Set<ByteString> getKeys() {
-    	return mKeyValMap.keySet();
+    public long getSizeBytes() {
+        return mValuePool == null ? mEngine.getSizeBytes() : mEngine.getSizeBytes() + mValuePool.getSizeBytes();
     }
     
     public static synchronized KeyValueStore getInstance() {
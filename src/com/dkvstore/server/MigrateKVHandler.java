@@ -16,6 +16,8 @@ import com.dkvstore.server.distribution.DirectRoute;
 import com.dkvstore.server.distribution.HashEntity;
 import com.dkvstore.server.distribution.RouteStrategy;
 import com.dkvstore.server.distribution.RouteStrategy.AddressHolder;
+import com.dkvstore.server.distribution.TokenRange;
+import com.dkvstore.server.distribution.VirtualNode;
 import com.google.protobuf.ByteString;
 
 import ca.NetSysLab.ProtocolBuffers.KeyValueRequest;
@@ -88,73 +90,37 @@ public class MigrateKVHandler implements KVClient.OnResponseReceivedListener {
     }
 
     public class MigrateKVTask implements Runnable {
+        private final KeyValueRequest.KVRequest.Builder kvReqBuilder = KeyValueRequest.KVRequest.newBuilder();
+        private final HashEntity hashEntity = HashEntity.getInstance();
+        private Set<Integer> nodeIdSet;
+        private final List<VirtualNode> rangeVNodes = new ArrayList<>();
+        private int tries = 0;
+        private int numKeysMigrated = 0;
+        
         @Override
         public void run() {
-            Set<Integer> nodeIdSet = new HashSet<>();
+            nodeIdSet = new HashSet<>();
             synchronized(mHandler) {
                 nodeIdSet.addAll(mJoiningNodeIdx);
                 mTimerStarted = false;
             }
             try {
-                KeyValueStore kvStore = KeyValueStore.getInstance();
-            	HashEntity hashEntity = HashEntity.getInstance(); 	
-            	Set<ByteString> keySet = KeyValueStore.getInstance().getKeys();
-            	ValuePair vPair;
-            	int tries = 0;
-        
-            	byte[] dataBuf;
-                NetworkMessage message;
-                KeyValueRequest.KVRequest.Builder kvReqBuilder = KeyValueRequest.KVRequest.newBuilder();
-        
-                int nodeId;
-
                 System.out.println("[INFO]: Starting migration task");
                 System.out.println(String.format("[INFO]: Migrated nodeIds: %s", Arrays.asList(nodeIdSet).toString()));
-                System.out.println(String.format("[INFO]: Migration checking %d keys", keySet.size()));
-                int numKeysMigrated = 0;
                 
-            	for(ByteString key : keySet) {
-            	    nodeId = hashEntity.getKVNodeId(key);
-                	
-                	if (tries == NUM_OF_PUTS) {
-                		tries = 0;
-                        try {
-                            Thread.sleep(RETRY_INTERVAL);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+                // Only visit the ranges of the joining nodes' virtual nodes, the rest of the store is
+                // unaffected. Every key in a range belongs to the range's virtual node.
+                List<TokenRange> ranges = new ArrayList<>();
+                for (int nodeId : nodeIdSet) {
+                    VirtualNode[] vnodes = hashEntity.getVNodeMap().get(nodeId);
+                    if (vnodes != null) {
+                        for (VirtualNode vnode : vnodes) {
+                            ranges.add(hashEntity.getTokenRange(vnode));
+                            rangeVNodes.add(vnode);
                         }
-                	} else {
-                		tries++;
-                	}
-                    if (nodeIdSet.contains(nodeId)) {
-            			// send put request to new node
-                        numKeysMigrated++;
-                        
-            			vPair = kvStore.get(key);
-            			AddressHolder toAddress = mRouteStrat.getRoute(nodeId);
-            			
-            			kvReqBuilder.setCommand(Protocol.PUT)
-                        .setKey(key)                            
-                        .setValue(vPair.value)
-                        .setVersion(vPair.version);
-            			
-                        // set the vector clock
-                        kvReqBuilder.clearVectorClock();
-                        for(int i = 0; i < vPair.vectorClock.length; i++) {
-                            kvReqBuilder.addVectorClock(vPair.vectorClock[i]);
-                        }
-                        
-            			dataBuf = kvReqBuilder
-                                .build()
-                                .toByteArray();
-
-	                    message = new NetworkMessage(Util.getUniqueId(toAddress.port));
-	                    message.setPayload(dataBuf);
-	                    message.setAddressAndPort(toAddress.address, toAddress.port);
-	                    mKVClient.send(message, null);
-	                    kvStore.remove(key);
-                	}
+                    }
                 }
+                KeyValueStore.getInstance().forEachInRanges(ranges, this::migrate);
             	
             	System.out.println(String.format("[INFO]: Migrated %d keys", numKeysMigrated));
             } catch (Exception e2) {
@@ -165,6 +131,52 @@ public class MigrateKVHandler implements KVClient.OnResponseReceivedListener {
                 }   
             }
         }
+        
+        private void migrate(int rangeIndex, long position, ByteString key, ValuePair vPair) {
+            int nodeId = rangeVNodes.get(rangeIndex).getPNodeId();
+            
+            if (tries == NUM_OF_PUTS) {
+                tries = 0;
+                try {
+                    Thread.sleep(RETRY_INTERVAL);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            } else {
+                tries++;
+            }
+            // send put request to new node
+            numKeysMigrated++;
+            
+            AddressHolder toAddress = mRouteStrat.getRoute(nodeId);
+            
+            kvReqBuilder.setCommand(Protocol.PUT)
+            .setKey(key)                            
+            .setValue(vPair.value)
+            .setIsCompressed(vPair.compressed)
+            .setVersion(vPair.version);
+            if (vPair.expiryTime != 0) {
+                kvReqBuilder.setExpiryTimeMs(vPair.expiryTime);
+            } else {
+                kvReqBuilder.clearExpiryTimeMs();
+            }
+            
+            // set the vector clock
+            kvReqBuilder.clearVectorClock();
+            for(int i = 0; i < vPair.vectorClock.length; i++) {
+                kvReqBuilder.addVectorClock(vPair.vectorClock[i]);
+            }
+            
+            byte[] dataBuf = kvReqBuilder
+                    .build()
+                    .toByteArray();
+
+            NetworkMessage message = new NetworkMessage(Util.getUniqueId(toAddress.port));
+            message.setPayload(dataBuf);
+            message.setAddressAndPort(toAddress.address, toAddress.port);
+            mKVClient.send(message, null);
+            KeyValueStore.getInstance().remove(key);
+        }
     }
 
     
@@ -1,11 +1,13 @@
 package com.dkvstore.server;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SelectionKey;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.net.StandardSocketOptions;
 
 import com.dkvstore.NetworkMessage;
@@ -17,6 +19,7 @@ import com.dkvstore.server.distribution.EpidemicProtocol;
 import com.dkvstore.server.distribution.HashEntity;
 import com.dkvstore.server.distribution.NodeTable;
 import com.dkvstore.server.distribution.PeriodicKVCheckup;
+import com.dkvstore.server.storage.WriteAheadLog.SyncMode;
 
 public final class ReactorServer {
     private ExecutorService mThreadPool;
@@ -115,11 +118,29 @@ public final class ReactorServer {
         final String COMMAND_MAX_CACHE_SIZE = "--max-cache-size";
         final String COMMAND_QUEUE_SIZE = "--queue-size";
         final String COMMAND_REPLICATION_FACTOR = "--replication-factor";
+        final String COMMAND_READ_QUORUM = "--read-quorum";
+        final String COMMAND_WRITE_QUORUM = "--write-quorum";
+        final String COMMAND_HEDGE_BUDGET = "--hedge-budget";
+        final String COMMAND_STORAGE_ENGINE = "--storage-engine";
+        final String COMMAND_CACHE_MODE = "--cache-mode";
+        final String COMMAND_LSM_DIR = "--lsm-dir";
+        final String COMMAND_COMPRESS_VALUES = "--compress-values";
+        final String COMMAND_DEDUP_VALUES = "--dedup-values";
+        final String COMMAND_WAL_FILE = "--wal-file";
+        final String COMMAND_WAL_SYNC = "--wal-sync";
+        final String COMMAND_WAL_SYNC_INTERVAL = "--wal-sync-interval";
+        final String COMMAND_CHECKPOINT_FILE = "--checkpoint-file";
+        final String COMMAND_CHECKPOINT_INTERVAL = "--checkpoint-interval";
         
         int threadPoolSize = 2;
         int port = 50111;
         boolean isLocal = false;
         int numVNodes = 1;
+        String walFile = null;
+        SyncMode walSyncMode = SyncMode.Interval;
+        int walSyncInterval = 10;
+        String checkpointFile = null;
+        int checkpointInterval = 300;
         for (int i = 0; i < args.length; i += 2) {
             switch(args[i]) {
             case COMMAND_THREAD_POOL_SIZE:
@@ -157,6 +178,72 @@ public final class ReactorServer {
                     Protocol.REPLICATION_FACTOR = 1;  
                 }
                 break;
+            case COMMAND_READ_QUORUM:
+                Protocol.READ_QUORUM = Math.max(Integer.parseInt(args[i+1]), 1);
+                break;
+            case COMMAND_WRITE_QUORUM:
+                Protocol.WRITE_QUORUM = Math.max(Integer.parseInt(args[i+1]), 1);
+                break;
+            case COMMAND_HEDGE_BUDGET:
+                PeriodicKVClient.HEDGE_BUDGET_PERCENT = Math.max(Integer.parseInt(args[i+1]), 0);
+                break;
+            case COMMAND_STORAGE_ENGINE:
+                switch(args[i+1]) {
+                case KeyValueStore.ENGINE_MAP:
+                case KeyValueStore.ENGINE_OFF_HEAP:
+                case KeyValueStore.ENGINE_LSM:
+                    KeyValueStore.STORAGE_ENGINE = args[i+1];
+                    break;
+                default:
+                    System.out.println("Unknown storage engine: " + args[i+1]);
+                }
+                break;
+            case COMMAND_CACHE_MODE:
+                switch(args[i+1]) {
+                case KeyValueStore.CACHE_POLICY_TINY_LFU:
+                case KeyValueStore.CACHE_POLICY_LRU:
+                    KeyValueStore.CACHE_POLICY = args[i+1];
+                    break;
+                default:
+                    System.out.println("Unknown cache policy: " + args[i+1]);
+                }
+                break;
+            case COMMAND_LSM_DIR:
+                KeyValueStore.LSM_DIR = new File(args[i+1]);
+                break;
+            case COMMAND_COMPRESS_VALUES:
+                KeyValueStore.COMPRESSION_MIN_SIZE = Integer.parseInt(args[i+1]);
+                break;
+            case COMMAND_DEDUP_VALUES:
+                KeyValueStore.DEDUP_MIN_SIZE = Integer.parseInt(args[i+1]);
+                break;
+            case COMMAND_WAL_FILE:
+                walFile = args[i+1];
+                break;
+            case COMMAND_WAL_SYNC:
+                switch(args[i+1]) {
+                case "always":
+                    walSyncMode = SyncMode.Always;
+                    break;
+                case "interval":
+                    walSyncMode = SyncMode.Interval;
+                    break;
+                case "os":
+                    walSyncMode = SyncMode.OsManaged;
+                    break;
+                default:
+                    System.out.println("Unknown write ahead log sync mode: " + args[i+1]);
+                }
+                break;
+            case COMMAND_WAL_SYNC_INTERVAL:
+                walSyncInterval = Integer.parseInt(args[i+1]);
+                break;
+            case COMMAND_CHECKPOINT_FILE:
+                checkpointFile = args[i+1];
+                break;
+            case COMMAND_CHECKPOINT_INTERVAL:
+                checkpointInterval = Integer.parseInt(args[i+1]);
+                break;
             default:
                 System.out.println("Unknown option: " + args[i]);    
             }
@@ -171,13 +258,48 @@ public final class ReactorServer {
         int kvStoreSize = KeyValueStore.MAX_SIZE_BYTES;
         kvStoreSize /= (1024 * 1024);
         System.out.println("Max key value store size: " + kvStoreSize + "MB");
+        System.out.println("Storage engine: " + KeyValueStore.STORAGE_ENGINE);
+        if (KeyValueStore.CACHE_POLICY != null) {
+            System.out.println("Cache mode eviction policy: " + KeyValueStore.CACHE_POLICY);
+        }
+        if (KeyValueStore.COMPRESSION_MIN_SIZE >= 0) {
+            System.out.println("Compressing values of at least " + KeyValueStore.COMPRESSION_MIN_SIZE + " bytes");
+        }
+        if (KeyValueStore.DEDUP_MIN_SIZE >= 0) {
+            System.out.println("Deduplicating values of at least " + KeyValueStore.DEDUP_MIN_SIZE + " bytes");
+        }
+        if (KeyValueStore.STORAGE_ENGINE.equals(KeyValueStore.ENGINE_LSM)) {
+            System.out.println("LSM directory: " + KeyValueStore.LSM_DIR);
+        }
         int msgCacheSize = MessageCache.SIZE_MAX_CACHE;
         msgCacheSize /= (1024 * 1024);
         System.out.println("Max message cache size: " + msgCacheSize + "MB");
         
         System.out.println("Replication factor: " + Protocol.REPLICATION_FACTOR);
+        System.out.println("Read quorum: " + Protocol.READ_QUORUM + ", write quorum: " + Protocol.WRITE_QUORUM);
+        System.out.println("Hedge budget: " + PeriodicKVClient.HEDGE_BUDGET_PERCENT + "%");
         System.out.println("Queue size for kv clients: " + QUEUE_SIZE);
         
+        // Restore the key value store before the reactor starts serving requests.
+        long restoreStartTime = System.nanoTime();
+        long walGeneration = 0;
+        if (checkpointFile != null) {
+            System.out.println(String.format("Checkpoint: %s, checkpoint interval: %ds", checkpointFile, checkpointInterval));
+            walGeneration = KeyValueStore.getInstance().loadCheckpoint(new File(checkpointFile),
+                    Runtime.getRuntime().availableProcessors());
+        }
+        if (walFile != null) {
+            System.out.println(String.format("Write ahead log: %s, sync mode: %s, sync interval: %dms", walFile, walSyncMode, walSyncInterval));
+            KeyValueStore.getInstance().openWriteAheadLog(new File(walFile), walGeneration, walSyncMode, walSyncInterval);
+        }
+        if (checkpointFile != null || walFile != null) {
+            System.out.println(String.format("[INFO]: Restored key value store in %dms",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - restoreStartTime)));
+        }
+        if (checkpointFile != null && checkpointInterval > 0) {
+            KeyValueStore.getInstance().startCheckpoints(new File(checkpointFile), checkpointInterval);
+        }
+        
         HashEntity.setNumVNodes(numVNodes);
         NodeTable.makeInstance(isLocal);
         DirectRoute.getInstance();
@@ -28,18 +28,28 @@ public class ReadEventHandler implements EventHandler {
     public void handleEvent(SelectionKey key) {
         DatagramChannel channel = (DatagramChannel) key.channel();
         try {
+            int localPort = channel.socket().getLocalPort();
+            if (localPort == ReactorServer.KEY_VALUE_PORT) {
+                // Requests are received straight into a pooled task's buffer and decoded in place.
+                KeyValueRequestTask task = KeyValueRequestTask.obtain(channel);
+                SocketAddress addr = channel.receive(task.getReceiveBuffer());
+                if (addr == null) {
+                    task.release();
+                    return;
+                }
+                task.getReceiveBuffer().flip();
+                task.setAddress((InetSocketAddress) addr);
+                mThreadPool.execute(task);
+                return;
+            }
+            
             mInputBuffer.clear();
-            SocketAddress addr = channel.receive(mInputBuffer);
+            channel.receive(mInputBuffer);
             mInputBuffer.flip();
             byte[] buffer = new byte[mInputBuffer.limit()];
             mInputBuffer.get(buffer);
             
-            int localPort = channel.socket().getLocalPort();
-            if (localPort == ReactorServer.KEY_VALUE_PORT) {
-                mThreadPool
-                    .execute(new KeyValueRequestTask(channel, (InetSocketAddress) addr,  buffer));
-            }
-            else if (localPort == EpidemicProtocol.EPIDEMIC_SRC_PORT) {
+            if (localPort == EpidemicProtocol.EPIDEMIC_SRC_PORT) {
                 mThreadPool
                     .execute(new EpidemicProtocol.EpidemicReceiveTask(buffer));
             }
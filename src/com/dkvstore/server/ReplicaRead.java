@@ -0,0 +1,449 @@
+package com.dkvstore.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.dkvstore.NetworkMessage;
+import com.dkvstore.Protocol;
+import com.dkvstore.Util;
+import com.dkvstore.client.KVClient;
+import com.dkvstore.client.PeerStats;
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.dkvstore.server.distribution.DirectRoute;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.RouteStrategy.AddressHolder;
+import com.dkvstore.server.distribution.VectorClock;
+import com.dkvstore.server.distribution.VectorClock.CompareResult;
+import com.dkvstore.server.distribution.VirtualNode;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVEntry;
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVRequest;
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * A GET answered by more than one replica of its key. The GET is sent to every replica, and the
+ * client gets the newest entry, by vector clock, once a read quorum of them has answered: a
+ * majority for QUORUM GETs, else the request's read_quorum or the node's --read-quorum. The
+ * replicas answer with a read of their own copy: a GET with is_replica set, whose value is a
+ * KVEntry carrying the entry's vector clock.
+ *
+ * Once every replica has answered, those whose copy is older than the newest one get the newest
+ * one, as the owner would have sent it (read repair). Replicas without the key are left to the
+ * replication on membership changes, as removes are not replicated and would be undone. For the
+ * same reason a removed key is still returned while another replica has a copy of it.
+ *
+ * Also holds the replica choice for ONE GETs, and samples the ones a secondary replica answers
+ * to find out how often its copy is behind the primary's.
+ */
+final class ReplicaRead implements KVClient.OnResponseReceivedListener {
+    // The read quorum of QUORUM GETs, a majority of the replicas.
+    static final int MAJORITY = -1;
+    // The share of ONE GETs served by a secondary replica that are checked against the primary.
+    private static final double STALENESS_SAMPLE_RATE = 0.01;
+
+    private static final KeyValueStore mKeyValStore = KeyValueStore.getInstance();
+    private static final HashEntity mHashEntity = HashEntity.getInstance();
+    private static final LongAdder mReplicaReads = new LongAdder();
+    private static final LongAdder mStalenessChecks = new LongAdder();
+    private static final LongAdder mStalenessStale = new LongAdder();
+    private static final LongAdder mQuorumReads = new LongAdder();
+    private static final LongAdder mQuorumReadsDivergent = new LongAdder();
+    private static final LongAdder mReadRepairs = new LongAdder();
+
+    private final DatagramChannel mChannel;
+    private final ByteString mId;
+    private final InetSocketAddress mAddr;
+    private final ByteString mKey;
+    private final int mReadQuorum;
+    private int[] mReplicas;
+    // Guarded by this. Each replica's copy, null until it answers or if it failed to.
+    private KVEntry[] mEntries;
+    private KVEntry mNewest;
+    private int mReplies;
+    private int mFailures;
+    private int mRequired;
+    private boolean mAnswered;
+
+    /**
+     * @param channel the channel to reply on.
+     * @param id the message id, kept until the GET is answered.
+     * @param addr the address to reply to.
+     * @param key the key, kept until the GET is answered.
+     * @param readQuorum the number of replicas to wait for, MAJORITY for a majority of them.
+     */
+    ReplicaRead(DatagramChannel channel, ByteString id, InetSocketAddress addr, ByteString key, int readQuorum) {
+        mChannel = channel;
+        mId = id;
+        mAddr = addr;
+        mKey = key;
+        mReadQuorum = readQuorum;
+    }
+
+    static void init() {
+        Stats.register("replica_reads", mReplicaReads::sum);
+        Stats.register("staleness_checks", mStalenessChecks::sum);
+        Stats.register("staleness_stale", mStalenessStale::sum);
+        Stats.register("quorum_reads", mQuorumReads::sum);
+        Stats.register("quorum_reads_divergent", mQuorumReadsDivergent::sum);
+        Stats.register("read_repairs", mReadRepairs::sum);
+    }
+
+    /**
+     * @return the physical nodes holding a copy of the virtual node's keys, the primary first.
+     */
+    static int[] getReplicas(VirtualNode vnode) {
+        int[] successors = new int[Protocol.REPLICATION_FACTOR - 1];
+        int numSuccessors = mHashEntity.getSuccessorNodes(vnode, successors.length, successors);
+        int[] replicas = new int[numSuccessors + 1];
+        int count = 0;
+        replicas[count++] = vnode.getPNodeId();
+        for (int i = 0; i < numSuccessors; i++) {
+            // A node with several virtual nodes in a row is a successor more than once.
+            boolean seen = false;
+            for (int k = 0; k < count; k++) {
+                seen |= replicas[k] == successors[i];
+            }
+            if (!seen) {
+                replicas[count++] = successors[i];
+            }
+        }
+        return count == replicas.length ? replicas : Arrays.copyOf(replicas, count);
+    }
+
+    /**
+     * Choose the replica to serve a ONE GET: this node if it is one, else the better of two
+     * replicas picked at random, by round trip time and requests outstanding. Picking two rather
+     * than the best one spreads the reads over the replicas, while mostly avoiding a slow one.
+     * @param vnode the virtual node that owns the key.
+     * @param routed true if another node routed the GET here, which is then left to the primary,
+     *  as that node's ring differs from this one.
+     */
+    static int chooseReplica(VirtualNode vnode, boolean routed) {
+        int selfNodeId = DirectRoute.getInstance().getSelfNodeId();
+        int[] replicas = getReplicas(vnode);
+        for (int nodeId : replicas) {
+            if (nodeId == selfNodeId) {
+                return selfNodeId;
+            }
+        }
+        if (routed || replicas.length == 1) {
+            return replicas[0];
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(replicas.length);
+        int second = (first + 1 + random.nextInt(replicas.length - 1)) % replicas.length;
+        return getLoad(replicas[second]) < getLoad(replicas[first]) ? replicas[second] : replicas[first];
+    }
+
+    /**
+     * @return the replica other than the primary likely to answer first, by round trip time and
+     *  requests outstanding, -1 if the key has no other replica.
+     */
+    static int chooseSecondary(VirtualNode vnode) {
+        int[] replicas = getReplicas(vnode);
+        int best = -1;
+        for (int i = 1; i < replicas.length; i++) {
+            if (best < 0 || getLoad(replicas[i]) < getLoad(best)) {
+                best = replicas[i];
+            }
+        }
+        return best;
+    }
+
+    private static double getLoad(int nodeId) {
+        AddressHolder addr = DirectRoute.getInstance().getRoute(nodeId);
+        if (addr == null) {
+            return Double.MAX_VALUE;
+        }
+        PeerStats.Peer peer = PeerStats.get(addr.address, addr.port);
+        // Nodes not asked yet look idle, so they get asked.
+        return Math.max(peer.getSmoothedRtt(), 0) * (peer.getOutstanding() + 1.0);
+    }
+
+    /**
+     * @return this node's copy of the key, as a replica answers a GET with is_replica set.
+     */
+    static KVEntry readLocal(ByteString key) {
+        ValuePair vPair = mKeyValStore.get(key);
+        KVEntry.Builder entry = KVEntry.newBuilder();
+        if (vPair == null) {
+            return entry.setErrCode(Protocol.ERR_NON_EXISTENT_KEY).build();
+        }
+        entry.setErrCode(Protocol.ERR_SUCCESS)
+            .setValue(vPair.getValue())
+            .setVersion(vPair.version);
+        if (vPair.expiryTime != 0) {
+            entry.setExpiryTimeMs(vPair.expiryTime);
+        }
+        for (int i = 0; i < vPair.vectorClock.length; i++) {
+            entry.addVectorClock(vPair.vectorClock[i]);
+        }
+        return entry.build();
+    }
+
+    /**
+     * Count a ONE GET that a secondary replica served from its copy, and now and then check the
+     * copy against the primary's.
+     * @param key the key, only used until onReplicaRead returns.
+     * @param vPair the entry served, null if the key was not found.
+     * @param primaryNodeId the key's primary.
+     */
+    static void onReplicaRead(ByteString key, ValuePair vPair, int primaryNodeId) {
+        mReplicaReads.increment();
+        if (ThreadLocalRandom.current().nextDouble() >= STALENESS_SAMPLE_RATE) {
+            return;
+        }
+        int[] served = vPair != null ? vPair.vectorClock : null;
+        sendReplicaGet(key, primaryNodeId, (requestId, msg) -> {
+            KVEntry primary = parseReply(msg);
+            if (primary == null) {
+                return;
+            }
+            mStalenessChecks.increment();
+            if (isNewer(getClock(primary), served)) {
+                mStalenessStale.increment();
+            }
+        }, 0);
+    }
+
+    /**
+     * Send the GET to every replica of the key. The client is answered once the read quorum has
+     * answered, or with system overload once too many have failed to.
+     */
+    void serve() {
+        mQuorumReads.increment();
+        int[] replicas = getReplicas(mHashEntity.getKVNode(mKey));
+        int selfNodeId = DirectRoute.getInstance().getSelfNodeId();
+        synchronized (this) {
+            mReplicas = replicas;
+            mEntries = new KVEntry[replicas.length];
+            // More replicas than there are copies can never answer, the read fails.
+            mRequired = mReadQuorum == MAJORITY ? Protocol.REPLICATION_FACTOR / 2 + 1
+                    : Math.min(Math.max(mReadQuorum, 1), Protocol.REPLICATION_FACTOR);
+        }
+        for (int i = 0; i < replicas.length; i++) {
+            if (replicas[i] == selfNodeId) {
+                onReply(i, readLocal(mKey));
+            } else if (!sendReplicaGet(mKey, replicas[i], this, i)) {
+                onReply(i, null);
+            }
+        }
+    }
+
+    @Override
+    public void onResponseReceived(int requestId, NetworkMessage msg) {
+        onReply(requestId, parseReply(msg));
+    }
+
+    /**
+     * @param index the replica's index in mReplicas.
+     * @param entry the replica's copy, null if the replica did not answer.
+     */
+    private void onReply(int index, KVEntry entry) {
+        KVEntry newest;
+        boolean answer = false;
+        boolean succeeded;
+        boolean done;
+        synchronized (this) {
+            mEntries[index] = entry;
+            if (entry == null) {
+                mFailures++;
+            } else {
+                // Of concurrent copies, the first one to answer is kept.
+                if (mReplies == 0 || isNewer(getClock(entry), getClock(mNewest))) {
+                    mNewest = entry;
+                }
+                mReplies++;
+            }
+            succeeded = mReplies >= mRequired;
+            if (!mAnswered && (succeeded || mReplicas.length - mFailures < mRequired)) {
+                mAnswered = true;
+                answer = true;
+            }
+            newest = mNewest;
+            done = mReplies + mFailures == mReplicas.length;
+        }
+        if (answer) {
+            reply(succeeded ? newest : null);
+        }
+        if (done) {
+            repair(newest);
+        }
+    }
+
+    /**
+     * @param newest the newest copy, null if the read quorum did not answer.
+     */
+    private void reply(KVEntry newest) {
+        KVResponse.Builder response = KVResponse.newBuilder();
+        if (newest == null) {
+            response.setErrCode(Protocol.ERR_SYSTEM_OVERLOAD).setOverloadWaitTime(Protocol.getOverloadWaittime());
+        } else if (newest.getErrCode() == Protocol.ERR_SUCCESS) {
+            response.setErrCode(Protocol.ERR_SUCCESS).setValue(newest.getValue()).setVersion(newest.getVersion());
+        } else {
+            response.setErrCode(newest.getErrCode());
+        }
+        try {
+            ByteBuffer buf = ResponseEncoder.encode(mId, response);
+            if (newest != null) {
+                try {
+                    MessageCache.getInstance().put(mId, ByteString.copyFrom(buf.duplicate()), 0, 0);
+                } catch (OutOfMemoryError e) {
+                    // Still answered, retransmissions are dropped until the cache entry times out.
+                    System.err.println("[ERROR]: Message cache full, quorum GET response not cached");
+                }
+            }
+            WriteEventHandler.write(mChannel, buf, mAddr, true);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Send the newest copy to the replicas that answered with an older one.
+     * @param newest the newest copy of all replicas, null if none answered.
+     */
+    private void repair(KVEntry newest) {
+        if (newest == null) {
+            return;
+        }
+        int[] newestClock = getClock(newest);
+        boolean divergent = false;
+        int selfNodeId = DirectRoute.getInstance().getSelfNodeId();
+        for (int i = 0; i < mReplicas.length; i++) {
+            KVEntry entry;
+            synchronized (this) {
+                entry = mEntries[i];
+            }
+            if (entry == null) {
+                continue;
+            }
+            int[] clock = getClock(entry);
+            divergent |= !isSame(clock, newestClock);
+            if (clock == null || !isNewer(newestClock, clock)) {
+                continue;
+            }
+            mReadRepairs.increment();
+            try {
+                if (mReplicas[i] == selfNodeId) {
+                    mKeyValStore.put(mKey, newest.getValue(), false, newest.getVersion(), newestClock,
+                            newest.getExpiryTimeMs());
+                } else {
+                    sendRepair(mReplicas[i], newest);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        if (divergent) {
+            mQuorumReadsDivergent.increment();
+        }
+    }
+
+    private void sendRepair(int nodeId, KVEntry newest) {
+        AddressHolder routedNode = DirectRoute.getInstance().getRoute(nodeId);
+        if (routedNode == null) {
+            return;
+        }
+        KVRequest.Builder request = KVRequest.newBuilder()
+                .setCommand(Protocol.PUT)
+                .setKey(mKey)
+                .setValue(newest.getValue())
+                .setVersion(newest.getVersion())
+                .setIsReplica(true)
+                .addAllVectorClock(newest.getVectorClockList());
+        if (newest.hasExpiryTimeMs()) {
+            request.setExpiryTimeMs(newest.getExpiryTimeMs());
+        }
+        NetworkMessage message = new NetworkMessage(Util.getUniqueId(ReactorServer.KEY_VALUE_PORT));
+        message.setPayload(request.build().toByteArray());
+        message.setAddressAndPort(routedNode.address, routedNode.port);
+        ReactorServer.getInstance().getSecondaryKVClient().send(message, null);
+    }
+
+    /**
+     * @return false if the node cannot be routed to.
+     */
+    private static boolean sendReplicaGet(ByteString key, int nodeId, KVClient.OnResponseReceivedListener listener,
+            int requestId) {
+        AddressHolder routedNode = DirectRoute.getInstance().getRoute(nodeId);
+        if (routedNode == null) {
+            System.out.println(String.format("[DEBUG]: Unable to route to nodeId %d", nodeId));
+            return false;
+        }
+        NetworkMessage message = new NetworkMessage(Util.getUniqueId(ReactorServer.KEY_VALUE_PORT));
+        message.setPayload(KVRequest.newBuilder()
+                .setCommand(Protocol.GET)
+                .setKey(key)
+                .setIsReplica(true)
+                .build()
+                .toByteArray());
+        message.setAddressAndPort(routedNode.address, routedNode.port);
+        ReactorServer.getInstance().getPrimaryKVClient().send(message, requestId, listener);
+        return true;
+    }
+
+    /**
+     * @return the replica's copy, null if it did not answer.
+     */
+    private static KVEntry parseReply(NetworkMessage msg) {
+        try {
+            KVResponse response = KVResponse.parseFrom(msg.getPayload());
+            if (response.getErrCode() != Protocol.ERR_SUCCESS) {
+                return null;
+            }
+            return KVEntry.parseFrom(response.getValue());
+        } catch (InvalidProtocolBufferException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the copy's vector clock, null if the replica does not have the key.
+     */
+    private static int[] getClock(KVEntry entry) {
+        if (entry.getErrCode() != Protocol.ERR_SUCCESS) {
+            return null;
+        }
+        int[] clock = new int[entry.getVectorClockCount()];
+        for (int i = 0; i < clock.length; i++) {
+            clock[i] = entry.getVectorClock(i);
+        }
+        return clock;
+    }
+
+    private static boolean isSame(int[] clockA, int[] clockB) {
+        if (clockA == null || clockB == null) {
+            return clockA == clockB;
+        }
+        return VectorClock.compareVectorClock(clockA, clockB) == CompareResult.Equal
+                && VectorClock.compareVectorClock(clockB, clockA) == CompareResult.Equal;
+    }
+
+    /**
+     * @param clockA a vector clock, null if the key is not in the store.
+     * @param clockB another vector clock, null if the key is not in the store.
+     * @return true if the entry with clockA supersedes the one with clockB. A missing key is older
+     *  than any entry, and of concurrent entries neither is newer.
+     */
+    private static boolean isNewer(int[] clockA, int[] clockB) {
+        if (clockA == null) {
+            return false;
+        }
+        if (clockB == null) {
+            return true;
+        }
+        // compareVectorClock only looks at the nodes in its first clock, so compare both ways.
+        CompareResult aToB = VectorClock.compareVectorClock(clockA, clockB);
+        CompareResult bToA = VectorClock.compareVectorClock(clockB, clockA);
+        return (aToB == CompareResult.Larger || aToB == CompareResult.Equal)
+                && (bToA == CompareResult.Smaller || bToA == CompareResult.Equal)
+                && !(aToB == CompareResult.Equal && bToA == CompareResult.Equal);
+    }
+}
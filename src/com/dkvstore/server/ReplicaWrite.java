@@ -0,0 +1,141 @@
+package com.dkvstore.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.dkvstore.NetworkMessage;
+import com.dkvstore.Protocol;
+import com.dkvstore.client.KVClient;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * A write whose client is answered once a write quorum of the key's replicas has it, the owner
+ * included. The owner sends the entry to every other replica at once, and the response waits for
+ * the first acknowledgements, so a slow replica only holds it up if it is needed for the quorum.
+ * If too many replicas fail to acknowledge, the client gets under replicated instead, along with
+ * the owner's response: the write was applied and the copies that were written stay, so it must
+ * not be sent again, which would apply an increment or append twice. Either response is cached
+ * under the message id, so a retransmission gets the same answer.
+ */
+final class ReplicaWrite implements KVClient.OnResponseReceivedListener {
+    private static final LongAdder mQuorumWrites = new LongAdder();
+    private static final LongAdder mQuorumWritesFailed = new LongAdder();
+
+    private final DatagramChannel mChannel;
+    private final ByteString mId;
+    private final int mRequired;
+    // Guarded by this. The owner's copy counts as the first acknowledgement.
+    private int mAcks = 1;
+    private int mFailures;
+    private int mReplicaCount = -1;
+    private KVResponse mResponse;
+    private InetSocketAddress mAddr;
+    private InetSocketAddress mReplyAddr;
+    private boolean mAnswered;
+
+    /**
+     * @param channel the channel to reply on.
+     * @param id the message id, kept until the write is answered.
+     * @param required the number of replicas that must have the write.
+     */
+    ReplicaWrite(DatagramChannel channel, ByteString id, int required) {
+        mChannel = channel;
+        mId = id;
+        mRequired = required;
+    }
+
+    static void init() {
+        Stats.register("quorum_writes", mQuorumWrites::sum);
+        Stats.register("quorum_writes_failed", mQuorumWritesFailed::sum);
+    }
+
+    /**
+     * @param replicaCount the number of replicas the entry was sent to, the owner excluded.
+     */
+    void onSent(int replicaCount) {
+        synchronized (this) {
+            mReplicaCount = replicaCount;
+        }
+        complete();
+    }
+
+    /**
+     * Answer the client with the response once the quorum has the write, or right away if it
+     * already does.
+     * @param response the owner's response.
+     * @param addr the address the request came from.
+     * @param replyAddr the client a routed request came from, null if the request was not routed.
+     */
+    void reply(KVResponse response, InetSocketAddress addr, InetSocketAddress replyAddr) {
+        synchronized (this) {
+            mResponse = response;
+            mAddr = addr;
+            mReplyAddr = replyAddr;
+        }
+        complete();
+    }
+
+    @Override
+    public void onResponseReceived(int requestId, NetworkMessage msg) {
+        boolean acked;
+        try {
+            acked = KVResponse.parseFrom(msg.getPayload()).getErrCode() == Protocol.ERR_SUCCESS;
+        } catch (InvalidProtocolBufferException e) {
+            acked = false;
+        }
+        synchronized (this) {
+            if (acked) {
+                mAcks++;
+            } else {
+                mFailures++;
+            }
+        }
+        complete();
+    }
+
+    private void complete() {
+        boolean succeeded;
+        synchronized (this) {
+            if (mAnswered || mResponse == null || mReplicaCount < 0) {
+                return;
+            }
+            succeeded = mAcks >= mRequired;
+            if (!succeeded && 1 + mReplicaCount - mFailures >= mRequired) {
+                return;
+            }
+            mAnswered = true;
+        }
+        mQuorumWrites.increment();
+        KVResponse.Builder response = mResponse.toBuilder();
+        if (!succeeded) {
+            mQuorumWritesFailed.increment();
+            response.setErrCode(Protocol.ERR_UNDER_REPLICATED);
+        }
+        try {
+            ByteBuffer buf = ResponseEncoder.encode(mId, response);
+            try {
+                MessageCache.getInstance().put(mId, ByteString.copyFrom(buf.duplicate()), 0, 0);
+            } catch (OutOfMemoryError e) {
+                // Still answered, retransmissions are dropped until the cache entry times out.
+                System.err.println("[ERROR]: Message cache full, quorum write response not cached");
+            }
+            ByteBuffer replyBuf = null;
+            if (mReplyAddr != null) {
+                // The pooled buffer is released once sent, the client a request was routed for gets a copy.
+                replyBuf = ByteBuffer.allocate(buf.remaining());
+                replyBuf.put(buf.duplicate()).flip();
+            }
+            WriteEventHandler.write(mChannel, buf, mAddr, true);
+            if (replyBuf != null) {
+                WriteEventHandler.write(mChannel, replyBuf, mReplyAddr, false);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
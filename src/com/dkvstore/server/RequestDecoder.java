@@ -0,0 +1,221 @@
+package com.dkvstore.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import com.dkvstore.NetworkMessage;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.UnsafeByteOperations;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest;
+
+/**
+ * Decodes request datagrams in place, straight from the buffer they were received into. The
+ * message envelope and the request it carries are read in a single pass of one CodedInputStream,
+ * the checksum is computed over the id and payload where they lie in the buffer, and the request
+ * fields are set directly on a builder that each thread reuses. The generated parser is only used
+ * for fields not decoded here, since it allocates a message per request, and the buffer is never
+ * copied: the message id and the bytes fields of the request are views of the buffer, valid until
+ * it receives the next datagram.
+ *
+ * Not thread safe, each thread gets its own decoder with get.
+ */
+public final class RequestDecoder {
+    private static final int TAG_MESSAGE_ID = 1 << 3 | 2;
+    private static final int TAG_PAYLOAD = 2 << 3 | 2;
+    private static final int TAG_CHECKSUM = 3 << 3 | 1;
+
+    private static final ThreadLocal<RequestDecoder> mDecoder = ThreadLocal.withInitial(RequestDecoder::new);
+
+    private final CRC32 mCrc = new CRC32();
+    private final KeyValueRequest.KVRequest.Builder mRequestBuilder = KeyValueRequest.KVRequest.newBuilder();
+    // Set if the payload of the last message is not a valid request.
+    private InvalidProtocolBufferException mRequestError;
+
+    private RequestDecoder() {
+    }
+
+    /**
+     * @return the calling thread's decoder.
+     */
+    public static RequestDecoder get() {
+        return mDecoder.get();
+    }
+
+    /**
+     * Decode a message and the request it carries, which is then returned by getRequest.
+     * @param buf a buffer backed by an array, holding the datagram between its position and limit.
+     * @param message gets the message id, as a view of buf.
+     * @throws IOException if the message cannot be decoded or its checksum doesn't match.
+     */
+    public void decode(ByteBuffer buf, NetworkMessage message) throws IOException {
+        byte[] array = buf.array();
+        int start = buf.arrayOffset() + buf.position();
+        // Wrapping the buffer marks it immutable, which is what lets the stream alias it.
+        CodedInputStream input = UnsafeByteOperations.unsafeWrap(array, start, buf.remaining()).newCodedInput();
+        input.enableAliasing(true);
+        mRequestBuilder.clear();
+        mRequestError = null;
+
+        int idOffset = start;
+        int idLength = 0;
+        int payloadOffset = start;
+        int payloadLength = 0;
+        long checksum = 0;
+        for (int tag = input.readTag(); tag != 0; tag = input.readTag()) {
+            switch (tag) {
+            case TAG_MESSAGE_ID:
+                idLength = input.readRawVarint32();
+                idOffset = start + input.getTotalBytesRead();
+                input.skipRawBytes(idLength);
+                break;
+            case TAG_PAYLOAD: {
+                payloadLength = input.readRawVarint32();
+                payloadOffset = start + input.getTotalBytesRead();
+                int oldLimit = input.pushLimit(payloadLength);
+                try {
+                    mergeRequest(input, array, start);
+                } catch (InvalidProtocolBufferException e) {
+                    // Only reported if the checksum matches, the envelope is still read to the end.
+                    mRequestError = e;
+                }
+                input.skipRawBytes(input.getBytesUntilLimit());
+                input.popLimit(oldLimit);
+                break;
+            }
+            case TAG_CHECKSUM:
+                checksum = input.readFixed64();
+                break;
+            default:
+                if (!input.skipField(tag)) {
+                    throw new IOException("Malformed message");
+                }
+            }
+        }
+
+        mCrc.reset();
+        mCrc.update(array, idOffset, idLength);
+        mCrc.update(array, payloadOffset, payloadLength);
+        if (mCrc.getValue() != checksum) {
+            throw new IOException("Checksum doesn't match");
+        }
+        message.setIdString(idLength == 0 ? ByteString.EMPTY : UnsafeByteOperations.unsafeWrap(array, idOffset, idLength));
+    }
+
+    /**
+     * @return the builder holding the request of the last decoded message, which is reused by
+     *  the next call to decode on this thread.
+     * @throws InvalidProtocolBufferException if the payload of the last message is not a request.
+     */
+    public KeyValueRequest.KVRequest.Builder getRequest() throws InvalidProtocolBufferException {
+        if (mRequestError != null) {
+            throw mRequestError;
+        }
+        return mRequestBuilder;
+    }
+
+    /**
+     * Read the fields of a KVRequest up to the input's limit into the builder. Fields not handled
+     * here, such as ones added to the proto since, are handed to the generated parser.
+     * @param array the array input reads from.
+     * @param start the offset in array that input starts at.
+     */
+    private void mergeRequest(CodedInputStream input, byte[] array, int start) throws InvalidProtocolBufferException {
+        try {
+            while (true) {
+                int fieldStart = input.getTotalBytesRead();
+                int tag = input.readTag();
+                if (tag == 0) {
+                    return;
+                }
+                switch (tag) {
+                case 1 << 3:
+                    mRequestBuilder.setCommand(input.readUInt32());
+                    break;
+                case 2 << 3 | 2:
+                    mRequestBuilder.setKey(input.readBytes());
+                    break;
+                case 3 << 3 | 2:
+                    mRequestBuilder.setValue(input.readBytes());
+                    break;
+                case 4 << 3:
+                    mRequestBuilder.setVersion(input.readInt32());
+                    break;
+                case 5 << 3 | 2:
+                    mRequestBuilder.setReplyIpAddressBytes(input.readBytes());
+                    break;
+                case 6 << 3:
+                    mRequestBuilder.setReplyPort(input.readInt32());
+                    break;
+                case 7 << 3:
+                    mRequestBuilder.setIsReplica(input.readBool());
+                    break;
+                case 8 << 3:
+                    mRequestBuilder.addVectorClock(input.readUInt32());
+                    break;
+                case 8 << 3 | 2: {
+                    // Packed, which parsers must accept for repeated scalars.
+                    int oldLimit = input.pushLimit(input.readRawVarint32());
+                    while (input.getBytesUntilLimit() > 0) {
+                        mRequestBuilder.addVectorClock(input.readUInt32());
+                    }
+                    input.popLimit(oldLimit);
+                    break;
+                }
+                case 9 << 3:
+                    mRequestBuilder.setIsCompressed(input.readBool());
+                    break;
+                case 10 << 3:
+                    mRequestBuilder.setTtlMs(input.readInt64());
+                    break;
+                case 11 << 3:
+                    mRequestBuilder.setExpiryTimeMs(input.readInt64());
+                    break;
+                case 12 << 3 | 2: {
+                    KeyValueRequest.KVEntry.Builder entry = KeyValueRequest.KVEntry.newBuilder();
+                    input.readMessage(entry, ExtensionRegistryLite.getEmptyRegistry());
+                    mRequestBuilder.addEntries(entry);
+                    break;
+                }
+                case 13 << 3 | 2:
+                    mRequestBuilder.setCursor(input.readBytes());
+                    break;
+                case 14 << 3:
+                    mRequestBuilder.setExpectedVersion(input.readInt32());
+                    break;
+                case 15 << 3:
+                    mRequestBuilder.setDelta(input.readInt64());
+                    break;
+                case 16 << 3:
+                    mRequestBuilder.setRingEpoch(input.readInt64());
+                    break;
+                case 17 << 3:
+                    mRequestBuilder.setConsistency(input.readUInt32());
+                    break;
+                case 18 << 3:
+                    mRequestBuilder.setReadQuorum(input.readUInt32());
+                    break;
+                case 19 << 3:
+                    mRequestBuilder.setWriteQuorum(input.readUInt32());
+                    break;
+                default:
+                    if (!input.skipField(tag)) {
+                        return;
+                    }
+                    // Slower, but a new field is decoded before it is added above.
+                    mRequestBuilder.mergeFrom(UnsafeByteOperations.unsafeWrap(array, start + fieldStart,
+                            input.getTotalBytesRead() - fieldStart));
+                }
+            }
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
+        } catch (IOException e) {
+            // Reading from an array only fails on malformed input.
+            throw new InvalidProtocolBufferException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.dkvstore.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+
+import com.dkvstore.NetworkMessage;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * Encodes response datagrams in one pass into pooled direct buffers, which the channel sends
+ * without copying them again. The Msg envelope and the KVResponse fields are written straight
+ * from the response builder, without building a response message or serializing it into an
+ * intermediate array, so a value is copied once, into the buffer. The checksum is computed over
+ * the id and payload where they were written in the buffer.
+ *
+ * Buffers are returned to the pool by WriteEventHandler once they have been sent.
+ */
+public final class ResponseEncoder {
+    private static final int TAG_MESSAGE_ID = 1;
+    private static final int TAG_PAYLOAD = 2;
+    private static final int TAG_CHECKSUM = 3;
+    /**
+     * The largest payload whose datagram fits into a receive buffer of NetworkMessage.getMaxDataBuffer,
+     * which leaves no room for the envelope besides the id: its tags and lengths and the checksum.
+     */
+    public static final int MAX_PAYLOAD_SIZE = NetworkMessage.MAX_PAYLOAD_SIZE - 16;
+    // Tags, lengths and the checksum of the envelope, with room to spare.
+    private static final int SIZE_ENVELOPE = 32;
+    private static final int SIZE_BUFFER = NetworkMessage.ID_SIZE + NetworkMessage.MAX_PAYLOAD_SIZE + SIZE_ENVELOPE;
+    // Idle buffers beyond this many are left to the garbage collector.
+    private static final int BUFFER_POOL_SIZE = 256;
+
+    private static final BlockingQueue<ByteBuffer> mBufferPool = new ArrayBlockingQueue<>(BUFFER_POOL_SIZE);
+    private static final ThreadLocal<CRC32> mCrc = ThreadLocal.withInitial(CRC32::new);
+
+    private ResponseEncoder() {
+    }
+
+    /**
+     * @param id the message id.
+     * @param response the response, only the fields that are set are written.
+     * @return a buffer holding the datagram between its position and limit, a pooled direct
+     *  buffer unless the response is too large for one.
+     * @throws IOException if the response cannot be written.
+     */
+    public static ByteBuffer encode(ByteString id, KVResponse.Builder response) throws IOException {
+        int payloadSize = getSize(response);
+        int idOffset = 1 + CodedOutputStream.computeUInt32SizeNoTag(id.size());
+        int payloadOffset = idOffset + id.size() + 1 + CodedOutputStream.computeUInt32SizeNoTag(payloadSize);
+        int size = payloadOffset + payloadSize + CodedOutputStream.computeFixed64Size(TAG_CHECKSUM, 0);
+        ByteBuffer buf = size <= SIZE_BUFFER ? acquire() : ByteBuffer.allocate(size);
+
+        CodedOutputStream output = CodedOutputStream.newInstance(buf);
+        output.writeBytes(TAG_MESSAGE_ID, id);
+        output.writeTag(TAG_PAYLOAD, 2);
+        output.writeUInt32NoTag(payloadSize);
+        output.writeUInt32(1, response.getErrCode());
+        if (response.hasValue()) {
+            output.writeBytes(2, response.getValue());
+        }
+        if (response.hasPid()) {
+            output.writeInt32(3, response.getPid());
+        }
+        if (response.hasVersion()) {
+            output.writeInt32(4, response.getVersion());
+        }
+        if (response.hasOverloadWaitTime()) {
+            output.writeInt32(5, response.getOverloadWaitTime());
+        }
+        if (response.hasMembershipCount()) {
+            output.writeInt32(6, response.getMembershipCount());
+        }
+        output.flush();
+
+        CRC32 crc = mCrc.get();
+        crc.reset();
+        update(crc, buf, idOffset, id.size());
+        update(crc, buf, payloadOffset, payloadSize);
+        output.writeFixed64(TAG_CHECKSUM, crc.getValue());
+        output.flush();
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Return a buffer returned by encode to the pool once it has been sent.
+     */
+    public static void release(ByteBuffer buf) {
+        if (buf.isDirect()) {
+            buf.clear();
+            mBufferPool.offer(buf);
+        }
+    }
+
+    private static ByteBuffer acquire() {
+        ByteBuffer buf = mBufferPool.poll();
+        return buf != null ? buf : ByteBuffer.allocateDirect(SIZE_BUFFER);
+    }
+
+    private static int getSize(KVResponse.Builder response) {
+        int size = CodedOutputStream.computeUInt32Size(1, response.getErrCode());
+        if (response.hasValue()) {
+            size += CodedOutputStream.computeBytesSize(2, response.getValue());
+        }
+        if (response.hasPid()) {
+            size += CodedOutputStream.computeInt32Size(3, response.getPid());
+        }
+        if (response.hasVersion()) {
+            size += CodedOutputStream.computeInt32Size(4, response.getVersion());
+        }
+        if (response.hasOverloadWaitTime()) {
+            size += CodedOutputStream.computeInt32Size(5, response.getOverloadWaitTime());
+        }
+        if (response.hasMembershipCount()) {
+            size += CodedOutputStream.computeInt32Size(6, response.getMembershipCount());
+        }
+        return size;
+    }
+
+    /**
+     * Update the checksum with a range of the buffer, leaving the buffer's position and limit as
+     * they were.
+     */
+    private static void update(CRC32 crc, ByteBuffer buf, int offset, int length) {
+        int position = buf.position();
+        int limit = buf.limit();
+        buf.limit(offset + length).position(offset);
+        crc.update(buf);
+        buf.limit(limit).position(position);
+    }
+}
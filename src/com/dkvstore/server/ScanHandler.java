@@ -0,0 +1,298 @@
+package com.dkvstore.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dkvstore.Util;
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.dkvstore.server.distribution.DirectRoute;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.TokenRange;
+import com.dkvstore.server.distribution.VirtualNode;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.UnsafeByteOperations;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVBatch;
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest.KVEntry;
+
+/**
+ * Serves SCAN, which walks the partitions this node owns as primary, one virtual node at a time
+ * in token order, so keys kept here as replicas are left to their primaries. Within a partition
+ * keys are returned in order of their position on the ring, so the cursor holds the token of the
+ * partition and the position of the last key returned: the scan continues with the keys after
+ * that position. Each response holds as many entries as fit into a datagram.
+ *
+ * The storage engines do not keep keys in ring order, so putting a partition in order takes a walk
+ * over all of its keys. To not walk the partition again for every page, the first page of a
+ * partition keeps its keys in ring order as a snapshot, which the cursor names and the next pages
+ * read their keys from; the values are read from the store when a page is built. Scanning a
+ * partition of N keys thus costs one walk and a sort of N keys. Snapshots are dropped once the
+ * partition is done, after SNAPSHOT_TIMEOUT_MS without a page, or when more than MAX_SNAPSHOTS
+ * scans are in progress, and a cursor whose snapshot is gone takes a new one of the keys after its
+ * position.
+ *
+ * Keys added or removed during a scan may or may not be returned, and keys that move to another
+ * node while the ring changes may be missed or returned twice.
+ */
+final class ScanHandler {
+    // The partition's token, the position of the last key returned, and the snapshot's id.
+    public static final int SIZE_CURSOR = 24;
+    // The response's error code, the tag and length of its value, and the cursor.
+    private static final int SIZE_RESPONSE_OVERHEAD = 8 + 2 + SIZE_CURSOR;
+    private static final int MAX_SNAPSHOTS = 16;
+    private static final long SNAPSHOT_TIMEOUT_MS = 60_000;
+
+    /**
+     * The keys of a range in ring order.
+     */
+    private static final class Snapshot {
+        final long id;
+        final TokenRange range;
+        // Distance of each key from the start of the range, which is excluded from it, in
+        // ascending unsigned order, so the end of a range that covers the whole ring comes last.
+        final long[] offsets;
+        final ByteString[] keys;
+        volatile long lastUsed;
+
+        Snapshot(long id, TokenRange range, long[] offsets, ByteString[] keys) {
+            this.id = id;
+            this.range = range;
+            this.offsets = offsets;
+            this.keys = keys;
+        }
+    }
+
+    private static final ConcurrentHashMap<Long, Snapshot> mSnapshots = new ConcurrentHashMap<>();
+    // Not starting from 0, so a cursor from before a restart does not name a new snapshot.
+    private static final AtomicLong mNextSnapshotId = new AtomicLong(System.nanoTime());
+
+    private ScanHandler() {
+    }
+
+    /**
+     * @param cursor a cursor returned by scan, or empty to start the scan.
+     * @return true if cursor can be passed to scan.
+     */
+    static boolean isValidCursor(ByteString cursor) {
+        return cursor.isEmpty() || cursor.size() == SIZE_CURSOR;
+    }
+
+    /**
+     * @param cursor a cursor returned by the previous scan of this node, or empty to start.
+     * @return the next entries, along with the cursor to continue from unless the scan is done.
+     */
+    static KVBatch scan(ByteString cursor) {
+        HashEntity hashEntity = HashEntity.getInstance();
+        List<TokenRange> ranges = new ArrayList<>();
+        VirtualNode[] vnodes = hashEntity.getVNodeMap().get(DirectRoute.getInstance().getSelfNodeId());
+        if (vnodes != null) {
+            for (VirtualNode vnode : vnodes) {
+                ranges.add(hashEntity.getTokenRange(vnode));
+            }
+        }
+        Collections.sort(ranges, (a, b) -> Long.compare(a.end, b.end));
+
+        int rangeIndex = 0;
+        long position = ranges.isEmpty() ? 0 : ranges.get(0).start;
+        Snapshot snapshot = null;
+        if (!cursor.isEmpty()) {
+            byte[] cursorBytes = cursor.toByteArray();
+            long token = Util.longFromBytes(cursorBytes, 0);
+            long cursorPosition = Util.longFromBytes(cursorBytes, 8);
+            // Continue with the first partition from the cursor's on, in case the ring changed.
+            while (rangeIndex < ranges.size() && ranges.get(rangeIndex).end < token) {
+                rangeIndex++;
+            }
+            if (rangeIndex < ranges.size()) {
+                TokenRange range = ranges.get(rangeIndex);
+                if (range.end != token || !range.contains(cursorPosition)) {
+                    position = range.start;
+                } else if (cursorPosition != token) {
+                    position = cursorPosition;
+                    snapshot = findSnapshot(Util.longFromBytes(cursorBytes, 16), range, position);
+                } else if (++rangeIndex < ranges.size()) {
+                    // The last key returned was at the very end of its partition.
+                    position = ranges.get(rangeIndex).start;
+                }
+            }
+        }
+
+        KVBatch.Builder batch = KVBatch.newBuilder();
+        int budget = ResponseEncoder.MAX_PAYLOAD_SIZE - SIZE_RESPONSE_OVERHEAD;
+        for (; rangeIndex < ranges.size(); rangeIndex++) {
+            TokenRange range = ranges.get(rangeIndex);
+            if (snapshot == null) {
+                snapshot = takeSnapshot(new TokenRange(position, range.end));
+            }
+            long lastPosition = addEntries(snapshot, position, budget, batch);
+            if (lastPosition != range.end) {
+                snapshot.lastUsed = System.currentTimeMillis();
+                if (mSnapshots.putIfAbsent(snapshot.id, snapshot) == null) {
+                    evictSnapshots();
+                }
+                byte[] cursorBytes = new byte[SIZE_CURSOR];
+                Util.longToBytes(range.end, cursorBytes, 0);
+                Util.longToBytes(lastPosition, cursorBytes, 8);
+                Util.longToBytes(snapshot.id, cursorBytes, 16);
+                return batch.setCursor(ByteString.copyFrom(cursorBytes)).build();
+            }
+            mSnapshots.remove(snapshot.id);
+            snapshot = null;
+            budget = ResponseEncoder.MAX_PAYLOAD_SIZE - SIZE_RESPONSE_OVERHEAD - batch.build().getSerializedSize();
+            if (rangeIndex + 1 < ranges.size()) {
+                position = ranges.get(rangeIndex + 1).start;
+            }
+        }
+        return batch.build();
+    }
+
+    /**
+     * @return the snapshot named by a cursor, if it is still kept and holds the keys of range
+     *  after position.
+     */
+    private static Snapshot findSnapshot(long id, TokenRange range, long position) {
+        Snapshot snapshot = mSnapshots.get(id);
+        if (snapshot == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - snapshot.lastUsed > SNAPSHOT_TIMEOUT_MS) {
+            mSnapshots.remove(id, snapshot);
+            return null;
+        }
+        TokenRange snapshotRange = snapshot.range;
+        if (snapshotRange.end != range.end || (position != snapshotRange.start && !snapshotRange.contains(position))) {
+            return null;
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drop the snapshots that timed out, and the least recently used ones beyond MAX_SNAPSHOTS.
+     */
+    private static void evictSnapshots() {
+        long now = System.currentTimeMillis();
+        mSnapshots.values().removeIf(snapshot -> now - snapshot.lastUsed > SNAPSHOT_TIMEOUT_MS);
+        while (mSnapshots.size() > MAX_SNAPSHOTS) {
+            Snapshot oldest = null;
+            for (Snapshot snapshot : mSnapshots.values()) {
+                if (oldest == null || snapshot.lastUsed < oldest.lastUsed) {
+                    oldest = snapshot;
+                }
+            }
+            if (oldest == null) {
+                break;
+            }
+            mSnapshots.remove(oldest.id, oldest);
+        }
+    }
+
+    /**
+     * Walk the keys of a range and put them in ring order.
+     */
+    private static Snapshot takeSnapshot(TokenRange range) {
+        List<long[]> positions = new ArrayList<>();
+        List<ByteString> keys = new ArrayList<>();
+        KeyValueStore.getInstance().forEachKeyInRanges(Collections.singletonList(range), (index, position, key) -> {
+            // The offset and the index of the key.
+            positions.add(new long[] { position - range.start - 1, keys.size() });
+            // Copied, so the snapshot does not hold on to the engine's record of the key.
+            keys.add(UnsafeByteOperations.unsafeWrap(key.toByteArray()));
+        });
+        positions.sort((a, b) -> Long.compareUnsigned(a[0], b[0]));
+
+        long[] sortedOffsets = new long[positions.size()];
+        ByteString[] sortedKeys = new ByteString[positions.size()];
+        for (int i = 0; i < sortedOffsets.length; i++) {
+            long[] entry = positions.get(i);
+            sortedOffsets[i] = entry[0];
+            sortedKeys[i] = keys.get((int) entry[1]);
+        }
+        return new Snapshot(mNextSnapshotId.getAndIncrement(), range, sortedOffsets, sortedKeys);
+    }
+
+    /**
+     * Add the entries of a snapshot after position to the batch in ring order, as many as fit into
+     * budget.
+     * @return the position of the last entry added, position if none fit, or the end of the
+     *  snapshot's range if every entry was added.
+     */
+    private static long addEntries(Snapshot snapshot, long position, int budget, KVBatch.Builder batch) {
+        long[] offsets = snapshot.offsets;
+        ByteString[] keys = snapshot.keys;
+        long rangeStart = snapshot.range.start;
+        int i = position == rangeStart ? 0 : firstAfter(offsets, position - rangeStart - 1);
+
+        KeyValueStore store = KeyValueStore.getInstance();
+        List<KVEntry> group = new ArrayList<>();
+        int size = 0;
+        long lastPosition = position;
+        while (i < offsets.length) {
+            // The cursor cannot tell apart keys at the same position, so those go into the same
+            // response.
+            int groupEnd = i + 1;
+            while (groupEnd < offsets.length && offsets[groupEnd] == offsets[i]) {
+                groupEnd++;
+            }
+            group.clear();
+            int groupSize = 0;
+            for (int j = i; j < groupEnd; j++) {
+                ValuePair pair = store.peek(keys[j]);
+                if (pair == null) {
+                    // Removed since the snapshot was taken.
+                    continue;
+                }
+                group.add(KVEntry.newBuilder()
+                        .setKey(keys[j])
+                        .setValue(pair.getValue())
+                        .setVersion(pair.version)
+                        .build());
+                groupSize += getEntrySize(keys[j], pair);
+            }
+            if (size + groupSize > budget) {
+                if (size > 0 || batch.getEntriesCount() > 0) {
+                    return lastPosition;
+                }
+                // Keys at one position that do not fit into a response together, return as many
+                // as fit.
+                while (size + groupSize > budget) {
+                    KVEntry dropped = group.remove(group.size() - 1);
+                    groupSize -= CodedOutputStream.computeMessageSize(1, dropped);
+                }
+            }
+            batch.addAllEntries(group);
+            size += groupSize;
+            lastPosition = rangeStart + 1 + offsets[i];
+            i = groupEnd;
+        }
+        return snapshot.range.end;
+    }
+
+    /**
+     * @return the index of the first offset above offset, in unsigned order.
+     */
+    private static int firstAfter(long[] offsets, long offset) {
+        int low = 0;
+        int high = offsets.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(offsets[mid], offset) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int getEntrySize(ByteString key, ValuePair pair) {
+        int valueSize = pair.getValueSize();
+        int size = CodedOutputStream.computeBytesSize(1, key)
+                + CodedOutputStream.computeTagSize(2) + CodedOutputStream.computeUInt32SizeNoTag(valueSize) + valueSize
+                + CodedOutputStream.computeInt32Size(3, pair.version);
+        return CodedOutputStream.computeTagSize(1) + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+}
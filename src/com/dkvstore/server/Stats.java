@@ -0,0 +1,34 @@
+package com.dkvstore.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * Named statistics of the server, reported by the GET_STATS command as lines of name=value.
+ */
+public final class Stats {
+    private static final Map<String, Supplier<Object>> mStats = new ConcurrentSkipListMap<>();
+
+    private Stats() {
+    }
+
+    /**
+     * @param name the name of the statistic, registering a name again replaces it.
+     * @param supplier returns the current value of the statistic.
+     */
+    public static void register(String name, Supplier<Object> supplier) {
+        mStats.put(name, supplier);
+    }
+
+    /**
+     * @return the current value of all statistics, one name=value line each, sorted by name.
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, Supplier<Object>> stat : mStats.entrySet()) {
+            builder.append(stat.getKey()).append('=').append(stat.getValue().get()).append('\n');
+        }
+        return builder.toString();
+    }
+}
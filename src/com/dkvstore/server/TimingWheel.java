@@ -0,0 +1,188 @@
+package com.dkvstore.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A hierarchical timing wheel that tells a listener when keys reach their expiry time, without
+ * ever scanning all keys. Each level is a wheel of 64 slots, a slot of level 0 spans one tick and
+ * a slot of level n spans 64^n ticks. A timer is put into the lowest level whose wheel reaches its
+ * expiry time, and when the wheel below a level completes a turn, the level's next slot is
+ * cascaded into the levels below it. Each tick therefore only touches the timers that are due,
+ * plus the timers of at most one slot per level.
+ *
+ * A key has at most one live timer. Scheduling a key again with a later expiry time only moves its
+ * timer's expiry time, and the timer is put back into the wheel when it comes due at the old one,
+ * so a key whose time to live is refreshed often does not add a timer each time. An earlier expiry
+ * time replaces the timer, the old one is dropped when it comes due or is cascaded. Timers are
+ * not cancelled when a key is removed: the listener checks whether the key it is told about is
+ * still due, since the key may have been removed or put again with another expiry time since.
+ */
+public class TimingWheel {
+    public interface ExpiryListener {
+        /**
+         * @param key the key whose timer is due.
+         * @param expiryTime the expiry time the timer was scheduled with, in milliseconds
+         *  since the epoch.
+         */
+        void onExpired(ByteString key, long expiryTime);
+    }
+
+    private static final class Timer {
+        final ByteString key;
+        // Only changed by the wheel thread once the timer is in the wheel.
+        long expiryTime;
+        long expiryTick;
+        // Replaced by a timer with an earlier expiry time.
+        boolean replaced;
+
+        Timer(ByteString key, long expiryTime, long expiryTick) {
+            this.key = key;
+            this.expiryTime = expiryTime;
+            this.expiryTick = expiryTick;
+        }
+    }
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    // With 100ms ticks the top level turns once every 3.4 years, timers further out are
+    // cascaded back into the top level until they come within reach.
+    private static final int NUM_LEVELS = 5;
+
+    private final long mTickMs;
+    private final ExpiryListener mListener;
+    // Timers are handed to the wheel thread through this queue, so scheduling never blocks.
+    private final Queue<Timer> mPending = new ConcurrentLinkedQueue<>();
+    private final List<List<Timer>> mSlots;
+    // The live timer of each key in the wheel, only accessed by the wheel thread.
+    private final Map<ByteString, Timer> mTimers = new HashMap<>();
+    // The last tick that was processed, only accessed by the wheel thread.
+    private long mCurrentTick;
+
+    /**
+     * Start a timing wheel on its own thread.
+     * @param tickMs the number of milliseconds between ticks, which bounds how late the
+     *  listener is told about a key.
+     * @param listener is told about each key that is due, on the wheel's thread.
+     */
+    public TimingWheel(long tickMs, ExpiryListener listener) {
+        mTickMs = tickMs;
+        mListener = listener;
+        mSlots = new ArrayList<>(NUM_LEVELS * WHEEL_SIZE);
+        for (int i = 0; i < NUM_LEVELS * WHEEL_SIZE; i++) {
+            mSlots.add(new ArrayList<>());
+        }
+        mCurrentTick = System.currentTimeMillis() / tickMs;
+        // A daemon thread, so the wheel never keeps the process alive.
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "timing-wheel");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(() -> {
+            try {
+                advance(System.currentTimeMillis());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Tell the listener about key once expiryTime has passed, at most a tick later.
+     * @param key the key.
+     * @param expiryTime the expiry time in milliseconds since the epoch.
+     */
+    public void schedule(ByteString key, long expiryTime) {
+        // Round up so a timer never fires before its expiry time.
+        mPending.add(new Timer(key, expiryTime, (expiryTime + mTickMs - 1) / mTickMs));
+    }
+
+    private void advance(long now) {
+        long nowTick = now / mTickMs;
+        // Pending timers are placed relative to the current tick before the wheel moves on.
+        for (Timer timer = mPending.poll(); timer != null; timer = mPending.poll()) {
+            Timer current = mTimers.get(timer.key);
+            if (current != null && timer.expiryTick >= current.expiryTick) {
+                current.expiryTime = timer.expiryTime;
+                current.expiryTick = timer.expiryTick;
+                continue;
+            }
+            if (current != null) {
+                current.replaced = true;
+            }
+            mTimers.put(timer.key, timer);
+            add(timer);
+        }
+        while (mCurrentTick < nowTick) {
+            mCurrentTick++;
+            for (int level = NUM_LEVELS - 1; level > 0; level--) {
+                if ((mCurrentTick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                    cascade(getSlot(level, mCurrentTick));
+                }
+            }
+            List<Timer> due = getSlot(0, mCurrentTick);
+            for (int i = 0; i < due.size(); i++) {
+                fire(due.get(i));
+            }
+            due.clear();
+        }
+    }
+
+    private void cascade(List<Timer> slot) {
+        if (slot.isEmpty()) {
+            return;
+        }
+        List<Timer> timers = new ArrayList<>(slot);
+        slot.clear();
+        for (Timer timer : timers) {
+            if (!timer.replaced) {
+                add(timer);
+            }
+        }
+    }
+
+    private void add(Timer timer) {
+        long delta = timer.expiryTick - mCurrentTick;
+        if (delta <= 0) {
+            fire(timer);
+            return;
+        }
+        int level = 0;
+        while (level < NUM_LEVELS - 1 && delta >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        getSlot(level, timer.expiryTick).add(timer);
+    }
+
+    private List<Timer> getSlot(int level, long tick) {
+        return mSlots.get(level * WHEEL_SIZE + (int) ((tick >>> (WHEEL_BITS * level)) & WHEEL_MASK));
+    }
+
+    private void fire(Timer timer) {
+        if (timer.replaced) {
+            return;
+        }
+        if (timer.expiryTick > mCurrentTick) {
+            // Scheduled again with a later expiry time since it was put into the wheel.
+            add(timer);
+            return;
+        }
+        mTimers.remove(timer.key);
+        try {
+            mListener.onExpired(timer.key, timer.expiryTime);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -13,21 +13,50 @@ public class WriteEventHandler implements EventHandler {
     public static class WriteBundle {
         public final ByteBuffer outBuffer;
         public final SocketAddress outAddr;
+        // Set if outBuffer came from ResponseEncoder and goes back to its pool once sent.
+        public final boolean pooled;
         
         public WriteBundle(ByteBuffer outBuffer, SocketAddress outAddr) {
+            this(outBuffer, outAddr, false);
+        }
+        
+        public WriteBundle(ByteBuffer outBuffer, SocketAddress outAddr, boolean pooled) {
             this.outBuffer = outBuffer;
             this.outAddr = outAddr;
+            this.pooled = pooled;
         }
     }
     
     public static void write(DatagramChannel channel, ByteBuffer buf, SocketAddress addr) throws IOException, InterruptedException {
-        if (channel.send(buf, addr) == 0) {
+        write(channel, buf, addr, false);
+    }
+    
+    /**
+     * Send a datagram, or queue it until the channel is writable.
+     * @param pooled true if buf was returned by ResponseEncoder.encode, it is released to the
+     *  encoder's pool once sent and must not be used by the caller afterwards.
+     */
+    public static void write(DatagramChannel channel, ByteBuffer buf, SocketAddress addr, boolean pooled) throws IOException, InterruptedException {
+        int sent;
+        try {
+            sent = channel.send(buf, addr);
+        } catch (IOException e) {
+            if (pooled) {
+                ResponseEncoder.release(buf);
+            }
+            throw e;
+        }
+        if (sent != 0) {
+            if (pooled) {
+                ResponseEncoder.release(buf);
+            }
+        } else {
             Selector sel = Reactor.getInstance().getDemultiplexer();
             SelectionKey key = channel.keyFor(sel);
             @SuppressWarnings("unchecked")
             BlockingQueue<WriteBundle> queue = (BlockingQueue<WriteBundle>) key.attachment();
             
-            queue.put(new WriteBundle(buf, addr));
+            queue.put(new WriteBundle(buf, addr, pooled));
             
             synchronized(channel.blockingLock()) {
                 key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
@@ -49,6 +78,10 @@ public class WriteEventHandler implements EventHandler {
                 channel.send(writeBundle.outBuffer, writeBundle.outAddr);
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                if (writeBundle.pooled) {
+                    ResponseEncoder.release(writeBundle.outBuffer);
+                }
             }
         }
         
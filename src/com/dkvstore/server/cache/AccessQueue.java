@@ -0,0 +1,85 @@
+package com.dkvstore.server.cache;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A doubly linked list of cached keys from least to most recently used, with O(1) moves.
+ * Not thread safe.
+ */
+final class AccessQueue {
+    static final class Node {
+        final ByteString key;
+        int weight;
+        AccessQueue queue;
+        Node prev;
+        Node next;
+
+        Node(ByteString key, int weight) {
+            this.key = key;
+            this.weight = weight;
+        }
+    }
+
+    private Node mHead;
+    private Node mTail;
+    private long mWeight;
+
+    /**
+     * @return the least recently used node, or null if the queue is empty.
+     */
+    Node peekFirst() {
+        return mHead;
+    }
+
+    long getWeight() {
+        return mWeight;
+    }
+
+    /**
+     * Add a node as the most recently used one.
+     */
+    void add(Node node) {
+        node.queue = this;
+        node.prev = mTail;
+        node.next = null;
+        if (mTail == null) {
+            mHead = node;
+        } else {
+            mTail.next = node;
+        }
+        mTail = node;
+        mWeight += node.weight;
+    }
+
+    void remove(Node node) {
+        if (node.prev == null) {
+            mHead = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            mTail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.queue = null;
+        mWeight -= node.weight;
+    }
+
+    void moveToTail(Node node) {
+        if (node != mTail) {
+            remove(node);
+            add(node);
+        }
+    }
+
+    /**
+     * Change the weight of a node in this queue.
+     */
+    void setWeight(Node node, int weight) {
+        mWeight += weight - node.weight;
+        node.weight = weight;
+    }
+}
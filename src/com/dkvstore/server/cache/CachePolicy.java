@@ -0,0 +1,38 @@
+package com.dkvstore.server.cache;
+
+import java.util.function.Consumer;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * Decides which keys are evicted to keep the total weight of the cached entries within a budget.
+ * Policies are thread safe.
+ */
+public interface CachePolicy {
+    /**
+     * Record a read of a key.
+     * @param key the key.
+     * @param hit true if the key was in the cache.
+     */
+    void recordRead(ByteString key, boolean hit);
+
+    /**
+     * Record that a key was written and evict keys until the cache is within budget. The written
+     * key itself can be evicted right away if the policy does not admit it.
+     * @param key the key.
+     * @param weight the number of bytes the key's entry takes up.
+     * @param evictor removes an evicted key from the cache, called once the policy is unlocked,
+     *  as removing a key may wait on the disk.
+     */
+    void recordWrite(ByteString key, int weight, Consumer<ByteString> evictor);
+
+    /**
+     * Record that a key was removed from the cache.
+     */
+    void recordRemove(ByteString key);
+
+    /**
+     * @return the total weight of the keys in the cache.
+     */
+    long getWeight();
+}
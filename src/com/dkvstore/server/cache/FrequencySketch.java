@@ -0,0 +1,96 @@
+package com.dkvstore.server.cache;
+
+/**
+ * A count-min sketch with 4 bit counters that estimates how often keys were accessed recently.
+ * Counters are halved once the number of recorded accesses reaches ten times the capacity, so
+ * the estimates favour recent history and keys that stopped being popular age out.
+ *
+ * Takes 8 bytes per 16 counters and 4 counters per key, so about 2 bytes per key of capacity.
+ * Not thread safe.
+ */
+public class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long[] SEEDS = {
+            0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L, 0xd6e8feb86659fd93L};
+
+    private long[] mTable;
+    private int mTableMask;
+    private int mSampleSize;
+    private int mSize;
+
+    /**
+     * @param capacity the expected number of distinct keys in the cache.
+     */
+    public FrequencySketch(int capacity) {
+        ensureCapacity(capacity);
+    }
+
+    /**
+     * Grow the sketch for a larger number of distinct keys, which clears the recorded history.
+     */
+    public void ensureCapacity(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 28)) - 1) << 1;
+        if (mTable != null && mTable.length >= tableSize) {
+            return;
+        }
+        mTable = new long[tableSize];
+        mTableMask = tableSize - 1;
+        mSampleSize = 10 * Math.max(capacity, 16);
+        mSize = 0;
+    }
+
+    /**
+     * @return the estimated number of recent accesses of the key, at most 15.
+     */
+    public int frequency(int keyHash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            long hash = hash(keyHash, i);
+            int shift = counterShift(hash);
+            frequency = Math.min(frequency, (int) ((mTable[index(hash)] >>> shift) & 0xf));
+        }
+        return frequency;
+    }
+
+    /**
+     * Record an access of the key.
+     */
+    public void increment(int keyHash) {
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            long hash = hash(keyHash, i);
+            int index = index(hash);
+            int shift = counterShift(hash);
+            if (((mTable[index] >>> shift) & 0xf) != MAX_COUNT) {
+                mTable[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++mSize == mSampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < mTable.length; i++) {
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize /= 2;
+    }
+
+    private static long hash(int keyHash, int i) {
+        long hash = (keyHash + SEEDS[i]) * SEEDS[i];
+        return hash ^ (hash >>> 32);
+    }
+
+    private int index(long hash) {
+        return (int) hash & mTableMask;
+    }
+
+    private static int counterShift(long hash) {
+        // Use bits of the hash that do not pick the index to pick one of the 16 counters in a long.
+        return (int) ((hash >>> 40) & 0xf) << 2;
+    }
+}
@@ -0,0 +1,93 @@
+package com.dkvstore.server.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.dkvstore.server.cache.AccessQueue.Node;
+import com.google.protobuf.ByteString;
+
+/**
+ * Evicts the least recently used keys. Reads that find the policy locked are not recorded, so
+ * readers never wait on each other.
+ */
+public class LruPolicy implements CachePolicy {
+    private final long mMaxWeight;
+    private final Map<ByteString, Node> mNodes = new HashMap<>();
+    private final AccessQueue mQueue = new AccessQueue();
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * @param maxWeight the budget for the total weight of the cached keys.
+     */
+    public LruPolicy(long maxWeight) {
+        mMaxWeight = maxWeight;
+    }
+
+    @Override
+    public void recordRead(ByteString key, boolean hit) {
+        if (!hit || !mLock.tryLock()) {
+            return;
+        }
+        try {
+            Node node = mNodes.get(key);
+            if (node != null) {
+                mQueue.moveToTail(node);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void recordWrite(ByteString key, int weight, Consumer<ByteString> evictor) {
+        List<ByteString> victims = new ArrayList<>(0);
+        mLock.lock();
+        try {
+            Node node = mNodes.get(key);
+            if (node == null) {
+                node = new Node(key, weight);
+                mNodes.put(key, node);
+                mQueue.add(node);
+            } else {
+                mQueue.setWeight(node, weight);
+                mQueue.moveToTail(node);
+            }
+            while (mQueue.getWeight() > mMaxWeight) {
+                Node victim = mQueue.peekFirst();
+                mQueue.remove(victim);
+                mNodes.remove(victim.key);
+                victims.add(victim.key);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        victims.forEach(evictor);
+    }
+
+    @Override
+    public void recordRemove(ByteString key) {
+        mLock.lock();
+        try {
+            Node node = mNodes.remove(key);
+            if (node != null) {
+                mQueue.remove(node);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        mLock.lock();
+        try {
+            return mQueue.getWeight();
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.dkvstore.server.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.dkvstore.server.cache.AccessQueue.Node;
+import com.google.protobuf.ByteString;
+
+/**
+ * Window TinyLFU: new keys enter a small LRU window (1% of the budget). Keys leaving the window
+ * are candidates for the main space, a segmented LRU whose protected segment (80% of the main
+ * space) holds keys that were used again while in the probation segment. When the cache is over
+ * budget a candidate is only admitted if a frequency sketch says it was accessed more often than
+ * the probation key it would replace, so a burst of keys used once cannot flush out popular keys.
+ *
+ * Every operation is O(1). Reads that find the policy locked are not recorded, so readers never
+ * wait on each other. Evicted keys are removed from the store after the policy is unlocked, so
+ * neither readers nor writers wait on the store's log while another write evicts.
+ */
+public class WTinyLfuPolicy implements CachePolicy {
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    // Candidates this rarely used are never admitted over a more frequent victim by chance.
+    private static final int ADMIT_RANDOMLY_MIN_FREQUENCY = 6;
+
+    private final long mMaxWeight;
+    private final long mWindowMaxWeight;
+    private final long mProtectedMaxWeight;
+    private final Map<ByteString, Node> mNodes = new HashMap<>();
+    private final AccessQueue mWindow = new AccessQueue();
+    private final AccessQueue mProbation = new AccessQueue();
+    private final AccessQueue mProtected = new AccessQueue();
+    private final FrequencySketch mSketch;
+    private int mSketchCapacity;
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * @param maxWeight the budget for the total weight of the cached keys.
+     */
+    public WTinyLfuPolicy(long maxWeight) {
+        mMaxWeight = maxWeight;
+        mWindowMaxWeight = Math.max(1, (long) (maxWeight * WINDOW_RATIO));
+        mProtectedMaxWeight = (long) ((maxWeight - mWindowMaxWeight) * PROTECTED_RATIO);
+        mSketchCapacity = 1024;
+        mSketch = new FrequencySketch(mSketchCapacity);
+    }
+
+    @Override
+    public void recordRead(ByteString key, boolean hit) {
+        if (!mLock.tryLock()) {
+            return;
+        }
+        try {
+            // Misses count too, so keys that keep getting requested are admitted once written.
+            mSketch.increment(key.hashCode());
+            if (hit) {
+                Node node = mNodes.get(key);
+                if (node != null) {
+                    onHit(node);
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void recordWrite(ByteString key, int weight, Consumer<ByteString> evictor) {
+        List<ByteString> victims = new ArrayList<>(0);
+        mLock.lock();
+        try {
+            mSketch.increment(key.hashCode());
+            Node node = mNodes.get(key);
+            if (node != null) {
+                node.queue.setWeight(node, weight);
+                onHit(node);
+            } else if (weight > mMaxWeight) {
+                victims.add(key);
+            } else {
+                node = new Node(key, weight);
+                mNodes.put(key, node);
+                mWindow.add(node);
+                if (mNodes.size() > mSketchCapacity) {
+                    mSketchCapacity *= 2;
+                    mSketch.ensureCapacity(mSketchCapacity);
+                }
+            }
+            evict(victims);
+        } finally {
+            mLock.unlock();
+        }
+        victims.forEach(evictor);
+    }
+
+    @Override
+    public void recordRemove(ByteString key) {
+        mLock.lock();
+        try {
+            Node node = mNodes.remove(key);
+            if (node != null) {
+                node.queue.remove(node);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public long getWeight() {
+        mLock.lock();
+        try {
+            return getTotalWeight();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void onHit(Node node) {
+        if (node.queue == mProbation) {
+            mProbation.remove(node);
+            mProtected.add(node);
+            // Demote the least recently used protected keys back to probation.
+            while (mProtected.getWeight() > mProtectedMaxWeight) {
+                Node demoted = mProtected.peekFirst();
+                mProtected.remove(demoted);
+                mProbation.add(demoted);
+            }
+        } else {
+            node.queue.moveToTail(node);
+        }
+    }
+
+    private void evict(List<ByteString> victims) {
+        // Keys pushed out of the window become candidates at the most recently used end of probation.
+        Node candidate = null;
+        while (mWindow.getWeight() > mWindowMaxWeight) {
+            Node node = mWindow.peekFirst();
+            mWindow.remove(node);
+            mProbation.add(node);
+            if (candidate == null) {
+                candidate = node;
+            }
+        }
+
+        while (getTotalWeight() > mMaxWeight) {
+            Node victim = mProbation.peekFirst();
+            if (victim == candidate) {
+                // Only candidates are left in probation.
+                victim = mProtected.peekFirst();
+            }
+            if (candidate == null) {
+                evict(victim != null ? victim : mWindow.peekFirst(), victims);
+            } else if (victim == null || !admit(candidate, victim)) {
+                Node next = candidate.next;
+                evict(candidate, victims);
+                candidate = next;
+            } else {
+                evict(victim, victims);
+            }
+        }
+    }
+
+    private boolean admit(Node candidate, Node victim) {
+        int candidateFrequency = mSketch.frequency(candidate.key.hashCode());
+        int victimFrequency = mSketch.frequency(victim.key.hashCode());
+        if (candidateFrequency > victimFrequency) {
+            return true;
+        }
+        // Admitting a warm candidate now and then keeps an attacker from pinning a victim
+        // by making its hash collide with popular keys.
+        return candidateFrequency >= ADMIT_RANDOMLY_MIN_FREQUENCY && ThreadLocalRandom.current().nextInt(128) == 0;
+    }
+
+    private void evict(Node node, List<ByteString> victims) {
+        node.queue.remove(node);
+        mNodes.remove(node.key);
+        victims.add(node.key);
+    }
+
+    private long getTotalWeight() {
+        return mWindow.getWeight() + mProbation.getWeight() + mProtected.getWeight();
+    }
+}
@@ -5,10 +5,12 @@ import com.google.protobuf.ByteString;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Given the key in the key/value request, this class applies
@@ -24,23 +26,35 @@ public class HashEntity {
     private static int numVNodes = 10;
     
     private final Map<Integer, VirtualNode[]> vNodeMap = new ConcurrentHashMap<>();
+    private final List<Runnable> ringListeners = new CopyOnWriteArrayList<>();
+    private volatile long ringEpoch;
+    // Looking up a digest is much more expensive than hashing a short key, so reuse one per thread.
+    private static final ThreadLocal<MessageDigest> md5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
     
     /**
-     * Maps a SHA256 hash of the entry byte array to a value on the hash circle (0...2^64-1)
+     * Maps a MD5 hash of the entry byte array to a value on the hash circle (0...2^64-1)
      * @param entry the byte array to be hashed
      * @return long in the range of the hash circle
      */
     public long hash(byte[] entry) {
-        MessageDigest instance;
-        try {
-            instance = MessageDigest.getInstance("MD5");
-            byte[] hash;
-            hash = instance.digest(entry);
-            return ByteBuffer.wrap(hash).getLong();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        return 0;
+        return ByteBuffer.wrap(md5.get().digest(entry)).getLong();
+    }
+    
+    /**
+     * Same as hash(key.toByteArray()) without copying the key.
+     * @param key the key to be hashed
+     * @return long in the range of the hash circle
+     */
+    public long hash(ByteString key) {
+        MessageDigest digest = md5.get();
+        digest.update(key.asReadOnlyByteBuffer());
+        return ByteBuffer.wrap(digest.digest()).getLong();
     }
 
     private HashEntity() {
@@ -54,7 +68,7 @@ public class HashEntity {
     public int getKVNodeId(ByteString key) {
         if(ring.isEmpty()) return -1;
 
-        long hash = hash(key.toByteArray());
+        long hash = hash(key);
         if(!ring.containsKey(hash)) {
             SortedMap<Long, VirtualNode> tailMap = ring.tailMap(hash);
             hash = tailMap.isEmpty() ?
@@ -73,7 +87,7 @@ public class HashEntity {
     public VirtualNode getKVNode(ByteString key) {
         if(ring.isEmpty()) return null;
 
-        long hash = hash(key.toByteArray());
+        long hash = hash(key);
         if(!ring.containsKey(hash)) {
             SortedMap<Long, VirtualNode> tailMap = ring.tailMap(hash);
             hash = tailMap.isEmpty() ?
@@ -83,6 +97,61 @@ public class HashEntity {
         return ring.get(hash);
     }
     
+    /**
+     * Gets the range of the ring owned by a virtual node, which is the range from the token of
+     * its predecessor to its own token.
+     * @param vnode the virtual node.
+     * @return the range of vnode.
+     */
+    public TokenRange getTokenRange(VirtualNode vnode) {
+        long token = hash(vnode.getKey());
+        Long prevToken = ring.lowerKey(token);
+        if (prevToken == null) {
+            prevToken = ring.isEmpty() ? token : ring.lastKey();
+        }
+        return new TokenRange(prevToken, token);
+    }
+    
+    /**
+     * @return the tokens of all virtual nodes on the ring in ascending order.
+     */
+    public long[] getTokens() {
+        return ring.keySet().stream().mapToLong(Long::longValue).toArray();
+    }
+    
+    /**
+     * Get the virtual nodes that are on the ring.
+     */
+    public Iterable<VirtualNode> getVNodes() {
+        return ring.values();
+    }
+    
+    /**
+     * @return an identifier of the ring's current tokens, which changes whenever nodes join or
+     *  leave and is the same on every node that sees the same ring.
+     */
+    public long getRingEpoch() {
+        return ringEpoch;
+    }
+    
+    /**
+     * Register a listener that is run after nodes are added to or removed from the ring.
+     */
+    public void addRingListener(Runnable listener) {
+        ringListeners.add(listener);
+    }
+    
+    private void notifyRingListeners() {
+        long epoch = 0;
+        for (long token : ring.keySet()) {
+            epoch = epoch * 31 + token;
+        }
+        ringEpoch = epoch;
+        for (Runnable listener : ringListeners) {
+            listener.run();
+        }
+    }
+    
     /**
      * Get the nodes within distance that the key should be replicated across, the returned
      * node ids will not be the same as the node id associated with startvnode.
@@ -232,6 +301,7 @@ public class HashEntity {
         }
 
         vNodeMap.put(pNodeId, vNodes);
+        notifyRingListeners();
         return pNodeId;
     }
 
@@ -254,6 +324,7 @@ public class HashEntity {
         if (nodeId != -1) {
             System.out.println(String.format("[DEBUG]: HashEntity#removeNode, removed %d vnodes with nodeId: %d", numRemoved, nodeId));
             vNodeMap.remove(nodeId);
+            notifyRingListeners();
         }
         else {
             System.err.println("[WARNING]: HashEntity#removeNode, cannot find node to remove");
@@ -6,11 +6,9 @@ import com.dkvstore.server.KeyValueStore;
 import com.dkvstore.server.distribution.DirectRoute;
 import com.dkvstore.server.distribution.HashEntity;
 import com.dkvstore.server.distribution.VirtualNode;
-import com.google.protobuf.ByteString;
 
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -49,34 +47,34 @@ public class PeriodicKVCheckup {
             try {
                 System.out.println("[INFO]: Starting periodic kv checkup task");
                 
-                Set<ByteString> keys = mKVStore.getKeys();
-                System.out.println(String.format("[INFO]: periodic kv checkup, checking %d keys", keys.size()));
-                
-                int numKeysRemoved = 0;
+                int[] numKeysRemoved = new int[1];
                 
+                // Find the virtual nodes of other nodes that this node is not a replica of, and
+                // drop their partitions as a whole.
                 VirtualNode[] selfVNodes = mHashEntity.getVNodeMap().get(mSelfNodeId);
-                Map<VirtualNode, Boolean> isPredecessorMap = new HashMap<>();
-                for(ByteString key : keys) {
-                    VirtualNode vnode = mHashEntity.getKVNode(key);
-                    if(vnode.getPNodeId() != mSelfNodeId) {
-                        if (!isPredecessorMap.containsKey(vnode)) {
-                            boolean isPredecessor = false;
-                            for (int i = 0; i < selfVNodes.length; i++) {
-                                if (mHashEntity.isPredecessor(selfVNodes[i], vnode.getPNodeId(), Protocol.REPLICATION_FACTOR - 1)) {
-                                    isPredecessor = true;
-                                    break;
-                                }
+                List<TokenRange> staleRanges = new ArrayList<>();
+                for (VirtualNode vnode : mHashEntity.getVNodes()) {
+                    if (vnode.getPNodeId() != mSelfNodeId) {
+                        boolean isPredecessor = false;
+                        for (int i = 0; i < selfVNodes.length; i++) {
+                            if (mHashEntity.isPredecessor(selfVNodes[i], vnode.getPNodeId(), Protocol.REPLICATION_FACTOR - 1)) {
+                                isPredecessor = true;
+                                break;
                             }
-                            isPredecessorMap.put(vnode, isPredecessor);
                         }
-                        if(!isPredecessorMap.get(vnode)) {
-                            numKeysRemoved++;
-                            mKVStore.remove(key);
+                        if (!isPredecessor) {
+                            staleRanges.add(mHashEntity.getTokenRange(vnode));
                         }
                     }
                 }
+                System.out.println(String.format("[INFO]: periodic kv checkup, dropping keys of %d virtual nodes", staleRanges.size()));
+                
+                mKVStore.forEachInRanges(staleRanges, (rangeIndex, position, key, entry) -> {
+                    numKeysRemoved[0]++;
+                    mKVStore.remove(key);
+                });
                 
-                System.out.println(String.format("[INFO]: periodic kv checkup, removed %d keys", numKeysRemoved));
+                System.out.println(String.format("[INFO]: periodic kv checkup, removed %d keys", numKeysRemoved[0]));
                 
             } catch(Exception e) {
                 e.printStackTrace();
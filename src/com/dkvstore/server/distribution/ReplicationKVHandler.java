@@ -12,9 +12,7 @@ import com.dkvstore.Util;
 import com.dkvstore.client.KVClient;
 import com.dkvstore.server.KeyValueStore;
 import com.dkvstore.server.ReactorServer;
-import com.dkvstore.server.KeyValueStore.ValuePair;
 import com.dkvstore.server.distribution.RouteStrategy.AddressHolder;
-import com.google.protobuf.ByteString;
 
 import ca.NetSysLab.ProtocolBuffers.KeyValueRequest;
 
@@ -65,11 +63,9 @@ public class ReplicationKVHandler {
                 
                 KeyValueRequest.KVRequest.Builder kvReqBuilder = KeyValueRequest.KVRequest.newBuilder();
     
-                int[] successorNodeIds = new int[Protocol.REPLICATION_FACTOR - 1];
-                
-                int debugReplicationSize = 0;
-                int debugNumKeysReplicated = 0;
-                int tries = 0;
+                int[] debugReplicationSize = new int[1];
+                int[] debugNumKeysReplicated = new int[1];
+                int[] tries = new int[1];
                 
                 kvReqBuilder
                     .setCommand(Protocol.PUT)
@@ -79,59 +75,63 @@ public class ReplicationKVHandler {
                 KeyValueStore kvStore = KeyValueStore.getInstance();
                 KVClient kvClient = ReactorServer.getInstance().getSecondaryKVClient();
                 
-                Set<ByteString> keys = kvStore.getKeys();
-                System.out.println(String.format("[DEBUG]: replicate to successor task, looping through %d keys", keys.size()));
-                
                 HashEntity hashEntity = HashEntity.getInstance();
-                // scan keys, replicate keys which hash to one of the affected virtual nodes.
-                for(ByteString key : keys) {
-                    VirtualNode vnode = hashEntity.getKVNode(key);
-                    if (affectedVNodes.contains(vnode)) {
-                        
-                        if (tries == NUM_OF_PUTS) {
-                            tries = 0;
-                            try {
-                                Thread.sleep(RETRY_INTERVAL);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                        } else {
-                            tries++;
-                        }
-                        
-                        ValuePair value = kvStore.get(key);
-                        kvReqBuilder
-                        .setKey(key)
-                        .setValue(value.value)
-                        .setVersion(value.version);
-                        
-                        // set the vector clock
-                        kvReqBuilder.clearVectorClock();
-                        for(int i = 0; i < value.vectorClock.length; i++) {
-                            kvReqBuilder.addVectorClock(value.vectorClock[i]);
+                List<TokenRange> ranges = new ArrayList<>();
+                // the successors of each range's virtual node, by range index.
+                int[][] successorNodeIds = new int[affectedVNodes.size()][Protocol.REPLICATION_FACTOR - 1];
+                int[] numSuccessors = new int[affectedVNodes.size()];
+                for (VirtualNode vnode : affectedVNodes) {
+                    numSuccessors[ranges.size()] = hashEntity.getSuccessorNodes(vnode, Protocol.REPLICATION_FACTOR - 1, successorNodeIds[ranges.size()]);
+                    ranges.add(hashEntity.getTokenRange(vnode));
+                }
+                // scan the partitions of the affected virtual nodes and replicate their keys.
+                kvStore.forEachInRanges(ranges, (rangeIndex, position, key, value) -> {
+                    if (tries[0] == NUM_OF_PUTS) {
+                        tries[0] = 0;
+                        try {
+                            Thread.sleep(RETRY_INTERVAL);
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
                         }
-                        
-                        byte[] payload = kvReqBuilder.build().toByteArray();
-                        
-                        debugReplicationSize += value.value.size();
-                        debugNumKeysReplicated++;
-                        
-                        int numSuccessors = hashEntity.getSuccessorNodes(vnode, Protocol.REPLICATION_FACTOR - 1, successorNodeIds);
-                        
-                        for (int i = 0; i < numSuccessors; i++) {
-                            AddressHolder replicaAddress = routeStrat.getRoute(successorNodeIds[i]);
-                            NetworkMessage msg = new NetworkMessage(Util.getUniqueId(ReactorServer.KEY_VALUE_PORT));
+                    } else {
+                        tries[0]++;
+                    }
+                    
+                    kvReqBuilder
+                    .setKey(key)
+                    .setValue(value.value)
+                    .setIsCompressed(value.compressed)
+                    .setVersion(value.version);
+                    if (value.expiryTime != 0) {
+                        kvReqBuilder.setExpiryTimeMs(value.expiryTime);
+                    } else {
+                        kvReqBuilder.clearExpiryTimeMs();
+                    }
+                    
+                    // set the vector clock
+                    kvReqBuilder.clearVectorClock();
+                    for(int i = 0; i < value.vectorClock.length; i++) {
+                        kvReqBuilder.addVectorClock(value.vectorClock[i]);
+                    }
+                    
+                    byte[] payload = kvReqBuilder.build().toByteArray();
+                    
+                    debugReplicationSize[0] += value.value.size();
+                    debugNumKeysReplicated[0]++;
+                    
+                    for (int i = 0; i < numSuccessors[rangeIndex]; i++) {
+                        AddressHolder replicaAddress = routeStrat.getRoute(successorNodeIds[rangeIndex][i]);
+                        NetworkMessage msg = new NetworkMessage(Util.getUniqueId(ReactorServer.KEY_VALUE_PORT));
         
-                            msg.setPayload(payload);
-                            msg.setAddressAndPort(replicaAddress.address, replicaAddress.port);
-                            
-                            kvClient.send(msg, null);
-                        }
+                        msg.setPayload(payload);
+                        msg.setAddressAndPort(replicaAddress.address, replicaAddress.port);
+                        
+                        kvClient.send(msg, null);
                     }
-                }
+                });
                 
-                System.out.println(String.format("[DEBUG]: replicate to successor task, total replication size: %d", debugReplicationSize));
-                System.out.println(String.format("[DEBUG]: replicate to successor task, number of keys replicated: %d", debugNumKeysReplicated));
+                System.out.println(String.format("[DEBUG]: replicate to successor task, total replication size: %d", debugReplicationSize[0]));
+                System.out.println(String.format("[DEBUG]: replicate to successor task, number of keys replicated: %d", debugNumKeysReplicated[0]));
             } catch(Exception e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,80 @@
+package com.dkvstore.server.distribution;
+
+import java.util.List;
+
+/**
+ * A range of positions on the hash ring, from start (exclusive) clockwise to end (inclusive).
+ * The range owned by a virtual node runs from the token of its predecessor to its own token,
+ * a range whose start equals its end covers the whole ring.
+ */
+public final class TokenRange {
+    public final long start;
+    public final long end;
+
+    public TokenRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public boolean isFullRing() {
+        return start == end;
+    }
+
+    /**
+     * @param hash a position on the ring.
+     * @return true if the position is in this range.
+     */
+    public boolean contains(long hash) {
+        // Positions are compared by their clockwise distance from start, which handles wrapping.
+        long offset = hash - start;
+        return isFullRing() || (offset != 0 && Long.compareUnsigned(offset, end - start) <= 0);
+    }
+
+    /**
+     * @return true if every position in other is also in this range.
+     */
+    public boolean contains(TokenRange other) {
+        if (isFullRing()) {
+            return true;
+        }
+        if (other.isFullRing()) {
+            return false;
+        }
+        long otherStart = other.start - start;
+        long otherEnd = other.end - start;
+        return Long.compareUnsigned(otherStart, otherEnd) < 0 && Long.compareUnsigned(otherEnd, end - start) <= 0;
+    }
+
+    /**
+     * @param ranges ranges of the ring.
+     * @param hash a position on the ring.
+     * @return the index of the first range that contains the position, -1 if there is none.
+     */
+    public static int indexOf(List<TokenRange> ranges, long hash) {
+        for (int i = 0; i < ranges.size(); i++) {
+            if (ranges.get(i).contains(hash)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof TokenRange)) {
+            return false;
+        }
+        TokenRange other = (TokenRange) obj;
+        return start == other.start && end == other.end;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(start) * 31 + Long.hashCode(end);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("(%d, %d]", start, end);
+    }
+}
@@ -0,0 +1,264 @@
+package com.dkvstore.server.storage;
+
+import java.util.Arrays;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * A fast LZ77 block compressor for values, using the sequence encoding of LZ4: matches are found
+ * with a single hash table probe, so compression is one pass over the value and decompression is
+ * little more than a copy.
+ *
+ * Format: [uncompressed length: varint][sequences]
+ * Sequence: [token: literal length << 4 | (match length - 4)][literal length extension][literals]
+ *           [match offset: 2 bytes, little endian][match length extension]
+ * A length nibble of 15 is followed by extension bytes that are added to it, up to and including
+ * the first byte that is not 255. The last sequence has only literals.
+ */
+public final class BlockCompressor {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+    private static final int HASH_LOG = 12;
+    // The search step grows by one every 2^SKIP_TRIGGER misses in a row, so data that does not
+    // compress is skipped over quickly.
+    private static final int SKIP_TRIGGER = 6;
+    private static final int MASK_NIBBLE = 0x0f;
+
+    private static final ThreadLocal<int[]> mHashTable = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+    private static final ThreadLocal<byte[][]> mBuffers = ThreadLocal.withInitial(() -> new byte[2][0]);
+
+    private BlockCompressor() {
+    }
+
+    /**
+     * @param value the value to compress.
+     * @param maxLength the maximum length of the compressed value.
+     * @return the compressed value, or null if it would be longer than maxLength.
+     */
+    public static ByteString compress(ByteString value, int maxLength) {
+        int length = value.size();
+        byte[] src = getBuffer(0, length);
+        value.copyTo(src, 0);
+        byte[] dst = getBuffer(1, maxLength);
+        int[] table = mHashTable.get();
+        Arrays.fill(table, -1);
+
+        int op = writeVarint(dst, 0, length, maxLength);
+        int anchor = 0;
+        int ip = 0;
+        int matchLimit = length - MIN_MATCH;
+        int misses = 0;
+        while (op >= 0 && ip <= matchLimit) {
+            int sequence = readInt(src, ip);
+            int h = hash(sequence);
+            int ref = table[h];
+            table[h] = ip;
+            if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                ip += 1 + (misses++ >>> SKIP_TRIGGER);
+                continue;
+            }
+            misses = 0;
+            // Extend the match backwards over literals and forwards as far as it goes.
+            while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+                ip--;
+                ref--;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < length && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(dst, op, maxLength, src, anchor, ip - anchor, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        if (op >= 0) {
+            op = writeSequence(dst, op, maxLength, src, anchor, length - anchor, 0, 0);
+        }
+        return op < 0 ? null : ByteString.copyFrom(dst, 0, op);
+    }
+
+    /**
+     * @param compressed a value compressed with compress.
+     * @return the length of the original value, without decompressing it.
+     * @throws IllegalStateException if compressed is not a valid compressed value.
+     */
+    public static int getLength(ByteString compressed) {
+        int length = 0;
+        for (int ip = 0, shift = 0; ; shift += 7) {
+            if (ip == compressed.size() || shift > 28) {
+                throw new IllegalStateException("Corrupted compressed length");
+            }
+            byte b = compressed.byteAt(ip++);
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return length;
+            }
+        }
+    }
+
+    /**
+     * @param compressed a value compressed with compress.
+     * @return the original value.
+     * @throws IllegalStateException if compressed is not a valid compressed value.
+     */
+    public static ByteString decompress(ByteString compressed) {
+        int srcLength = compressed.size();
+        byte[] src = getBuffer(0, srcLength);
+        compressed.copyTo(src, 0);
+
+        int length = 0;
+        int ip = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (ip == srcLength || shift > 28) {
+                throw new IllegalStateException("Corrupted compressed length");
+            }
+            byte b = src[ip++];
+            length |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                break;
+            }
+        }
+        // Every byte of a sequence produces at most 255 bytes, so this also keeps a corrupted
+        // length from allocating a huge array.
+        if (length < 0 || length > (long) srcLength * 255) {
+            throw new IllegalStateException("Corrupted compressed length");
+        }
+        byte[] dst = new byte[length];
+        int op = 0;
+        while (true) {
+            if (ip >= srcLength) {
+                throw new IllegalStateException("Truncated compressed value");
+            }
+            int token = src[ip++] & 0xff;
+            int literalLength = token >>> 4;
+            if (literalLength == MASK_NIBBLE) {
+                int b;
+                do {
+                    b = readExtensionByte(src, ip++, srcLength);
+                    literalLength += b;
+                } while (b == 255);
+            }
+            if (literalLength > srcLength - ip || literalLength > length - op) {
+                throw new IllegalStateException("Corrupted literal length");
+            }
+            System.arraycopy(src, ip, dst, op, literalLength);
+            ip += literalLength;
+            op += literalLength;
+            if (ip == srcLength) {
+                break;
+            }
+            if (ip + 2 > srcLength) {
+                throw new IllegalStateException("Truncated compressed value");
+            }
+            int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+            int matchLength = token & MASK_NIBBLE;
+            if (matchLength == MASK_NIBBLE) {
+                int b;
+                do {
+                    b = readExtensionByte(src, ip++, srcLength);
+                    matchLength += b;
+                } while (b == 255);
+            }
+            matchLength += MIN_MATCH;
+            if (offset == 0 || offset > op || matchLength > length - op) {
+                throw new IllegalStateException("Corrupted match");
+            }
+            // Byte by byte, the match may overlap the bytes it produces.
+            for (int ref = op - offset, end = op + matchLength; op < end; ) {
+                dst[op++] = dst[ref++];
+            }
+        }
+        if (op != length) {
+            throw new IllegalStateException("Corrupted compressed length");
+        }
+        // The array is never shared, so it can be wrapped without another copy.
+        return UnsafeByteOperations.unsafeWrap(dst);
+    }
+
+    /**
+     * @return the position after the sequence, or -1 if it does not fit.
+     */
+    private static int writeSequence(byte[] dst, int op, int maxLength, byte[] src, int literalStart,
+            int literalLength, int offset, int matchLength) {
+        if (op + literalLength + getSequenceOverhead(literalLength, matchLength) > maxLength) {
+            return -1;
+        }
+        int tokenPos = op++;
+        int token = Math.min(literalLength, MASK_NIBBLE) << 4;
+        op = writeLengthExtension(dst, op, literalLength);
+        System.arraycopy(src, literalStart, dst, op, literalLength);
+        op += literalLength;
+        if (matchLength != 0) {
+            dst[op++] = (byte) offset;
+            dst[op++] = (byte) (offset >>> 8);
+            token |= Math.min(matchLength - MIN_MATCH, MASK_NIBBLE);
+            op = writeLengthExtension(dst, op, matchLength - MIN_MATCH);
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int getSequenceOverhead(int literalLength, int matchLength) {
+        int overhead = 1 + getLengthExtensionSize(literalLength);
+        if (matchLength != 0) {
+            overhead += 2 + getLengthExtensionSize(matchLength - MIN_MATCH);
+        }
+        return overhead;
+    }
+
+    private static int getLengthExtensionSize(int length) {
+        return length < MASK_NIBBLE ? 0 : (length - MASK_NIBBLE) / 255 + 1;
+    }
+
+    private static int writeLengthExtension(byte[] dst, int op, int length) {
+        if (length < MASK_NIBBLE) {
+            return op;
+        }
+        int remaining = length - MASK_NIBBLE;
+        while (remaining >= 255) {
+            dst[op++] = (byte) 255;
+            remaining -= 255;
+        }
+        dst[op++] = (byte) remaining;
+        return op;
+    }
+
+    private static int readExtensionByte(byte[] src, int ip, int srcLength) {
+        if (ip >= srcLength) {
+            throw new IllegalStateException("Truncated compressed value");
+        }
+        return src[ip] & 0xff;
+    }
+
+    private static int writeVarint(byte[] dst, int op, int value, int maxLength) {
+        while (true) {
+            if (op == maxLength) {
+                return -1;
+            }
+            if ((value & ~0x7f) == 0) {
+                dst[op++] = (byte) value;
+                return op;
+            }
+            dst[op++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+    }
+
+    private static int readInt(byte[] buf, int pos) {
+        return (buf[pos] & 0xff) | (buf[pos + 1] & 0xff) << 8 | (buf[pos + 2] & 0xff) << 16 | buf[pos + 3] << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    private static byte[] getBuffer(int index, int minLength) {
+        byte[][] buffers = mBuffers.get();
+        if (buffers[index].length < minLength) {
+            buffers[index] = new byte[Math.max(minLength, buffers[index].length * 2)];
+        }
+        return buffers[index];
+    }
+}
@@ -0,0 +1,103 @@
+package com.dkvstore.server.storage;
+
+import java.nio.ByteBuffer;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A bloom filter over keys, used to skip SSTables that cannot contain a key. Uses double
+ * hashing of a 64 bit hash of the key to derive the bit positions.
+ */
+public class BloomFilter {
+    private static final int BITS_PER_KEY = 10; // About 1% false positives.
+    private static final int NUM_HASHES = 7;
+
+    private final long[] mBits;
+    private final int mNumBits;
+
+    /**
+     * @param expectedKeys the number of keys that will be added.
+     */
+    public BloomFilter(int expectedKeys) {
+        int numLongs = Math.max(1, (int) (((long) expectedKeys * BITS_PER_KEY + 63) / 64));
+        mBits = new long[numLongs];
+        mNumBits = numLongs * 64;
+    }
+
+    private BloomFilter(long[] bits) {
+        mBits = bits;
+        mNumBits = bits.length * 64;
+    }
+
+    public void add(ByteString key) {
+        addHash(hash(key));
+    }
+
+    /**
+     * Add a key given its hash, as returned by hash(key).
+     */
+    public void addHash(long hash) {
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = ((hash1 + i * hash2) & 0x7fffffff) % mNumBits;
+            mBits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if the key was definitely not added, true if it might have been.
+     */
+    public boolean mightContain(ByteString key) {
+        long hash = hash(key);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = ((hash1 + i * hash2) & 0x7fffffff) % mNumBits;
+            if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of bytes write needs.
+     */
+    public int getSerializedSize() {
+        return 4 + mBits.length * 8;
+    }
+
+    /**
+     * Format: [number of longs: 4 bytes][bits: 8 bytes per long]
+     */
+    public void write(ByteBuffer buf) {
+        buf.putInt(mBits.length);
+        for (long bits : mBits) {
+            buf.putLong(bits);
+        }
+    }
+
+    public static BloomFilter read(ByteBuffer buf) {
+        long[] bits = new long[buf.getInt()];
+        for (int i = 0; i < bits.length; i++) {
+            bits[i] = buf.getLong();
+        }
+        return new BloomFilter(bits);
+    }
+
+    /**
+     * 64 bit FNV-1a followed by a final mix, keys are short so this is cheap.
+     */
+    public static long hash(ByteString key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.size(); i++) {
+            hash ^= key.byteAt(i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
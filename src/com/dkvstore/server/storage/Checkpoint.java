@@ -0,0 +1,201 @@
+package com.dkvstore.server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.google.protobuf.ByteString;
+
+/**
+ * Writes and loads snapshots of the key value store to and from memory-mapped files.
+ *
+ * The file is a sequence of independently loadable segments followed by a footer:
+ * Segment format: [segment length: 4 bytes][number of entries: 4 bytes][entries]
+ * Entry format: [key length: 1 byte][key][entry, see EntryFormat]
+ * Footer format: [segment offsets: 8 bytes each][number of segments: 4 bytes]
+ *                [write ahead log generation: 8 bytes][magic: 8 bytes]
+ */
+public final class Checkpoint {
+    public static int SEGMENT_SIZE = 8 * 1024 * 1024; // in bytes
+    private static final long MAGIC = 0x444b56434b505431L;
+    private static final int SIZE_SEGMENT_HEADER = 8;
+    private static final int SIZE_FOOTER = 4 + 8 + 8;
+
+    public interface EntrySource {
+        /**
+         * Pass every entry to the consumer, entries may be changed while this is running.
+         */
+        void forEach(BiConsumer<ByteString, ValuePair> consumer);
+    }
+
+    private Checkpoint() {
+    }
+
+    /**
+     * Write a checkpoint to a temporary file and atomically move it to file once complete,
+     * so a crash during the write leaves the previous checkpoint in place.
+     * @param file the checkpoint file.
+     * @param source the entries to write.
+     * @param walGeneration the first write ahead log generation to replay after loading this checkpoint.
+     * @return the number of entries written.
+     * @throws IOException if the checkpoint cannot be written.
+     */
+    public static long write(File file, EntrySource source, long walGeneration) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        SegmentWriter writer = new SegmentWriter(tmpFile);
+        try {
+            source.forEach(writer::add);
+            writer.finish(walGeneration);
+        } finally {
+            writer.close();
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return writer.numEntries;
+    }
+
+    /**
+     * Load a checkpoint, loading its segments in parallel.
+     * @param file the checkpoint file.
+     * @param consumer receives every entry in the checkpoint, must be thread safe.
+     * @param numThreads the number of threads to load segments with.
+     * @return the first write ahead log generation to replay after loading.
+     * @throws IOException if the checkpoint is missing, incomplete or corrupted.
+     */
+    public static long load(File file, BiConsumer<ByteString, ValuePair> consumer, int numThreads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < SIZE_FOOTER) {
+                throw new IOException("Checkpoint too short");
+            }
+            MappedByteBuffer footer = channel.map(MapMode.READ_ONLY, fileSize - SIZE_FOOTER, SIZE_FOOTER);
+            int numSegments = footer.getInt();
+            long walGeneration = footer.getLong();
+            if (footer.getLong() != MAGIC) {
+                throw new IOException("Checkpoint is incomplete or corrupted");
+            }
+            MappedByteBuffer offsets = channel.map(MapMode.READ_ONLY, fileSize - SIZE_FOOTER - numSegments * 8L, numSegments * 8L);
+
+            ExecutorService loaders = Executors.newFixedThreadPool(numThreads);
+            try {
+                List<Future<Integer>> results = new ArrayList<>();
+                for (int i = 0; i < numSegments; i++) {
+                    long offset = offsets.getLong();
+                    results.add(loaders.submit(() -> loadSegment(channel, offset, consumer)));
+                }
+                long numEntries = 0;
+                for (Future<Integer> result : results) {
+                    numEntries += result.get();
+                }
+                System.out.println(String.format("[INFO]: Loaded %d entries from %d checkpoint segments", numEntries, numSegments));
+            } catch (Exception e) {
+                throw new IOException("Failed to load checkpoint", e);
+            } finally {
+                loaders.shutdown();
+            }
+            return walGeneration;
+        }
+    }
+
+    private static int loadSegment(FileChannel channel, long offset, BiConsumer<ByteString, ValuePair> consumer) throws IOException {
+        ByteBuffer header = channel.map(MapMode.READ_ONLY, offset, SIZE_SEGMENT_HEADER);
+        int length = header.getInt();
+        int numEntries = header.getInt();
+        MappedByteBuffer segment = channel.map(MapMode.READ_ONLY, offset + SIZE_SEGMENT_HEADER, length);
+        for (int i = 0; i < numEntries; i++) {
+            byte[] key = new byte[segment.get() & 0xff];
+            segment.get(key);
+            consumer.accept(ByteString.copyFrom(key), EntryFormat.read(segment));
+        }
+        return numEntries;
+    }
+
+    private static final class SegmentWriter {
+        private final FileChannel channel;
+        private final List<Long> segmentOffsets = new ArrayList<>();
+        private MappedByteBuffer segment;
+        private long segmentOffset;
+        private int segmentEntries;
+        private long numEntries;
+
+        private SegmentWriter(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        private void add(ByteString key, ValuePair pair) {
+            try {
+                int size = 1 + key.size() + EntryFormat.getSize(pair);
+                if (segment == null || segment.remaining() < size) {
+                    nextSegment(size);
+                }
+                segment.put((byte) key.size());
+                key.copyTo(segment);
+                EntryFormat.write(segment, pair);
+                segmentEntries++;
+                numEntries++;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private void nextSegment(int minSize) throws IOException {
+            long nextOffset = endSegment();
+            segmentOffset = nextOffset;
+            segmentEntries = 0;
+            segment = channel.map(MapMode.READ_WRITE, segmentOffset, Math.max(SEGMENT_SIZE, SIZE_SEGMENT_HEADER + minSize));
+            segment.position(SIZE_SEGMENT_HEADER);
+        }
+
+        /**
+         * @return the offset just past the current segment.
+         */
+        private long endSegment() {
+            if (segment == null) {
+                return 0;
+            }
+            int length = segment.position() - SIZE_SEGMENT_HEADER;
+            segment.putInt(0, length);
+            segment.putInt(4, segmentEntries);
+            segment.force();
+            segmentOffsets.add(segmentOffset);
+            return segmentOffset + SIZE_SEGMENT_HEADER + length;
+        }
+
+        private void finish(long walGeneration) throws IOException {
+            long end = endSegment();
+            segment = null;
+            // Mapping extended the file past the last segment, cut it back before the footer.
+            channel.truncate(end);
+            ByteBuffer footer = ByteBuffer.allocate(segmentOffsets.size() * 8 + SIZE_FOOTER);
+            for (long offset : segmentOffsets) {
+                footer.putLong(offset);
+            }
+            footer.putInt(segmentOffsets.size());
+            footer.putLong(walGeneration);
+            footer.putLong(MAGIC);
+            footer.flip();
+            long position = end;
+            while (footer.hasRemaining()) {
+                position += channel.write(footer, position);
+            }
+            channel.force(true);
+        }
+
+        private void close() throws IOException {
+            channel.close();
+        }
+    }
+}
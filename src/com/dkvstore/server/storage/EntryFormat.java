@@ -0,0 +1,143 @@
+package com.dkvstore.server.storage;
+
+import java.nio.ByteBuffer;
+
+import com.dkvstore.Util;
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Binary layout of a value pair when it is stored outside of the java heap.
+ *
+ * Format: [version: 4 bytes][vector clock length: 2 bytes][vector clock: 4 bytes per int]
+ *         [value length and flags: 4 bytes][expiry time: 8 bytes, if FLAG_EXPIRES is set][value]
+ * The top bits of the value length are flags, FLAG_COMPRESSED is set if the value is compressed and
+ * FLAG_POOLED if the value is the digest of a value in the store's ValuePool.
+ */
+public final class EntryFormat {
+    private static final int SIZE_HEADER = 4 + 2 + 4;
+    private static final int FLAG_COMPRESSED = 0x80000000;
+    private static final int FLAG_EXPIRES = 0x40000000;
+    private static final int FLAG_POOLED = 0x20000000;
+    private static final int MASK_FLAGS = FLAG_COMPRESSED | FLAG_EXPIRES | FLAG_POOLED;
+    private static final int SIZE_EXPIRY_TIME = 8;
+
+    private EntryFormat() {
+    }
+
+    /**
+     * @param pair the value pair.
+     * @return the number of bytes needed to store the value pair.
+     */
+    public static int getSize(ValuePair pair) {
+        return SIZE_HEADER + pair.vectorClock.length * 4 + (pair.expiryTime != 0 ? SIZE_EXPIRY_TIME : 0)
+                + pair.value.size();
+    }
+
+    /**
+     * Get the size of the value pair stored at the buffer's position, without reading the value.
+     * The buffer's position is not changed.
+     * @param buf the buffer holding a stored value pair.
+     * @return the number of bytes the stored value pair takes up.
+     */
+    public static int getStoredSize(ByteBuffer buf) {
+        int start = buf.position();
+        int vectorClockLength = buf.getShort(start + 4) & 0xffff;
+        int valueLengthAndFlags = buf.getInt(start + 6 + vectorClockLength * 4);
+        return SIZE_HEADER + vectorClockLength * 4 + ((valueLengthAndFlags & FLAG_EXPIRES) != 0 ? SIZE_EXPIRY_TIME : 0)
+                + (valueLengthAndFlags & ~MASK_FLAGS);
+    }
+
+    /**
+     * Write a value pair at the buffer's position, advancing the position.
+     * @param buf the buffer to write into.
+     * @param pair the value pair.
+     */
+    public static void write(ByteBuffer buf, ValuePair pair) {
+        buf.putInt(pair.version);
+        buf.putShort((short) pair.vectorClock.length);
+        for (int i = 0; i < pair.vectorClock.length; i++) {
+            buf.putInt(pair.vectorClock[i]);
+        }
+        buf.putInt(pair.value.size() | (pair.compressed ? FLAG_COMPRESSED : 0)
+                | (pair.expiryTime != 0 ? FLAG_EXPIRES : 0) | (pair.pooled ? FLAG_POOLED : 0));
+        if (pair.expiryTime != 0) {
+            buf.putLong(pair.expiryTime);
+        }
+        pair.value.copyTo(buf);
+    }
+
+    /**
+     * Read a value pair from the buffer's position, advancing the position.
+     * @param buf the buffer to read from.
+     * @return the value pair, its value is a private copy of the stored bytes.
+     * @throws IllegalStateException if the stored lengths do not fit in the buffer.
+     */
+    public static ValuePair read(ByteBuffer buf) {
+        int version = buf.getInt();
+        int vectorClockLength = buf.getShort() & 0xffff;
+        if (vectorClockLength * 4 > buf.remaining()) {
+            throw new IllegalStateException("Corrupted vector clock length");
+        }
+        int[] vectorClock = new int[vectorClockLength];
+        for (int i = 0; i < vectorClockLength; i++) {
+            vectorClock[i] = buf.getInt();
+        }
+        int valueLengthAndFlags = buf.getInt();
+        int valueLength = valueLengthAndFlags & ~MASK_FLAGS;
+        long expiryTime = 0;
+        if ((valueLengthAndFlags & FLAG_EXPIRES) != 0) {
+            if (buf.remaining() < SIZE_EXPIRY_TIME) {
+                throw new IllegalStateException("Corrupted expiry time");
+            }
+            expiryTime = buf.getLong();
+        }
+        if (valueLength > buf.remaining()) {
+            throw new IllegalStateException("Corrupted value length");
+        }
+        byte[] bytes = new byte[valueLength];
+        buf.get(bytes);
+        // The array is never shared, so it can be wrapped without another copy.
+        return new ValuePair(UnsafeByteOperations.unsafeWrap(bytes), (valueLengthAndFlags & FLAG_COMPRESSED) != 0,
+                (valueLengthAndFlags & FLAG_POOLED) != 0, version, vectorClock, expiryTime);
+    }
+
+    /**
+     * Like read, but from an array and without a buffer around it, and the value is a view of the
+     * array instead of a copy, so the stored bytes must never change afterwards. Still allocates the
+     * value pair, its vector clock and the view of the value.
+     * @param array the array holding a stored value pair.
+     * @param offset the index of the stored value pair in array.
+     * @throws IllegalStateException if the stored lengths do not fit in the array.
+     */
+    public static ValuePair readShared(byte[] array, int offset) {
+        int version = Util.intFromBytes(array, offset);
+        int vectorClockLength = ((array[offset + 4] & 0xff) << 8) | (array[offset + 5] & 0xff);
+        int position = offset + 6;
+        if (position + vectorClockLength * 4 + 4 > array.length) {
+            throw new IllegalStateException("Corrupted vector clock length");
+        }
+        int[] vectorClock = new int[vectorClockLength];
+        for (int i = 0; i < vectorClockLength; i++, position += 4) {
+            vectorClock[i] = Util.intFromBytes(array, position);
+        }
+        int valueLengthAndFlags = Util.intFromBytes(array, position);
+        position += 4;
+        int valueLength = valueLengthAndFlags & ~MASK_FLAGS;
+        long expiryTime = 0;
+        if ((valueLengthAndFlags & FLAG_EXPIRES) != 0) {
+            if (position + SIZE_EXPIRY_TIME > array.length) {
+                throw new IllegalStateException("Corrupted expiry time");
+            }
+            expiryTime = Util.longFromBytes(array, position);
+            position += SIZE_EXPIRY_TIME;
+        }
+        if (position + valueLength > array.length) {
+            throw new IllegalStateException("Corrupted value length");
+        }
+        return new ValuePair(UnsafeByteOperations.unsafeWrap(array, position, valueLength),
+                (valueLengthAndFlags & FLAG_COMPRESSED) != 0, (valueLengthAndFlags & FLAG_POOLED) != 0, version,
+                vectorClock, expiryTime);
+    }
+}
@@ -0,0 +1,779 @@
+package com.dkvstore.server.storage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.google.protobuf.ByteString;
+
+/**
+ * A log-structured merge tree that keeps recent writes in an in-memory memtable and the
+ * rest of the data in SSTables on disk, so the store can hold more data than fits in memory.
+ *
+ * A full memtable becomes immutable and is flushed to a level 0 table by a background thread,
+ * which also runs leveled compaction: once level 0 has too many tables they are merged into
+ * level 1, and once level n (n >= 1) grows past its size limit one of its tables is merged
+ * into level n + 1. Levels above 0 hold tables with disjoint key ranges, each level is
+ * LEVEL_MULTIPLIER times larger than the one before it. Which tables are live is recorded in
+ * a manifest file that is atomically replaced after every flush and compaction.
+ *
+ * Writers to a key take the write lock of the key's stripe. Reads that miss the memtables take
+ * the read lock of the stripe and go through a row cache of recently read entries, which writers
+ * invalidate while holding the write lock so the cache never returns an overwritten entry.
+ */
+public class LsmStore implements StorageEngine {
+    public static int TARGET_TABLE_SIZE = 8 * 1024 * 1024; // in bytes
+    public static long LEVEL_BASE_SIZE = 10L * TARGET_TABLE_SIZE; // Maximum bytes in level 1.
+    private static final int LEVEL_MULTIPLIER = 10;
+    private static final int L0_COMPACTION_TRIGGER = 4; // Number of level 0 tables.
+    private static final int MAX_IMMUTABLES = 4; // Writers stall while this many memtables wait to be flushed.
+    private static final int NUM_STRIPES = 64;
+    private static final String MANIFEST = "MANIFEST";
+
+    private static final class Memtable {
+        final ConcurrentSkipListMap<ByteString, ValuePair> map = new ConcurrentSkipListMap<>(SSTable.KEY_ORDER);
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private static final class State {
+        final Memtable memtable;
+        final List<Memtable> immutables; // Newest first.
+        final List<List<SSTable>> levels; // Level 0 newest first, other levels sorted by key.
+
+        State(Memtable memtable, List<Memtable> immutables, List<List<SSTable>> levels) {
+            this.memtable = memtable;
+            this.immutables = immutables;
+            this.levels = levels;
+        }
+    }
+
+    private final File mDir;
+    private final long mMemtableBytes;
+    private final StampedLock[] mStripes;
+    private final RowCache[] mRowCaches;
+    private final AtomicLong mNextSeq;
+    // Scans hold the read lock so compaction cannot close the tables they are reading.
+    private final ReentrantReadWriteLock mTableLock = new ReentrantReadWriteLock();
+    // Tables replaced by compaction that scans may still be reading, only used by the background thread.
+    private final List<SSTable> mObsoleteTables = new ArrayList<>();
+    private final ScheduledExecutorService mBackground;
+    private volatile State mState;
+
+    /**
+     * Open the store in dir, creating it if it does not exist.
+     * @param dir the directory holding the tables.
+     * @param memtableBytes the size at which a memtable is flushed.
+     * @param rowCacheBytes the maximum size of the row cache.
+     * @throws IOException if the tables cannot be opened.
+     */
+    public LsmStore(File dir, long memtableBytes, long rowCacheBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        mDir = dir;
+        mMemtableBytes = memtableBytes;
+        mStripes = new StampedLock[NUM_STRIPES];
+        mRowCaches = new RowCache[NUM_STRIPES];
+        for (int i = 0; i < NUM_STRIPES; i++) {
+            mStripes[i] = new StampedLock();
+            mRowCaches[i] = new RowCache(rowCacheBytes / NUM_STRIPES);
+        }
+
+        List<List<SSTable>> levels = new ArrayList<>();
+        long maxSeq = 0;
+        Set<String> live = new HashSet<>();
+        File manifest = new File(dir, MANIFEST);
+        if (manifest.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(manifest))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    int level;
+                    long seq;
+                    try {
+                        level = Integer.parseInt(parts[0]);
+                        seq = Long.parseLong(parts[1]);
+                    } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                        // Tables missing from a damaged manifest would be deleted below, leave them be.
+                        closeAll(levels);
+                        throw new IOException("Corrupted " + MANIFEST + " in " + dir + ": " + line, e);
+                    }
+                    SSTable table = SSTable.open(new File(dir, SSTable.getFileName(seq)));
+                    while (levels.size() <= level) {
+                        levels.add(new ArrayList<>());
+                    }
+                    levels.get(level).add(table);
+                    live.add(table.getFile().getName());
+                }
+            }
+        }
+        for (File file : dir.listFiles()) {
+            String name = file.getName();
+            if (name.endsWith(".sst")) {
+                maxSeq = Math.max(maxSeq, Long.parseLong(name.substring(0, name.length() - ".sst".length())));
+            }
+            // Left over from a crash, or replaced by a compaction that did not get to delete it.
+            if (name.endsWith(".tmp") || (name.endsWith(".sst") && !live.contains(name))) {
+                file.delete();
+            }
+        }
+        if (levels.isEmpty()) {
+            levels.add(new ArrayList<>());
+        }
+        for (int i = 0; i < levels.size(); i++) {
+            if (i == 0) {
+                levels.get(i).sort((a, b) -> Long.compare(b.getSeq(), a.getSeq()));
+            } else {
+                levels.get(i).sort((a, b) -> SSTable.KEY_ORDER.compare(a.getMinKey(), b.getMinKey()));
+            }
+        }
+        mNextSeq = new AtomicLong(maxSeq + 1);
+        mState = new State(new Memtable(), Collections.emptyList(), levels);
+        mBackground = Executors.newSingleThreadScheduledExecutor();
+        mBackground.execute(this::compact);
+        System.out.println(String.format("[INFO]: Opened LSM store with %d tables in %s", live.size(), dir));
+    }
+
+    @Override
+    public ValuePair get(ByteString key) {
+        ValuePair pair = findInMemory(mState, key);
+        if (pair != null) {
+            return pair == SSTable.TOMBSTONE ? null : pair;
+        }
+        int stripe = getStripe(key);
+        StampedLock lock = mStripes[stripe];
+        long stamp = lock.readLock();
+        try {
+            return read(stripe, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * @throws UncheckedIOException if the current value pair cannot be read from disk.
+     */
+    @Override
+    public ValuePair compute(ByteString key, UnaryOperator<ValuePair> remapping) {
+        int stripe = getStripe(key);
+        StampedLock lock = mStripes[stripe];
+        long stamp = lock.writeLock();
+        ValuePair newPair;
+        try {
+            ValuePair curPair = read(stripe, key);
+            newPair = remapping.apply(curPair);
+            if (newPair == curPair) {
+                return curPair;
+            }
+            ValuePair stored = newPair == null ? SSTable.TOMBSTONE : newPair;
+            // The memtable cannot be switched while a stripe is locked.
+            Memtable memtable = mState.memtable;
+            ValuePair oldStored = memtable.map.put(key, stored);
+            memtable.bytes.add(getSize(key, stored) - (oldStored == null ? 0 : getSize(key, oldStored)));
+            mRowCaches[stripe].remove(key);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (mState.memtable.bytes.sum() >= mMemtableBytes) {
+            switchMemtable();
+        }
+        return newPair;
+    }
+
+    /**
+     * Entries are passed in key order.
+     */
+    @Override
+    public void forEach(BiConsumer<ByteString, ValuePair> consumer) {
+        mTableLock.readLock().lock();
+        try {
+            State state = mState;
+            List<Iterator<Map.Entry<ByteString, ValuePair>>> sources = new ArrayList<>();
+            sources.add(state.memtable.map.entrySet().iterator());
+            for (Memtable memtable : state.immutables) {
+                sources.add(memtable.map.entrySet().iterator());
+            }
+            for (int i = 0; i < state.levels.size(); i++) {
+                if (i == 0) {
+                    for (SSTable table : state.levels.get(i)) {
+                        sources.add(table.iterator());
+                    }
+                } else {
+                    sources.add(new LevelIterator(state.levels.get(i)));
+                }
+            }
+            MergeIterator entries = new MergeIterator(sources);
+            while (entries.hasNext()) {
+                Map.Entry<ByteString, ValuePair> entry = entries.next();
+                if (entry.getValue() != SSTable.TOMBSTONE) {
+                    consumer.accept(entry.getKey(), entry.getValue());
+                }
+            }
+        } finally {
+            mTableLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes in the memtables and on disk.
+     */
+    @Override
+    public long getSizeBytes() {
+        State state = mState;
+        long size = state.memtable.bytes.sum();
+        for (Memtable memtable : state.immutables) {
+            size += memtable.bytes.sum();
+        }
+        for (List<SSTable> level : state.levels) {
+            size += getLevelSize(level);
+        }
+        return size;
+    }
+
+    /**
+     * Stop flushing and compacting and close all tables, entries that are only in memory are lost.
+     */
+    public void close() throws IOException {
+        mBackground.shutdownNow();
+        try {
+            mBackground.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeAll(mState.levels);
+    }
+
+    /**
+     * Read the current entry for key, the caller must hold the read or write lock of the key's stripe.
+     */
+    private ValuePair read(int stripe, ByteString key) {
+        while (true) {
+            State state = mState;
+            ValuePair pair = findInMemory(state, key);
+            if (pair == null) {
+                pair = mRowCaches[stripe].get(key);
+            }
+            if (pair == null) {
+                try {
+                    pair = findOnDisk(state, key);
+                } catch (ClosedByInterruptException e) {
+                    // Trying again would only be interrupted again, the table is open for other readers.
+                    throw new UncheckedIOException(e);
+                } catch (ClosedChannelException e) {
+                    // A compaction replaced a table we were reading, or an interrupted reader closed
+                    // its channel and it was opened again, try again. Closed tables are never read again.
+                    if (hasClosedTable(mState)) {
+                        throw new UncheckedIOException(e);
+                    }
+                    continue;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                // Cache misses too, so lookups of absent keys do not keep going to disk.
+                mRowCaches[stripe].put(key, pair == null ? SSTable.TOMBSTONE : pair);
+            }
+            return pair == SSTable.TOMBSTONE ? null : pair;
+        }
+    }
+
+    private static boolean hasClosedTable(State state) {
+        for (List<SSTable> level : state.levels) {
+            for (SSTable table : level) {
+                if (table.isClosed()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static ValuePair findInMemory(State state, ByteString key) {
+        ValuePair pair = state.memtable.map.get(key);
+        if (pair != null) {
+            return pair;
+        }
+        for (Memtable memtable : state.immutables) {
+            pair = memtable.map.get(key);
+            if (pair != null) {
+                return pair;
+            }
+        }
+        return null;
+    }
+
+    private static ValuePair findOnDisk(State state, ByteString key) throws IOException {
+        for (int i = 0; i < state.levels.size(); i++) {
+            List<SSTable> level = state.levels.get(i);
+            if (i == 0) {
+                for (SSTable table : level) {
+                    ValuePair pair = table.get(key);
+                    if (pair != null) {
+                        return pair;
+                    }
+                }
+                continue;
+            }
+            // Find the first table whose largest key is not smaller than key.
+            int low = 0;
+            int high = level.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (SSTable.KEY_ORDER.compare(level.get(mid).getMaxKey(), key) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low < level.size()) {
+                ValuePair pair = level.get(low).get(key);
+                if (pair != null) {
+                    return pair;
+                }
+            }
+        }
+        return null;
+    }
+
+    private synchronized void switchMemtable() {
+        while (mState.memtable.bytes.sum() >= mMemtableBytes) {
+            if (mState.immutables.size() >= MAX_IMMUTABLES) {
+                // Flushing is behind, stall writers until it catches up.
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            long[] stamps = new long[NUM_STRIPES];
+            for (int i = 0; i < NUM_STRIPES; i++) {
+                stamps[i] = mStripes[i].writeLock();
+            }
+            try {
+                State state = mState;
+                List<Memtable> immutables = new ArrayList<>(state.immutables);
+                immutables.add(0, state.memtable);
+                mState = new State(new Memtable(), immutables, state.levels);
+            } finally {
+                for (int i = 0; i < NUM_STRIPES; i++) {
+                    mStripes[i].unlockWrite(stamps[i]);
+                }
+            }
+            mBackground.execute(this::flush);
+        }
+    }
+
+    private void flush() {
+        Memtable memtable;
+        synchronized (this) {
+            if (mState.immutables.isEmpty()) {
+                return;
+            }
+            memtable = mState.immutables.get(mState.immutables.size() - 1);
+        }
+        try {
+            SSTable.Writer writer = new SSTable.Writer(mDir, mNextSeq.getAndIncrement());
+            for (Map.Entry<ByteString, ValuePair> entry : memtable.map.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue());
+            }
+            SSTable table = writer.finish();
+            synchronized (this) {
+                State state = mState;
+                List<Memtable> immutables = new ArrayList<>(state.immutables);
+                immutables.remove(memtable);
+                List<List<SSTable>> levels = copyLevels(state.levels);
+                levels.get(0).add(0, table);
+                writeManifest(levels);
+                mState = new State(state.memtable, immutables, levels);
+                notifyAll();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            // Try again later, writers stall in the meantime if memtables pile up.
+            mBackground.schedule(this::flush, 1, TimeUnit.SECONDS);
+            return;
+        }
+        compact();
+    }
+
+    private void compact() {
+        try {
+            int level;
+            while ((level = pickCompactionLevel(mState.levels)) >= 0) {
+                compact(level);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the level that most needs to be compacted, or -1 if no level needs compaction.
+     */
+    private static int pickCompactionLevel(List<List<SSTable>> levels) {
+        if (levels.get(0).size() >= L0_COMPACTION_TRIGGER) {
+            return 0;
+        }
+        int bestLevel = -1;
+        double bestScore = 1;
+        long maxSize = LEVEL_BASE_SIZE;
+        for (int i = 1; i < levels.size(); i++) {
+            double score = (double) getLevelSize(levels.get(i)) / maxSize;
+            if (score > bestScore) {
+                bestScore = score;
+                bestLevel = i;
+            }
+            maxSize *= LEVEL_MULTIPLIER;
+        }
+        return bestLevel;
+    }
+
+    private void compact(int level) throws IOException {
+        long startTime = System.nanoTime();
+        List<List<SSTable>> levels = mState.levels;
+        List<SSTable> inputs;
+        if (level == 0) {
+            inputs = new ArrayList<>(levels.get(0));
+        } else {
+            // Compact the table with the most entries, which frees the most space in this level.
+            SSTable largest = Collections.max(levels.get(level), (a, b) -> Long.compare(a.getNumEntries(), b.getNumEntries()));
+            inputs = Collections.singletonList(largest);
+        }
+        ByteString minKey = inputs.get(0).getMinKey();
+        ByteString maxKey = inputs.get(0).getMaxKey();
+        for (SSTable table : inputs) {
+            minKey = SSTable.KEY_ORDER.compare(table.getMinKey(), minKey) < 0 ? table.getMinKey() : minKey;
+            maxKey = SSTable.KEY_ORDER.compare(table.getMaxKey(), maxKey) > 0 ? table.getMaxKey() : maxKey;
+        }
+        List<SSTable> nextInputs = new ArrayList<>();
+        if (level + 1 < levels.size()) {
+            for (SSTable table : levels.get(level + 1)) {
+                if (table.overlaps(minKey, maxKey)) {
+                    nextInputs.add(table);
+                }
+            }
+        }
+        boolean bottommost = true;
+        for (int i = level + 2; i < levels.size(); i++) {
+            bottommost &= levels.get(i).isEmpty();
+        }
+
+        List<SSTable> outputs;
+        if (level > 0 && nextInputs.isEmpty()) {
+            // Nothing to merge with, move the table down without rewriting it.
+            outputs = inputs;
+        } else {
+            List<Iterator<Map.Entry<ByteString, ValuePair>>> sources = new ArrayList<>();
+            for (SSTable table : inputs) {
+                sources.add(table.iterator());
+            }
+            sources.add(new LevelIterator(nextInputs));
+            outputs = writeTables(new MergeIterator(sources), bottommost);
+        }
+
+        synchronized (this) {
+            State state = mState;
+            List<List<SSTable>> newLevels = copyLevels(state.levels);
+            if (newLevels.size() == level + 1) {
+                newLevels.add(new ArrayList<>());
+            }
+            newLevels.get(level).removeAll(inputs);
+            newLevels.get(level + 1).removeAll(nextInputs);
+            newLevels.get(level + 1).addAll(outputs);
+            newLevels.get(level + 1).sort((a, b) -> SSTable.KEY_ORDER.compare(a.getMinKey(), b.getMinKey()));
+            writeManifest(newLevels);
+            mState = new State(state.memtable, state.immutables, newLevels);
+        }
+
+        if (outputs != inputs) {
+            mObsoleteTables.addAll(inputs);
+            mObsoleteTables.addAll(nextInputs);
+            closeObsoleteTables();
+        }
+        System.out.println(String.format("[INFO]: Compacted %d tables from level %d into %d tables in level %d in %dms",
+                inputs.size() + nextInputs.size(), level, outputs.size(), level + 1,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime)));
+    }
+
+    /**
+     * Close and delete the tables replaced by compaction once no scan is reading them. Scans can
+     * write to the store, so waiting for them here could stall flushing behind a scan that is
+     * itself stalled on flushing.
+     */
+    private void closeObsoleteTables() {
+        if (!mTableLock.writeLock().tryLock()) {
+            mBackground.schedule(this::closeObsoleteTables, 1, TimeUnit.SECONDS);
+            return;
+        }
+        try {
+            for (SSTable table : mObsoleteTables) {
+                try {
+                    table.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                table.getFile().delete();
+            }
+            mObsoleteTables.clear();
+        } finally {
+            mTableLock.writeLock().unlock();
+        }
+    }
+
+    private List<SSTable> writeTables(MergeIterator entries, boolean dropTombstones) throws IOException {
+        List<SSTable> outputs = new ArrayList<>();
+        SSTable.Writer writer = null;
+        try {
+            while (entries.hasNext()) {
+                Map.Entry<ByteString, ValuePair> entry = entries.next();
+                // Nothing older is left for a tombstone to shadow at the bottommost level.
+                if (dropTombstones && entry.getValue() == SSTable.TOMBSTONE) {
+                    continue;
+                }
+                if (writer == null) {
+                    writer = new SSTable.Writer(mDir, mNextSeq.getAndIncrement());
+                }
+                writer.add(entry.getKey(), entry.getValue());
+                if (writer.getDataSize() >= TARGET_TABLE_SIZE) {
+                    outputs.add(writer.finish());
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                outputs.add(writer.finish());
+                writer = null;
+            }
+            return outputs;
+        } catch (IOException | RuntimeException e) {
+            if (writer != null) {
+                writer.abort();
+            }
+            for (SSTable table : outputs) {
+                table.close();
+                table.getFile().delete();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Replace the manifest with one listing levels. The new manifest is on disk before it replaces
+     * the old one, and the rename is on disk before this returns, so after a crash the manifest is
+     * either the old or the new one, and tables it does not list can be deleted on startup.
+     */
+    private void writeManifest(List<List<SSTable>> levels) throws IOException {
+        File tmpFile = new File(mDir, MANIFEST + ".tmp");
+        StringBuilder manifest = new StringBuilder();
+        for (int i = 0; i < levels.size(); i++) {
+            for (SSTable table : levels.get(i)) {
+                manifest.append(i).append(' ').append(table.getSeq()).append('\n');
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(manifest.toString().getBytes(StandardCharsets.US_ASCII));
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        Files.move(tmpFile.toPath(), new File(mDir, MANIFEST).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(mDir);
+    }
+
+    /**
+     * Force the directory's entries, and so the renames of new tables and the manifest, to disk.
+     */
+    private static void syncDirectory(File dir) throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            // Directories cannot be opened on some platforms, which then make renames durable themselves.
+            return;
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void closeAll(List<List<SSTable>> levels) throws IOException {
+        for (List<SSTable> level : levels) {
+            for (SSTable table : level) {
+                table.close();
+            }
+        }
+    }
+
+    private static List<List<SSTable>> copyLevels(List<List<SSTable>> levels) {
+        List<List<SSTable>> copy = new ArrayList<>();
+        for (List<SSTable> level : levels) {
+            copy.add(new ArrayList<>(level));
+        }
+        return copy;
+    }
+
+    private static long getLevelSize(List<SSTable> level) {
+        long size = 0;
+        for (SSTable table : level) {
+            size += table.getSizeBytes();
+        }
+        return size;
+    }
+
+    private static int getSize(ByteString key, ValuePair pair) {
+        return key.size() + EntryFormat.getSize(pair);
+    }
+
+    private static int getStripe(ByteString key) {
+        return (key.hashCode() & 0x7fffffff) % NUM_STRIPES;
+    }
+
+    /**
+     * Iterates over the tables of a level above 0 in key order.
+     */
+    private static final class LevelIterator implements Iterator<Map.Entry<ByteString, ValuePair>> {
+        private final Iterator<SSTable> mTables;
+        private Iterator<Map.Entry<ByteString, ValuePair>> mEntries = Collections.emptyIterator();
+
+        LevelIterator(List<SSTable> tables) {
+            mTables = tables.iterator();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!mEntries.hasNext() && mTables.hasNext()) {
+                mEntries = mTables.next().iterator();
+            }
+            return mEntries.hasNext();
+        }
+
+        @Override
+        public Map.Entry<ByteString, ValuePair> next() {
+            hasNext();
+            return mEntries.next();
+        }
+    }
+
+    /**
+     * Merges sorted sources into one sorted sequence, for a key in several sources only
+     * the entry of the first of those sources (the newest) is returned.
+     */
+    private static final class MergeIterator implements Iterator<Map.Entry<ByteString, ValuePair>> {
+        private static final class Source {
+            final Iterator<Map.Entry<ByteString, ValuePair>> entries;
+            final int rank;
+            Map.Entry<ByteString, ValuePair> current;
+
+            Source(Iterator<Map.Entry<ByteString, ValuePair>> entries, int rank) {
+                this.entries = entries;
+                this.rank = rank;
+            }
+        }
+
+        private final PriorityQueue<Source> mQueue;
+
+        MergeIterator(List<Iterator<Map.Entry<ByteString, ValuePair>>> sources) {
+            mQueue = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> {
+                int cmp = SSTable.KEY_ORDER.compare(a.current.getKey(), b.current.getKey());
+                return cmp != 0 ? cmp : Integer.compare(a.rank, b.rank);
+            });
+            for (int i = 0; i < sources.size(); i++) {
+                advance(new Source(sources.get(i), i));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !mQueue.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<ByteString, ValuePair> next() {
+            Source source = mQueue.poll();
+            Map.Entry<ByteString, ValuePair> entry = source.current;
+            advance(source);
+            // Skip older entries for the same key.
+            while (!mQueue.isEmpty() && mQueue.peek().current.getKey().equals(entry.getKey())) {
+                advance(mQueue.poll());
+            }
+            return entry;
+        }
+
+        private void advance(Source source) {
+            if (source.entries.hasNext()) {
+                source.current = source.entries.next();
+                mQueue.add(source);
+            }
+        }
+    }
+
+    /**
+     * A least recently used cache of entries read from disk, absent keys are cached as tombstones.
+     */
+    private static final class RowCache {
+        private final long mMaxBytes;
+        private long mBytes;
+        private final LinkedHashMap<ByteString, ValuePair> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+        RowCache(long maxBytes) {
+            mMaxBytes = maxBytes;
+        }
+
+        synchronized ValuePair get(ByteString key) {
+            return mEntries.get(key);
+        }
+
+        synchronized void put(ByteString key, ValuePair pair) {
+            ValuePair old = mEntries.put(key, pair);
+            mBytes += getSize(key, pair) - (old == null ? 0 : getSize(key, old));
+            Iterator<Map.Entry<ByteString, ValuePair>> it = mEntries.entrySet().iterator();
+            while (mBytes > mMaxBytes && it.hasNext()) {
+                Map.Entry<ByteString, ValuePair> eldest = it.next();
+                mBytes -= getSize(eldest.getKey(), eldest.getValue());
+                it.remove();
+            }
+        }
+
+        synchronized void remove(ByteString key) {
+            ValuePair old = mEntries.remove(key);
+            if (old != null) {
+                mBytes -= getSize(key, old);
+            }
+        }
+    }
+}
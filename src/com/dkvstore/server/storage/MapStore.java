@@ -0,0 +1,289 @@
+package com.dkvstore.server.storage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.UnaryOperator;
+
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.TokenRange;
+import com.google.protobuf.ByteString;
+
+/**
+ * Keeps entries in compact hash maps on the java heap, one map per virtual node on the ring
+ * (a partition), so that work on the keys of a virtual node only touches that virtual node's
+ * partition. A put is applied atomically per key inside the map's compute, so writers to
+ * keys in different segments of a map never block each other.
+ *
+ * When the ring changes, only the partitions whose range changes are split or merged. Operations
+ * hold the read lock of their partition, so a partition can be retired under its write lock once
+ * its entries are moved out, after which operations that still find it retry.
+ */
+public class MapStore implements StorageEngine {
+    private static final class Partition {
+        final TokenRange range;
+        final ShortKeyMap map = new ShortKeyMap();
+        final StampedLock lock = new StampedLock();
+        volatile boolean retired;
+
+        Partition(TokenRange range) {
+            this.range = range;
+        }
+    }
+
+    // Partitions keyed by the last token of their range, a key belongs to the first partition
+    // at or after its hash, wrapping around to the first partition.
+    private final ConcurrentSkipListMap<Long, Partition> mPartitions;
+    private final HashEntity mHashEntity;
+    // Striped counter so that concurrent writers don't contend on a single field.
+    private final LongAdder mSize;
+    private final long mMaxBytes;
+
+    /**
+     * @param maxBytes the approximate maximum number of bytes of keys and values in the store.
+     */
+    public MapStore(long maxBytes) {
+        mPartitions = new ConcurrentSkipListMap<>();
+        mPartitions.put(Long.MAX_VALUE, new Partition(new TokenRange(Long.MAX_VALUE, Long.MAX_VALUE)));
+        mHashEntity = HashEntity.getInstance();
+        mSize = new LongAdder();
+        mMaxBytes = maxBytes;
+    }
+
+    @Override
+    public ValuePair get(ByteString key) {
+        long hash = mHashEntity.hash(key);
+        while (true) {
+            Partition partition = getPartition(hash);
+            ValuePair entry = partition.map.get(key, hash);
+            // Entries are copied, not moved, out of a retired partition, so the entry
+            // is current if the partition was not retired yet.
+            if (!partition.retired && partition.range.contains(hash)) {
+                return entry;
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public ValuePair compute(ByteString key, UnaryOperator<ValuePair> remapping) {
+        long hash = mHashEntity.hash(key);
+        while (true) {
+            Partition partition = getPartition(hash);
+            long stamp = partition.lock.readLock();
+            try {
+                if (!partition.retired && partition.range.contains(hash)) {
+                    return partition.map.compute(key, hash, entry -> {
+                        ValuePair newEntry = remapping.apply(entry);
+                        if (newEntry != entry) {
+                            if (entry != null) {
+                                mSize.add(-getSize(key, entry));
+                            }
+                            if (newEntry != null) {
+                                mSize.add(getSize(key, newEntry));
+                            }
+                        }
+                        return newEntry;
+                    });
+                }
+            } finally {
+                partition.lock.unlockRead(stamp);
+            }
+            Thread.yield();
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<ByteString, ValuePair> consumer) {
+        for (Partition partition : mPartitions.values()) {
+            partition.map.forEach((hash, key, entry) -> consumer.accept(key, entry));
+        }
+    }
+
+    /**
+     * Only visits the partitions that overlap the ranges, the hashes stored with the keys are only
+     * compared against the ranges for partitions that are not fully inside a range.
+     */
+    @Override
+    public void forEachInRanges(List<TokenRange> ranges, RangeVisitor visitor) {
+        forEachPartitionInRanges(ranges, (partition, rangeIndex) -> {
+            if (rangeIndex >= 0) {
+                partition.map.forEach((hash, key, entry) -> visitor.visit(rangeIndex, hash, key, entry));
+            } else {
+                partition.map.forEach((hash, key, entry) -> {
+                    int index = TokenRange.indexOf(ranges, hash);
+                    if (index >= 0) {
+                        visitor.visit(index, hash, key, entry);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Visits the same partitions as forEachInRanges, without decoding the entries.
+     */
+    @Override
+    public void forEachKeyInRanges(List<TokenRange> ranges, RangeKeyVisitor visitor) {
+        forEachPartitionInRanges(ranges, (partition, rangeIndex) -> {
+            if (rangeIndex >= 0) {
+                partition.map.forEachKey((hash, key) -> visitor.visit(rangeIndex, hash, key));
+            } else {
+                partition.map.forEachKey((hash, key) -> {
+                    int index = TokenRange.indexOf(ranges, hash);
+                    if (index >= 0) {
+                        visitor.visit(index, hash, key);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Pass each partition that overlaps the ranges to the consumer once, along with the index of
+     * the range that contains it, or -1 if no range contains all of it.
+     */
+    private void forEachPartitionInRanges(List<TokenRange> ranges, ObjIntConsumer<Partition> consumer) {
+        Set<Partition> visited = new HashSet<>();
+        for (TokenRange range : ranges) {
+            for (Partition partition : getOverlappingPartitions(range)) {
+                if (visited.add(partition)) {
+                    consumer.accept(partition, indexOfContainingRange(partition.range, ranges));
+                }
+            }
+        }
+    }
+
+    /**
+     * Split and merge the partitions whose range changed, which costs time in the number of
+     * entries in those partitions only.
+     */
+    @Override
+    public synchronized void setTokens(long[] tokens) {
+        if (tokens.length == 0) {
+            tokens = new long[] {Long.MAX_VALUE};
+        }
+        List<Partition> added = new ArrayList<>();
+        Set<Long> tokenSet = new HashSet<>();
+        for (int i = 0; i < tokens.length; i++) {
+            tokenSet.add(tokens[i]);
+            TokenRange range = new TokenRange(tokens[(i + tokens.length - 1) % tokens.length], tokens[i]);
+            Partition partition = mPartitions.get(tokens[i]);
+            if (partition == null || !partition.range.equals(range)) {
+                added.add(new Partition(range));
+            }
+        }
+        List<Partition> retired = new ArrayList<>();
+        for (Partition partition : mPartitions.values()) {
+            if (!tokenSet.contains(partition.range.end) || !isUnchanged(partition, added)) {
+                retired.add(partition);
+            }
+        }
+        if (added.isEmpty() && retired.isEmpty()) {
+            return;
+        }
+
+        long[] stamps = new long[retired.size()];
+        for (int i = 0; i < retired.size(); i++) {
+            stamps[i] = retired.get(i).lock.writeLock();
+        }
+        try {
+            long[] numMoved = new long[1];
+            for (Partition partition : retired) {
+                partition.retired = true;
+                partition.map.forEach((hash, key, entry) -> {
+                    for (Partition to : added) {
+                        if (to.range.contains(hash)) {
+                            to.map.compute(key, hash, curEntry -> entry);
+                            numMoved[0]++;
+                            break;
+                        }
+                    }
+                });
+            }
+            // Operations that find a retired partition, or a partition not containing their key
+            // while the partitions are replaced, retry until they find the right one.
+            for (Partition partition : added) {
+                mPartitions.put(partition.range.end, partition);
+            }
+            for (Partition partition : retired) {
+                mPartitions.remove(partition.range.end, partition);
+            }
+            System.out.println(String.format("[INFO]: Repartitioned %d partitions into %d, moved %d keys",
+                    retired.size(), added.size(), numMoved[0]));
+        } finally {
+            for (int i = 0; i < retired.size(); i++) {
+                retired.get(i).lock.unlockWrite(stamps[i]);
+            }
+        }
+    }
+
+    @Override
+    public void checkCapacity(ByteString key, ByteString value) {
+        if (mSize.sum() + key.size() + value.size() + ValuePair.SIZE_META_INFO > mMaxBytes) {
+            throw new OutOfMemoryError();
+        }
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return mSize.sum();
+    }
+
+    private Partition getPartition(long hash) {
+        Map.Entry<Long, Partition> entry = mPartitions.ceilingEntry(hash);
+        return entry != null ? entry.getValue() : mPartitions.firstEntry().getValue();
+    }
+
+    private List<Partition> getOverlappingPartitions(TokenRange range) {
+        if (range.isFullRing()) {
+            return new ArrayList<>(mPartitions.values());
+        }
+        List<Partition> partitions = new ArrayList<>();
+        if (range.start < range.end) {
+            partitions.addAll(mPartitions.subMap(range.start, false, range.end, true).values());
+        } else {
+            partitions.addAll(mPartitions.tailMap(range.start, false).values());
+            partitions.addAll(mPartitions.headMap(range.end, true).values());
+        }
+        // The partition holding the end of the range may extend past it.
+        Partition last = getPartition(range.end);
+        if (last.range.end != range.end) {
+            partitions.add(last);
+        }
+        return partitions;
+    }
+
+    private static boolean isUnchanged(Partition partition, List<Partition> added) {
+        for (Partition other : added) {
+            if (other.range.end == partition.range.end) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the first range that contains all of partitionRange, -1 if there is none.
+     */
+    private static int indexOfContainingRange(TokenRange partitionRange, List<TokenRange> ranges) {
+        for (int i = 0; i < ranges.size(); i++) {
+            if (ranges.get(i).contains(partitionRange)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getSize(ByteString key, ValuePair entry) {
+        return key.size() + entry.value.size() + ValuePair.SIZE_META_INFO;
+    }
+}
@@ -0,0 +1,381 @@
+package com.dkvstore.server.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.TokenRange;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * Stores keys and value pairs (value, version and vector clock) in slab allocated off-heap
+ * memory. The index that maps a key to the address of its slot is an open addressing table of
+ * primitive arrays, a key hash and a slot address per entry, so the java heap holds no object per
+ * key and large stores put little pressure on the garbage collector. Probes compare the key hash
+ * first and only compare the key bytes in the slot on a match.
+ *
+ * The index is split into segments by key hash. Writers to a key take the write lock of its
+ * segment, readers use an optimistic read of the segment and only fall back to the read lock if
+ * a writer got in the way.
+ *
+ * Slot format: [ring hash of the key: 8 bytes][key length: 1 byte][key][entry, see EntryFormat]
+ */
+public class OffHeapStore implements StorageEngine {
+    // Large enough for a maximum sized value and a vector clock of several hundred nodes.
+    public static final int MAX_ENTRY_SIZE = 16 * 1024;
+    private static final int NUM_SEGMENTS = 64;
+    private static final int SEGMENT_BITS = 6;
+    private static final int INIT_CAPACITY = 64;
+    // Slots that are in use or deleted, beyond this the segment is rehashed.
+    private static final float MAX_LOAD = 0.75f;
+    // Index slots that were never used, and ones whose key was removed, which probes continue past.
+    private static final long EMPTY = SlabAllocator.NULL_ADDRESS;
+    private static final long DELETED = -2;
+    private static final int SIZE_HASH = 8;
+    private static final int SIZE_HEADER = SIZE_HASH + 1;
+    private static final int MAX_KEY_LENGTH = 0xff;
+
+    /**
+     * Receives the slots visited by forEachSlot.
+     */
+    private interface SlotVisitor {
+        /**
+         * @param pair the value pair, null if the entries are not read.
+         */
+        void visit(long position, ByteString key, ValuePair pair);
+    }
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        // Only replaced under the write lock, a probe reads both through the same snapshot.
+        volatile int[] hashes = new int[INIT_CAPACITY];
+        volatile long[] addresses = newAddresses(INIT_CAPACITY);
+        int size;
+        int numDeleted;
+    }
+
+    private final Segment[] mSegments;
+    private final SlabAllocator mAllocator;
+    private final HashEntity mHashEntity;
+
+    /**
+     * @param maxBytes the maximum number of off-heap bytes the store may use.
+     */
+    public OffHeapStore(long maxBytes) {
+        mAllocator = new SlabAllocator(SIZE_HEADER + MAX_KEY_LENGTH + MAX_ENTRY_SIZE, maxBytes);
+        mHashEntity = HashEntity.getInstance();
+        mSegments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            mSegments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public ValuePair get(ByteString key) {
+        // ByteString caches its hash code, so lookups hash a key once.
+        int hash = key.hashCode();
+        Segment segment = getSegment(hash);
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                long address = find(segment, key, hash);
+                ValuePair pair = address == EMPTY ? null : read(address);
+                if (segment.lock.validate(stamp)) {
+                    return pair;
+                }
+            } catch (RuntimeException e) {
+                // The segment was rehashed or a slot reused while reading, retry under the read lock.
+            }
+        }
+        stamp = segment.lock.readLock();
+        try {
+            long address = find(segment, key, hash);
+            return address == EMPTY ? null : read(address);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public ValuePair compute(ByteString key, UnaryOperator<ValuePair> remapping) {
+        if (key.size() > MAX_KEY_LENGTH) {
+            throw new IllegalArgumentException("Key too long: " + key.size());
+        }
+        int hash = key.hashCode();
+        Segment segment = getSegment(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            int[] hashes = segment.hashes;
+            long[] addresses = segment.addresses;
+            int mask = addresses.length - 1;
+            int free = -1;
+            int index = hash & mask;
+            for (int i = 0; i <= mask; i++, index = (index + 1) & mask) {
+                long address = addresses[index];
+                if (address == EMPTY) {
+                    break;
+                }
+                if (address == DELETED) {
+                    if (free < 0) {
+                        free = index;
+                    }
+                } else if (hashes[index] == hash && keyEquals(address, key)) {
+                    ValuePair curPair = read(address);
+                    ValuePair newPair = remapping.apply(curPair);
+                    if (newPair == curPair) {
+                        return curPair;
+                    }
+                    if (newPair == null) {
+                        addresses[index] = DELETED;
+                        segment.size--;
+                        segment.numDeleted++;
+                    } else {
+                        addresses[index] = write(key, newPair);
+                    }
+                    free(address);
+                    return newPair;
+                }
+            }
+
+            ValuePair newPair = remapping.apply(null);
+            if (newPair == null) {
+                return null;
+            }
+            long address = write(key, newPair);
+            if (free >= 0) {
+                segment.numDeleted--;
+            } else if (segment.size + segment.numDeleted + 1 > addresses.length * MAX_LOAD) {
+                rehash(segment);
+                hashes = segment.hashes;
+                addresses = segment.addresses;
+                free = findFree(addresses, hash & (addresses.length - 1));
+            } else {
+                free = findFree(addresses, index);
+            }
+            hashes[free] = hash;
+            addresses[free] = address;
+            segment.size++;
+            return newPair;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<ByteString, ValuePair> consumer) {
+        forEachSlot(null, true, (position, key, pair) -> consumer.accept(key, pair));
+    }
+
+    /**
+     * Compares the ring hashes stored with the entries against the ranges.
+     */
+    @Override
+    public void forEachInRanges(List<TokenRange> ranges, RangeVisitor visitor) {
+        forEachSlot(ranges, true, (position, key, pair) -> visitor.visit(TokenRange.indexOf(ranges, position), position, key, pair));
+    }
+
+    /**
+     * Like forEachInRanges, without reading the entries out of their slots.
+     */
+    @Override
+    public void forEachKeyInRanges(List<TokenRange> ranges, RangeKeyVisitor visitor) {
+        forEachSlot(ranges, false, (position, key, pair) -> visitor.visit(TokenRange.indexOf(ranges, position), position, key));
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return getUsedBytes();
+    }
+
+    /**
+     * @return the exact number of off-heap bytes taken up by allocated slots.
+     */
+    public long getUsedBytes() {
+        return mAllocator.getUsedBytes();
+    }
+
+    /**
+     * @return the number of off-heap bytes reserved, including free slots.
+     */
+    public long getReservedBytes() {
+        return mAllocator.getReservedBytes();
+    }
+
+    /**
+     * Pass the entries in the ranges, or every entry if ranges is null, to the visitor, reading
+     * each one under the read lock of its segment and calling the visitor without it.
+     * @param readEntries false to only read the keys.
+     */
+    private void forEachSlot(List<TokenRange> ranges, boolean readEntries, SlotVisitor visitor) {
+        for (Segment segment : mSegments) {
+            // A rehash replaces the arrays, the slots of this snapshot are checked against the
+            // current index before they are read, as the old addresses may have been freed.
+            int[] hashes = segment.hashes;
+            long[] addresses = segment.addresses;
+            for (int i = 0; i < addresses.length; i++) {
+                long position;
+                ByteString key;
+                ValuePair pair;
+                long stamp = segment.lock.readLock();
+                try {
+                    long address = addresses[i];
+                    if (address == EMPTY || address == DELETED) {
+                        continue;
+                    }
+                    if (segment.addresses != addresses) {
+                        try {
+                            key = readKey(address);
+                        } catch (RuntimeException e) {
+                            // The slot was reused for an entry that ends past its page.
+                            continue;
+                        }
+                        if (find(segment, key, hashes[i]) != address) {
+                            continue;
+                        }
+                    }
+                    ByteBuffer slot = mAllocator.getSlot(address);
+                    position = slot.getLong(slot.position());
+                    if (ranges != null && TokenRange.indexOf(ranges, position) < 0) {
+                        continue;
+                    }
+                    key = readKey(address);
+                    pair = readEntries ? read(address) : null;
+                } finally {
+                    segment.lock.unlockRead(stamp);
+                }
+                visitor.visit(position, key, pair);
+            }
+        }
+    }
+
+    private long find(Segment segment, ByteString key, int hash) {
+        int[] hashes = segment.hashes;
+        long[] addresses = segment.addresses;
+        int mask = addresses.length - 1;
+        int index = hash & mask;
+        for (int i = 0; i <= mask; i++, index = (index + 1) & mask) {
+            long address = addresses[index];
+            if (address == EMPTY) {
+                return EMPTY;
+            }
+            if (address != DELETED && hashes[index] == hash && keyEquals(address, key)) {
+                return address;
+            }
+        }
+        return EMPTY;
+    }
+
+    /**
+     * Rebuild the segment's arrays without deleted slots, doubling them if they are more than
+     * half full of keys.
+     */
+    private static void rehash(Segment segment) {
+        int[] oldHashes = segment.hashes;
+        long[] oldAddresses = segment.addresses;
+        int capacity = oldAddresses.length;
+        if (segment.size + 1 > capacity / 2) {
+            capacity *= 2;
+        }
+        int[] hashes = new int[capacity];
+        long[] addresses = newAddresses(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldAddresses.length; i++) {
+            long address = oldAddresses[i];
+            if (address != EMPTY && address != DELETED) {
+                int index = findFree(addresses, oldHashes[i] & mask);
+                hashes[index] = oldHashes[i];
+                addresses[index] = address;
+            }
+        }
+        segment.hashes = hashes;
+        segment.addresses = addresses;
+        segment.numDeleted = 0;
+    }
+
+    private static int findFree(long[] addresses, int index) {
+        int mask = addresses.length - 1;
+        while (addresses[index] != EMPTY && addresses[index] != DELETED) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static long[] newAddresses(int capacity) {
+        long[] addresses = new long[capacity];
+        Arrays.fill(addresses, EMPTY);
+        return addresses;
+    }
+
+    private Segment getSegment(int hash) {
+        // The low bits of the hash pick the index slot, the mixed high bits pick the segment.
+        return mSegments[(hash * 0x9E3779B9) >>> (32 - SEGMENT_BITS)];
+    }
+
+    /**
+     * Copy the key and value pair into a new slot.
+     * @return the address of the slot.
+     */
+    private long write(ByteString key, ValuePair pair) {
+        int entrySize = EntryFormat.getSize(pair);
+        if (entrySize > MAX_ENTRY_SIZE) {
+            throw new OutOfMemoryError();
+        }
+        // Hashed once per put, so scans over ranges of the ring never hash keys.
+        long position = mHashEntity.hash(key);
+        long address = mAllocator.allocate(SIZE_HEADER + key.size() + entrySize);
+        ByteBuffer slot = mAllocator.getSlot(address);
+        slot.putLong(position);
+        slot.put((byte) key.size());
+        for (int i = 0; i < key.size(); i++) {
+            slot.put(key.byteAt(i));
+        }
+        EntryFormat.write(slot, pair);
+        return address;
+    }
+
+    private boolean keyEquals(long address, ByteString key) {
+        ByteBuffer slot = mAllocator.getSlot(address);
+        int offset = slot.position() + SIZE_HASH;
+        int length = slot.get(offset) & 0xff;
+        if (length != key.size()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (slot.get(offset + 1 + i) != key.byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteString readKey(long address) {
+        ByteBuffer slot = mAllocator.getSlot(address);
+        slot.position(slot.position() + SIZE_HASH);
+        byte[] key = new byte[slot.get() & 0xff];
+        slot.get(key);
+        // The array is never shared, so it can be wrapped without another copy.
+        return UnsafeByteOperations.unsafeWrap(key);
+    }
+
+    private ValuePair read(long address) {
+        ByteBuffer slot = mAllocator.getSlot(address);
+        int start = slot.position();
+        // Bound reads so that a reused slot can never make us read past a slot's worth of data.
+        slot.limit(Math.min(slot.capacity(), start + SIZE_HEADER + MAX_KEY_LENGTH + MAX_ENTRY_SIZE));
+        slot.position(start + SIZE_HEADER + (slot.get(start + SIZE_HASH) & 0xff));
+        return EntryFormat.read(slot);
+    }
+
+    private void free(long address) {
+        ByteBuffer slot = mAllocator.getSlot(address);
+        int keyLength = slot.get(slot.position() + SIZE_HASH) & 0xff;
+        slot.position(slot.position() + SIZE_HEADER + keyLength);
+        mAllocator.free(address, SIZE_HEADER + keyLength + EntryFormat.getStoredSize(slot));
+    }
+}
@@ -0,0 +1,405 @@
+package com.dkvstore.server.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.google.protobuf.ByteString;
+
+/**
+ * An immutable file of entries sorted by key, with a sparse index over the entries and a
+ * bloom filter over the keys, both of which are kept in memory while the table is open.
+ *
+ * File format: [entries][sparse index][bloom filter][footer]
+ * Entry format: [key length: 1 byte][key][type: 1 byte][entry (PUT only), see EntryFormat]
+ * Sparse index format: [number of index entries: 4 bytes]([key length: 1 byte][key][entry offset: 8 bytes])*
+ * Footer format: [index offset: 8 bytes][bloom filter offset: 8 bytes][number of entries: 8 bytes][magic: 8 bytes]
+ *
+ * Tables are named [sequence number].sst, which level a table belongs to is kept by LsmStore.
+ */
+public class SSTable {
+    // Marks a removed key, so the removal shadows the key in older tables.
+    public static final ValuePair TOMBSTONE = new ValuePair(ByteString.EMPTY, 0, new int[0]);
+    public static final Comparator<ByteString> KEY_ORDER = (a, b) -> {
+        int len = Math.min(a.size(), b.size());
+        for (int i = 0; i < len; i++) {
+            int cmp = (a.byteAt(i) & 0xff) - (b.byteAt(i) & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.size() - b.size();
+    };
+
+    private static final int INDEX_INTERVAL = 16; // Entries per sparse index entry.
+    private static final long MAGIC = 0x444b5653535442L;
+    private static final int SIZE_FOOTER = 4 * 8;
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+
+    private final File mFile;
+    // Opened again if an interrupted reader closes it, until close is called.
+    private volatile FileChannel mChannel;
+    private volatile boolean mClosed;
+    private final long mSeq;
+    private final ByteString[] mIndexKeys;
+    private final long[] mIndexOffsets;
+    private final long mDataEnd;
+    private final BloomFilter mBloomFilter;
+    private final long mNumEntries;
+    private ByteString mMaxKey;
+
+    private SSTable(File file, FileChannel channel, long seq, ByteString[] indexKeys,
+                    long[] indexOffsets, long dataEnd, BloomFilter bloomFilter, long numEntries) {
+        mFile = file;
+        mChannel = channel;
+        mSeq = seq;
+        mIndexKeys = indexKeys;
+        mIndexOffsets = indexOffsets;
+        mDataEnd = dataEnd;
+        mBloomFilter = bloomFilter;
+        mNumEntries = numEntries;
+    }
+
+    public static String getFileName(long seq) {
+        return seq + ".sst";
+    }
+
+    /**
+     * Open an existing table.
+     * @param file the table file, named as given by getFileName.
+     * @throws IOException if the table cannot be read or is corrupted.
+     */
+    public static SSTable open(File file) throws IOException {
+        String name = file.getName();
+        long seq = Long.parseLong(name.substring(0, name.length() - ".sst".length()));
+
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer footer = read(channel, size - SIZE_FOOTER, SIZE_FOOTER);
+            long indexOffset = footer.getLong();
+            long bloomOffset = footer.getLong();
+            long numEntries = footer.getLong();
+            if (footer.getLong() != MAGIC) {
+                throw new IOException("Corrupted SSTable: " + file);
+            }
+            ByteBuffer meta = read(channel, indexOffset, (int) (size - SIZE_FOOTER - indexOffset));
+            int indexSize = meta.getInt();
+            ByteString[] indexKeys = new ByteString[indexSize];
+            long[] indexOffsets = new long[indexSize];
+            for (int i = 0; i < indexSize; i++) {
+                indexKeys[i] = readKey(meta);
+                indexOffsets[i] = meta.getLong();
+            }
+            meta.position((int) (bloomOffset - indexOffset));
+            BloomFilter bloomFilter = BloomFilter.read(meta);
+            SSTable table = new SSTable(file, channel, seq, indexKeys, indexOffsets,
+                    indexOffset, bloomFilter, numEntries);
+            table.mMaxKey = table.readMaxKey();
+            return table;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param key the key to look up.
+     * @return the entry for key, TOMBSTONE if the key was removed, or null if the table has no entry for key.
+     * @throws IOException if reading fails, a ClosedChannelException means the table was replaced
+     *  by compaction after the caller obtained it, or that another reader was interrupted, which
+     *  isClosed tells apart. A ClosedByInterruptException means the calling thread was interrupted.
+     */
+    public ValuePair get(ByteString key) throws IOException {
+        if (mIndexKeys.length == 0 || KEY_ORDER.compare(key, mIndexKeys[0]) < 0 ||
+                KEY_ORDER.compare(key, mMaxKey) > 0 || !mBloomFilter.mightContain(key)) {
+            return null;
+        }
+        int block = Arrays.binarySearch(mIndexKeys, key, KEY_ORDER);
+        if (block < 0) {
+            block = -block - 2;
+        }
+        ByteBuffer buf = readBlock(block);
+        while (buf.hasRemaining()) {
+            ByteString curKey = readKey(buf);
+            int cmp = KEY_ORDER.compare(curKey, key);
+            if (cmp > 0) {
+                break;
+            }
+            ValuePair pair = readValue(buf);
+            if (cmp == 0) {
+                return pair;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return an iterator over all entries in key order, tombstones included.
+     * @throws UncheckedIOException from the iterator if reading fails.
+     */
+    public Iterator<Map.Entry<ByteString, ValuePair>> iterator() {
+        return new Iterator<Map.Entry<ByteString, ValuePair>>() {
+            private int mBlock = -1;
+            private ByteBuffer mBuf = ByteBuffer.allocate(0);
+
+            @Override
+            public boolean hasNext() {
+                while (!mBuf.hasRemaining() && mBlock + 1 < mIndexOffsets.length) {
+                    try {
+                        mBuf = readBlock(++mBlock);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return mBuf.hasRemaining();
+            }
+
+            @Override
+            public Map.Entry<ByteString, ValuePair> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                ByteString key = readKey(mBuf);
+                return new SimpleImmutableEntry<>(key, readValue(mBuf));
+            }
+        };
+    }
+
+    public boolean overlaps(ByteString minKey, ByteString maxKey) {
+        return KEY_ORDER.compare(getMinKey(), maxKey) <= 0 && KEY_ORDER.compare(minKey, mMaxKey) <= 0;
+    }
+
+    public ByteString getMinKey() {
+        return mIndexKeys[0];
+    }
+
+    public ByteString getMaxKey() {
+        return mMaxKey;
+    }
+
+    public long getSeq() {
+        return mSeq;
+    }
+
+    public long getNumEntries() {
+        return mNumEntries;
+    }
+
+    public long getSizeBytes() {
+        return mFile.length();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * @return true if the table was closed, not just its channel by an interrupted reader.
+     */
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    public synchronized void close() throws IOException {
+        mClosed = true;
+        mChannel.close();
+    }
+
+    private ByteString readMaxKey() throws IOException {
+        if (mIndexKeys.length == 0) {
+            return ByteString.EMPTY;
+        }
+        ByteBuffer buf = readBlock(mIndexKeys.length - 1);
+        ByteString key = null;
+        while (buf.hasRemaining()) {
+            key = readKey(buf);
+            readValue(buf);
+        }
+        return key;
+    }
+
+    private ByteBuffer readBlock(int block) throws IOException {
+        long start = mIndexOffsets[block];
+        long end = block + 1 < mIndexOffsets.length ? mIndexOffsets[block + 1] : mDataEnd;
+        FileChannel channel = mChannel;
+        try {
+            return read(channel, start, (int) (end - start));
+        } catch (ClosedByInterruptException e) {
+            // The interrupt closed the channel for every reader, not just this one.
+            reopen(channel);
+            throw e;
+        }
+    }
+
+    private synchronized void reopen(FileChannel closedChannel) throws IOException {
+        if (!mClosed && mChannel == closedChannel) {
+            mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new IOException("Unexpected end of SSTable");
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static ByteString readKey(ByteBuffer buf) {
+        byte[] key = new byte[buf.get() & 0xff];
+        buf.get(key);
+        return ByteString.copyFrom(key);
+    }
+
+    private static ValuePair readValue(ByteBuffer buf) {
+        if (buf.get() == TYPE_TOMBSTONE) {
+            return TOMBSTONE;
+        }
+        return EntryFormat.read(buf);
+    }
+
+    /**
+     * Writes a table from entries added in key order. The table is written to a temporary file
+     * and only gets its real name once it is complete.
+     */
+    public static class Writer {
+        private final File mFile;
+        private final File mTmpFile;
+        private final FileChannel mChannel;
+        private final List<ByteString> mIndexKeys = new ArrayList<>();
+        private final List<Long> mIndexOffsets = new ArrayList<>();
+        private long[] mKeyHashes = new long[1024];
+        private long mNumEntries;
+        private ByteBuffer mBuf = ByteBuffer.allocate(64 * 1024);
+        private long mPosition;
+
+        /**
+         * @param dir the directory to write the table to.
+         * @param seq the sequence number of the table.
+         */
+        public Writer(File dir, long seq) throws IOException {
+            mFile = new File(dir, getFileName(seq));
+            mTmpFile = new File(dir, getFileName(seq) + ".tmp");
+            mChannel = FileChannel.open(mTmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        /**
+         * @param key must be larger than the previously added key.
+         * @param pair the entry or TOMBSTONE.
+         */
+        public void add(ByteString key, ValuePair pair) throws IOException {
+            int size = 1 + key.size() + 1 + (pair == TOMBSTONE ? 0 : EntryFormat.getSize(pair));
+            if (mBuf.remaining() < size) {
+                flushBuffer();
+                if (mBuf.capacity() < size) {
+                    mBuf = ByteBuffer.allocate(size);
+                }
+            }
+            if (mNumEntries % INDEX_INTERVAL == 0) {
+                mIndexKeys.add(key);
+                mIndexOffsets.add(mPosition + mBuf.position());
+            }
+            if (mNumEntries == mKeyHashes.length) {
+                mKeyHashes = Arrays.copyOf(mKeyHashes, mKeyHashes.length * 2);
+            }
+            mKeyHashes[(int) mNumEntries++] = BloomFilter.hash(key);
+
+            mBuf.put((byte) key.size());
+            key.copyTo(mBuf);
+            if (pair == TOMBSTONE) {
+                mBuf.put(TYPE_TOMBSTONE);
+            }
+            else {
+                mBuf.put(TYPE_PUT);
+                EntryFormat.write(mBuf, pair);
+            }
+        }
+
+        /**
+         * @return the number of bytes of entries added so far.
+         */
+        public long getDataSize() {
+            return mPosition + mBuf.position();
+        }
+
+        public long getNumEntries() {
+            return mNumEntries;
+        }
+
+        /**
+         * Write the index, bloom filter and footer, and give the table its real name.
+         * @return the opened table.
+         */
+        public SSTable finish() throws IOException {
+            flushBuffer();
+            long indexOffset = mPosition;
+            BloomFilter bloomFilter = new BloomFilter((int) mNumEntries);
+            for (int i = 0; i < mNumEntries; i++) {
+                bloomFilter.addHash(mKeyHashes[i]);
+            }
+
+            int indexSize = 4;
+            for (ByteString key : mIndexKeys) {
+                indexSize += 1 + key.size() + 8;
+            }
+            ByteBuffer meta = ByteBuffer.allocate(indexSize + bloomFilter.getSerializedSize() + SIZE_FOOTER);
+            meta.putInt(mIndexKeys.size());
+            for (int i = 0; i < mIndexKeys.size(); i++) {
+                meta.put((byte) mIndexKeys.get(i).size());
+                mIndexKeys.get(i).copyTo(meta);
+                meta.putLong(mIndexOffsets.get(i));
+            }
+            long bloomOffset = indexOffset + meta.position();
+            bloomFilter.write(meta);
+            meta.putLong(indexOffset);
+            meta.putLong(bloomOffset);
+            meta.putLong(mNumEntries);
+            meta.putLong(MAGIC);
+            meta.flip();
+            while (meta.hasRemaining()) {
+                mPosition += mChannel.write(meta, mPosition);
+            }
+            mChannel.force(true);
+            mChannel.close();
+            Files.move(mTmpFile.toPath(), mFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            return open(mFile);
+        }
+
+        /**
+         * Discard a table that has not been finished.
+         */
+        public void abort() throws IOException {
+            mChannel.close();
+            mTmpFile.delete();
+        }
+
+        private void flushBuffer() throws IOException {
+            mBuf.flip();
+            while (mBuf.hasRemaining()) {
+                mPosition += mChannel.write(mBuf, mPosition);
+            }
+            mBuf.clear();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.dkvstore.server.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.UnaryOperator;
+
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * An open addressing hash map from short keys (at most 255 bytes, clients are limited to
+ * Protocol.SIZE_MAX_KEY_LENGTH) to value pairs, built to keep the per-entry overhead of small
+ * entries low. Each entry is a single byte array holding the key and the value pair in
+ * EntryFormat, so there is no key object, map node, value pair or vector clock array per entry.
+ * Next to it a long array holds the 64-bit ring hash of each key, which is what probes compare
+ * first, so the key bytes are only compared on a hash match and scans never re-hash keys.
+ *
+ * The map is split into segments by hash. Writers lock their segment, readers use an optimistic
+ * read of the segment and only fall back to the read lock if a writer got in the way. Stored
+ * records are never modified, a put replaces a key's record, so the values handed out are views
+ * of the records rather than copies.
+ *
+ * Record format: [key length: 1 byte][key][entry, see EntryFormat]
+ */
+public class ShortKeyMap {
+    /**
+     * Receives the entries of the map.
+     */
+    public interface Visitor {
+        /**
+         * @param hash the ring hash the key was stored with.
+         * @param key the key.
+         * @param pair the value pair.
+         */
+        void visit(long hash, ByteString key, ValuePair pair);
+    }
+
+    /**
+     * Receives the keys of the map.
+     */
+    public interface KeyVisitor {
+        /**
+         * @param hash the ring hash the key was stored with.
+         * @param key the key.
+         */
+        void visit(long hash, ByteString key);
+    }
+
+    private interface RecordVisitor {
+        void visit(long hash, byte[] record);
+    }
+
+    private static final int NUM_SEGMENTS = 16;
+    private static final int SEGMENT_BITS = 4;
+    private static final int INIT_CAPACITY = 8;
+    // Slots that are in use or deleted, beyond this the segment is rehashed.
+    private static final float MAX_LOAD = 0.75f;
+    // Marks a deleted slot, which probes continue past.
+    private static final byte[] DELETED = new byte[0];
+
+    private static final class Segment {
+        final StampedLock lock = new StampedLock();
+        // Only replaced under the write lock, a probe reads both through the same snapshot.
+        volatile long[] hashes = new long[INIT_CAPACITY];
+        volatile byte[][] records = new byte[INIT_CAPACITY][];
+        int size;
+        int numDeleted;
+    }
+
+    private final Segment[] mSegments;
+
+    public ShortKeyMap() {
+        mSegments = new Segment[NUM_SEGMENTS];
+        for (int i = 0; i < NUM_SEGMENTS; i++) {
+            mSegments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @param key the key.
+     * @param hash the ring hash of the key, see HashEntity.hash.
+     * @return the value pair mapped to by key, or null if key is not in the map.
+     */
+    public ValuePair get(ByteString key, long hash) {
+        Segment segment = getSegment(hash);
+        long stamp = segment.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                byte[] record = find(segment, key, hash);
+                if (segment.lock.validate(stamp)) {
+                    return record == null ? null : readEntry(record);
+                }
+            } catch (RuntimeException e) {
+                // The segment was rehashed while probing, retry under the read lock.
+            }
+        }
+        stamp = segment.lock.readLock();
+        try {
+            byte[] record = find(segment, key, hash);
+            return record == null ? null : readEntry(record);
+        } finally {
+            segment.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Atomically replace the value pair mapped to by key.
+     * @param key the key.
+     * @param hash the ring hash of the key, see HashEntity.hash.
+     * @param remapping given the current value pair (null if none) returns the value pair to
+     *  store, returning the current value pair leaves the map unchanged and returning null
+     *  removes the key.
+     * @return the value pair mapped to by key after the call.
+     */
+    public ValuePair compute(ByteString key, long hash, UnaryOperator<ValuePair> remapping) {
+        Segment segment = getSegment(hash);
+        long stamp = segment.lock.writeLock();
+        try {
+            long[] hashes = segment.hashes;
+            byte[][] records = segment.records;
+            int mask = records.length - 1;
+            int free = -1;
+            int index = getIndex(hash, mask);
+            for (int i = 0; i <= mask; i++, index = (index + 1) & mask) {
+                byte[] record = records[index];
+                if (record == null) {
+                    break;
+                }
+                if (record == DELETED) {
+                    if (free < 0) {
+                        free = index;
+                    }
+                } else if (hashes[index] == hash && keyEquals(record, key)) {
+                    ValuePair curPair = readEntry(record);
+                    ValuePair newPair = remapping.apply(curPair);
+                    if (newPair == curPair) {
+                        return curPair;
+                    }
+                    if (newPair == null) {
+                        records[index] = DELETED;
+                        segment.size--;
+                        segment.numDeleted++;
+                    } else {
+                        records[index] = createRecord(key, newPair);
+                    }
+                    return newPair;
+                }
+            }
+
+            ValuePair newPair = remapping.apply(null);
+            if (newPair == null) {
+                return null;
+            }
+            byte[] record = createRecord(key, newPair);
+            if (free >= 0) {
+                segment.numDeleted--;
+            } else if (segment.size + segment.numDeleted + 1 > records.length * MAX_LOAD) {
+                rehash(segment);
+                hashes = segment.hashes;
+                records = segment.records;
+                free = findFree(records, getIndex(hash, records.length - 1));
+            } else {
+                free = findFree(records, index);
+            }
+            hashes[free] = hash;
+            records[free] = record;
+            segment.size++;
+            return newPair;
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Pass every entry to the visitor without locking the map while it runs. Entries may be
+     * changed while this is running, including by the visitor, and changes may or may not be seen.
+     */
+    public void forEach(Visitor visitor) {
+        forEachRecord((hash, record) -> visitor.visit(hash, readKey(record), readEntry(record)));
+    }
+
+    /**
+     * Like forEach, but only passes the keys, without decoding the entries.
+     */
+    public void forEachKey(KeyVisitor visitor) {
+        forEachRecord((hash, record) -> visitor.visit(hash, readKey(record)));
+    }
+
+    private void forEachRecord(RecordVisitor visitor) {
+        for (Segment segment : mSegments) {
+            // Rehashing replaces the arrays and never touches the old ones again, so slots of this
+            // snapshot only change in place under the write lock.
+            long[] hashes = segment.hashes;
+            byte[][] records = segment.records;
+            for (int i = 0; i < records.length; i++) {
+                long stamp = segment.lock.tryOptimisticRead();
+                long hash = hashes[i];
+                byte[] record = records[i];
+                if (!segment.lock.validate(stamp)) {
+                    stamp = segment.lock.readLock();
+                    hash = hashes[i];
+                    record = records[i];
+                    segment.lock.unlockRead(stamp);
+                }
+                if (record != null && record != DELETED) {
+                    visitor.visit(hash, record);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys in the map.
+     */
+    public long size() {
+        long size = 0;
+        for (Segment segment : mSegments) {
+            long stamp = segment.lock.readLock();
+            size += segment.size;
+            segment.lock.unlockRead(stamp);
+        }
+        return size;
+    }
+
+    /**
+     * @return the number of bytes taken up by the map, including its slots.
+     */
+    public long getSizeBytes() {
+        long sizeBytes = 0;
+        for (Segment segment : mSegments) {
+            long stamp = segment.lock.readLock();
+            try {
+                // A slot is a hash and a reference, records are arrays of a 16 byte header plus data.
+                sizeBytes += segment.records.length * 12L;
+                for (byte[] record : segment.records) {
+                    if (record != null && record != DELETED) {
+                        sizeBytes += 16 + record.length;
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+        return sizeBytes;
+    }
+
+    private static byte[] find(Segment segment, ByteString key, long hash) {
+        long[] hashes = segment.hashes;
+        byte[][] records = segment.records;
+        int mask = records.length - 1;
+        int index = getIndex(hash, mask);
+        for (int i = 0; i <= mask; i++, index = (index + 1) & mask) {
+            byte[] record = records[index];
+            if (record == null) {
+                return null;
+            }
+            if (record != DELETED && hashes[index] == hash && keyEquals(record, key)) {
+                return record;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Rebuild the segment's arrays without deleted slots, doubling them if they are more than
+     * half full of keys.
+     */
+    private static void rehash(Segment segment) {
+        long[] oldHashes = segment.hashes;
+        byte[][] oldRecords = segment.records;
+        int capacity = oldRecords.length;
+        if (segment.size + 1 > capacity / 2) {
+            capacity *= 2;
+        }
+        long[] hashes = new long[capacity];
+        byte[][] records = new byte[capacity][];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldRecords.length; i++) {
+            byte[] record = oldRecords[i];
+            if (record != null && record != DELETED) {
+                int index = findFree(records, getIndex(oldHashes[i], mask));
+                hashes[index] = oldHashes[i];
+                records[index] = record;
+            }
+        }
+        segment.hashes = hashes;
+        segment.records = records;
+        segment.numDeleted = 0;
+    }
+
+    private static int findFree(byte[][] records, int index) {
+        int mask = records.length - 1;
+        while (records[index] != null && records[index] != DELETED) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private Segment getSegment(long hash) {
+        // Keys of a virtual node share the high bits of their ring hash, mix all bits in.
+        return mSegments[(int) ((hash * 0x9E3779B97F4A7C15L) >>> (64 - SEGMENT_BITS))];
+    }
+
+    private static int getIndex(long hash, int mask) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static boolean keyEquals(byte[] record, ByteString key) {
+        int length = record[0] & 0xff;
+        if (length != key.size()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (record[1 + i] != key.byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] createRecord(ByteString key, ValuePair pair) {
+        if (key.size() > 0xff) {
+            throw new IllegalArgumentException("Key too long: " + key.size());
+        }
+        byte[] record = new byte[1 + key.size() + EntryFormat.getSize(pair)];
+        record[0] = (byte) key.size();
+        key.copyTo(record, 1);
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        buf.position(1 + key.size());
+        EntryFormat.write(buf, pair);
+        return record;
+    }
+
+    private static ByteString readKey(byte[] record) {
+        return UnsafeByteOperations.unsafeWrap(record, 1, record[0] & 0xff);
+    }
+
+    private static ValuePair readEntry(byte[] record) {
+        return EntryFormat.readShared(record, 1 + (record[0] & 0xff));
+    }
+}
@@ -0,0 +1,182 @@
+package com.dkvstore.server.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Allocates fixed size slots out of direct (off-heap) pages. Each page is assigned
+ * to one size class on demand and is carved up into slots of that size, freed slots are
+ * kept in a per size class free list that is threaded through the freed slots themselves,
+ * so the allocator creates no garbage on the java heap.
+ *
+ * An address is encoded as a long: [page index: 32 bits][offset in page: 32 bits].
+ */
+public class SlabAllocator {
+    public static final int PAGE_SIZE = 1024 * 1024; // in bytes
+    public static final int MIN_SLOT_SIZE = 64; // in bytes
+    public static final long NULL_ADDRESS = -1;
+    private static final double GROWTH_FACTOR = 1.25;
+
+    private final int[] mSlotSizes;
+    private final SizeClass[] mSizeClasses;
+    private final long mMaxBytes;
+    private volatile ByteBuffer[] mPages;
+    private int mNumPages;
+
+    private static final class SizeClass {
+        private final int slotSize;
+        private long freeHead = NULL_ADDRESS;
+        // Page currently being carved up, and the offset of the next never used slot in it.
+        private int curPage = -1;
+        private int curOffset;
+        private long usedBytes;
+
+        private SizeClass(int slotSize) {
+            this.slotSize = slotSize;
+        }
+    }
+
+    /**
+     * @param maxSlotSize the largest slot size that can be requested.
+     * @param maxBytes the maximum number of off-heap bytes the allocator may reserve.
+     */
+    public SlabAllocator(int maxSlotSize, long maxBytes) {
+        if (maxSlotSize > PAGE_SIZE) {
+            throw new IllegalArgumentException("Slot size cannot exceed page size");
+        }
+        int numClasses = 0;
+        int[] slotSizes = new int[64];
+        int size = MIN_SLOT_SIZE;
+        while (true) {
+            slotSizes[numClasses++] = size;
+            if (size >= maxSlotSize) {
+                break;
+            }
+            // Keep slots 8 byte aligned.
+            size = Math.min(maxSlotSize, ((int) (size * GROWTH_FACTOR) + 7) & ~7);
+        }
+        mSlotSizes = Arrays.copyOf(slotSizes, numClasses);
+        mSizeClasses = new SizeClass[numClasses];
+        for (int i = 0; i < numClasses; i++) {
+            mSizeClasses[i] = new SizeClass(mSlotSizes[i]);
+        }
+        mMaxBytes = maxBytes;
+        mPages = new ByteBuffer[16];
+    }
+
+    /**
+     * Allocate a slot that can hold at least size bytes.
+     * @param size the number of bytes needed.
+     * @return the address of the slot.
+     * @throws OutOfMemoryError if a new page is needed and the allocator is at its limit.
+     */
+    public long allocate(int size) {
+        SizeClass sizeClass = mSizeClasses[getSizeClassIdx(size)];
+        synchronized(sizeClass) {
+            long address = sizeClass.freeHead;
+            if (address != NULL_ADDRESS) {
+                sizeClass.freeHead = getPage(address).getLong(getOffset(address));
+            }
+            else {
+                if (sizeClass.curPage == -1 || sizeClass.curOffset + sizeClass.slotSize > PAGE_SIZE) {
+                    sizeClass.curPage = newPage();
+                    sizeClass.curOffset = 0;
+                }
+                address = toAddress(sizeClass.curPage, sizeClass.curOffset);
+                sizeClass.curOffset += sizeClass.slotSize;
+            }
+            sizeClass.usedBytes += sizeClass.slotSize;
+            return address;
+        }
+    }
+
+    /**
+     * Return a slot to its free list.
+     * @param address the address returned by allocate.
+     * @param size the size that was passed to allocate.
+     */
+    public void free(long address, int size) {
+        SizeClass sizeClass = mSizeClasses[getSizeClassIdx(size)];
+        synchronized(sizeClass) {
+            getPage(address).putLong(getOffset(address), sizeClass.freeHead);
+            sizeClass.freeHead = address;
+            sizeClass.usedBytes -= sizeClass.slotSize;
+        }
+    }
+
+    /**
+     * @param address a slot address.
+     * @return a view of the page holding the slot, positioned at the start of the slot. The view
+     *  is private to the caller.
+     */
+    public ByteBuffer getSlot(long address) {
+        ByteBuffer buf = getPage(address).duplicate();
+        buf.position(getOffset(address));
+        return buf;
+    }
+
+    /**
+     * @param size a requested size.
+     * @return the number of bytes actually reserved for a slot of the requested size.
+     */
+    public int getSlotSize(int size) {
+        return mSlotSizes[getSizeClassIdx(size)];
+    }
+
+    /**
+     * @return the number of bytes in slots that are currently allocated.
+     */
+    public long getUsedBytes() {
+        long used = 0;
+        for (SizeClass sizeClass : mSizeClasses) {
+            synchronized(sizeClass) {
+                used += sizeClass.usedBytes;
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return the number of off-heap bytes reserved by pages.
+     */
+    public synchronized long getReservedBytes() {
+        return (long) mNumPages * PAGE_SIZE;
+    }
+
+    private int getSizeClassIdx(int size) {
+        int idx = Arrays.binarySearch(mSlotSizes, size);
+        if (idx < 0) {
+            idx = -idx - 1;
+            if (idx == mSlotSizes.length) {
+                throw new IllegalArgumentException("Requested size too large: " + size);
+            }
+        }
+        return idx;
+    }
+
+    private synchronized int newPage() {
+        if ((long) (mNumPages + 1) * PAGE_SIZE > mMaxBytes) {
+            throw new OutOfMemoryError();
+        }
+        ByteBuffer[] pages = mPages;
+        if (mNumPages == pages.length) {
+            pages = Arrays.copyOf(pages, pages.length * 2);
+        }
+        pages[mNumPages] = ByteBuffer.allocateDirect(PAGE_SIZE);
+        // Publish after the page is in place.
+        mPages = pages;
+        return mNumPages++;
+    }
+
+    private ByteBuffer getPage(long address) {
+        return mPages[(int) (address >>> 32)];
+    }
+
+    private static int getOffset(long address) {
+        return (int) address;
+    }
+
+    private static long toAddress(int page, int offset) {
+        return ((long) page << 32) | offset;
+    }
+}
@@ -0,0 +1,117 @@
+package com.dkvstore.server.storage;
+
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.TokenRange;
+import com.google.protobuf.ByteString;
+
+/**
+ * Where the key value store keeps its entries. KeyValueStore implements the put, merge and
+ * logging logic on top of these operations, so every engine behaves the same to clients.
+ */
+public interface StorageEngine {
+    /**
+     * Receives the entries of a scan over ranges of the ring.
+     */
+    interface RangeVisitor {
+        /**
+         * @param rangeIndex the index of the range that the key's position on the ring is in,
+         *  the first one if the ranges overlap.
+         * @param position the key's position on the ring.
+         * @param key the key.
+         * @param pair the value pair.
+         */
+        void visit(int rangeIndex, long position, ByteString key, ValuePair pair);
+    }
+
+    /**
+     * Receives the keys of a scan over ranges of the ring.
+     */
+    interface RangeKeyVisitor {
+        /**
+         * @param rangeIndex the index of the range that the key's position on the ring is in,
+         *  the first one if the ranges overlap.
+         * @param position the key's position on the ring.
+         * @param key the key.
+         */
+        void visit(int rangeIndex, long position, ByteString key);
+    }
+
+    /**
+     * @param key the key.
+     * @return the value pair mapped to by key, or null if key is not in the store.
+     */
+    ValuePair get(ByteString key);
+
+    /**
+     * Atomically replace the value pair mapped to by key.
+     * @param key the key.
+     * @param remapping given the current value pair (null if none) returns the value pair
+     *  to store, returning the current value pair leaves the store unchanged and returning
+     *  null removes the key.
+     * @return the value pair mapped to by key after the call.
+     * @throws OutOfMemoryError if there is no more space to put values into the store.
+     */
+    ValuePair compute(ByteString key, UnaryOperator<ValuePair> remapping);
+
+    /**
+     * Pass every key and value pair to the consumer without copying the key set first. Entries
+     * may be changed while this is running, including by the consumer, and changes may or may
+     * not be seen.
+     */
+    void forEach(BiConsumer<ByteString, ValuePair> consumer);
+
+    /**
+     * Pass every entry whose key hashes into one of the ranges to the visitor, along with the
+     * index of its range and its position on the ring, with the same consistency as forEach.
+     * Engines that keep the ring position of each entry compare it against the ranges instead of
+     * hashing keys, and engines that are partitioned by virtual node only visit the partitions of
+     * the ranges. The default hashes every key in the store.
+     * @param ranges ranges of the hash ring.
+     * @param visitor receives each key, its value pair and the index of its range.
+     */
+    default void forEachInRanges(List<TokenRange> ranges, RangeVisitor visitor) {
+        HashEntity hashEntity = HashEntity.getInstance();
+        forEach((key, pair) -> {
+            long position = hashEntity.hash(key);
+            int rangeIndex = TokenRange.indexOf(ranges, position);
+            if (rangeIndex >= 0) {
+                visitor.visit(rangeIndex, position, key, pair);
+            }
+        });
+    }
+
+    /**
+     * Like forEachInRanges, but only passes the keys. Engines that can walk their keys without
+     * reading the entries do so. The default reads the entries through forEachInRanges.
+     * @param ranges ranges of the hash ring.
+     * @param visitor receives each key, the index of its range and its position.
+     */
+    default void forEachKeyInRanges(List<TokenRange> ranges, RangeKeyVisitor visitor) {
+        forEachInRanges(ranges, (rangeIndex, position, key, pair) -> visitor.visit(rangeIndex, position, key));
+    }
+
+    /**
+     * Called with the tokens of the virtual nodes on the ring whenever the ring changes, so engines
+     * that are partitioned by virtual node can split and merge their partitions.
+     * @param tokens the tokens in ascending order.
+     */
+    default void setTokens(long[] tokens) {
+    }
+
+    /**
+     * Fail fast before a put that would not fit, so the put is rejected before anything is logged.
+     * @throws OutOfMemoryError if there is no space for the entry.
+     */
+    default void checkCapacity(ByteString key, ByteString value) {
+    }
+
+    /**
+     * @return the number of bytes taken up by the entries.
+     */
+    long getSizeBytes();
+}
@@ -0,0 +1,139 @@
+package com.dkvstore.server.storage;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+/**
+ * A content addressed pool of values, so that equal values are kept once no matter how many keys
+ * map to them. A value is interned under its SHA-256 digest with a reference count, entries then
+ * store the digest in place of the value, and the value is dropped once no entry refers to it.
+ *
+ * The digest is strong enough that equal digests are taken to mean equal values, but interning
+ * still compares the bytes and refuses to pool a value whose digest is taken by another value.
+ */
+public class ValuePool {
+    public static final int SIZE_DIGEST = 32;
+    // A map node, the digest and value objects and the reference count of each pooled value.
+    private static final int SIZE_OVERHEAD = 128;
+
+    private static final class PooledValue {
+        final ByteString value;
+        int refCount;
+
+        PooledValue(ByteString value) {
+            this.value = value;
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> mDigest = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Map<ByteString, PooledValue> mValues = new ConcurrentHashMap<>();
+    // Bytes of the distinct values in the pool.
+    private final LongAdder mUniqueBytes = new LongAdder();
+    // Bytes of all references to values in the pool, what they would take up without the pool.
+    private final LongAdder mReferencedBytes = new LongAdder();
+
+    /**
+     * @param value a value.
+     * @return the digest the value is pooled under.
+     */
+    public static ByteString digest(ByteString value) {
+        MessageDigest digest = mDigest.get();
+        digest.update(value.asReadOnlyByteBuffer());
+        // The array is never shared, so it can be wrapped without another copy.
+        return UnsafeByteOperations.unsafeWrap(digest.digest());
+    }
+
+    /**
+     * @param digest the digest of a value.
+     * @return true if the value is in the pool, so pooling it again takes no space for the value.
+     */
+    public boolean contains(ByteString digest) {
+        return mValues.containsKey(digest);
+    }
+
+    /**
+     * Add a reference to value, adding the value to the pool if it is not in it yet.
+     * @param digest the digest of value.
+     * @param value the value.
+     * @return true if the value was pooled, false if its digest is taken by another value.
+     */
+    public boolean acquire(ByteString digest, ByteString value) {
+        boolean[] acquired = new boolean[1];
+        mValues.compute(digest, (d, pooled) -> {
+            if (pooled == null) {
+                // Copy the value, it may be a view of a request buffer that is reused.
+                pooled = new PooledValue(ByteString.copyFrom(value.asReadOnlyByteBuffer()));
+                mUniqueBytes.add(value.size());
+            } else if (!pooled.value.equals(value)) {
+                return pooled;
+            }
+            pooled.refCount++;
+            mReferencedBytes.add(value.size());
+            acquired[0] = true;
+            return pooled;
+        });
+        return acquired[0];
+    }
+
+    /**
+     * Drop a reference to the value pooled under digest, the value is removed from the pool
+     * once it has no references left.
+     * @param digest the digest of a pooled value.
+     */
+    public void release(ByteString digest) {
+        mValues.computeIfPresent(digest, (d, pooled) -> {
+            mReferencedBytes.add(-pooled.value.size());
+            if (--pooled.refCount > 0) {
+                return pooled;
+            }
+            mUniqueBytes.add(-pooled.value.size());
+            return null;
+        });
+    }
+
+    /**
+     * @param digest the digest of a value.
+     * @return the value pooled under digest, or null if it is not in the pool, such as when the
+     *  last reference to it was released since the digest was read.
+     */
+    public ByteString get(ByteString digest) {
+        PooledValue pooled = mValues.get(digest);
+        return pooled == null ? null : pooled.value;
+    }
+
+    /**
+     * @return the number of bytes taken up by the pool, each distinct value is counted once.
+     */
+    public long getSizeBytes() {
+        return mUniqueBytes.sum() + (long) mValues.size() * SIZE_OVERHEAD;
+    }
+
+    /**
+     * @return the number of bytes of the distinct values in the pool.
+     */
+    public long getUniqueBytes() {
+        return mUniqueBytes.sum();
+    }
+
+    /**
+     * @return the number of bytes the pooled values would take up if every reference had its
+     *  own copy.
+     */
+    public long getReferencedBytes() {
+        return mReferencedBytes.sum();
+    }
+}
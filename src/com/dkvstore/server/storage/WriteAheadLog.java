@@ -0,0 +1,426 @@
+package com.dkvstore.server.storage;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.dkvstore.Util;
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.google.protobuf.ByteString;
+
+/**
+ * Append-only log of the mutations applied to the key value store, used to rebuild the
+ * store after a restart. Records are appended to an in-memory buffer (so appending is cheap
+ * enough to do while holding a key's lock) and written out by group commit: the first writer
+ * to commit writes out everything appended so far, writers arriving while it is busy find
+ * their records already written when they get their turn.
+ *
+ * The log is split into generations, stored in files named [log file].[generation]. A new
+ * generation is started when a checkpoint is taken, so generations the checkpoint covers can
+ * be deleted.
+ *
+ * If writing or forcing the log fails, the records that were not written are gone from the buffer
+ * and a record may be torn, so the log fails: later commits throw instead of writing records that
+ * replay would never reach or that would count as written with earlier ones missing.
+ *
+ * Record format: [body length: 4 bytes][crc32 of body: 4 bytes][body]
+ * Body format: [type: 1 byte][key length: 1 byte][key][entry (PUT only), see EntryFormat]
+ */
+public class WriteAheadLog {
+    public static enum SyncMode {
+        // Force to disk before acknowledging each write, concurrent writes share one force.
+        Always,
+        // Force to disk periodically, up to one interval of acknowledged writes can be lost on power failure.
+        Interval,
+        // Never force, the OS decides when written data reaches the disk.
+        OsManaged
+    }
+
+    public interface ReplayListener {
+        void onPut(ByteString key, ValuePair pair);
+        void onRemove(ByteString key);
+    }
+
+    public static int INITIAL_BUFFER_SIZE = 1024 * 1024; // in bytes
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_REMOVE = 2;
+    private static final int SIZE_RECORD_HEADER = 8;
+
+    private final File mFile;
+    private final SyncMode mSyncMode;
+    private final CRC32 mCrc = new CRC32();
+    private ScheduledFuture<?> mSyncTask;
+
+    // Guarded by mAppendLock.
+    private final Object mAppendLock = new Object();
+    private ByteBuffer mActiveBuffer;
+    private long mAppendedLsn;
+
+    // Guarded by mWriteLock.
+    private final Object mWriteLock = new Object();
+    private FileChannel mChannel;
+    private long mGeneration;
+    private ByteBuffer mSpareBuffer;
+    private volatile long mWrittenLsn;
+    private volatile long mSyncedLsn;
+    // Set once writing to the log failed, nothing is written after that.
+    private volatile IOException mFailure;
+
+    private WriteAheadLog(File file, long generation, FileChannel channel, SyncMode syncMode) throws IOException {
+        mFile = file;
+        mGeneration = generation;
+        mChannel = channel;
+        mSyncMode = syncMode;
+        mActiveBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        mSpareBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        mAppendedLsn = channel.position();
+        mWrittenLsn = mAppendedLsn;
+        mSyncedLsn = mAppendedLsn;
+    }
+
+    /**
+     * Replay the log generations starting at fromGeneration, then open the last one for appending.
+     * @param file the log file, generations are stored in files with this name suffixed by the generation.
+     * @param fromGeneration the first generation to replay, older generations are ignored.
+     * @param syncMode when to force written records to disk.
+     * @param syncIntervalMs the force interval if syncMode is Interval.
+     * @param listener receives each record in the log in order.
+     * @return the opened log.
+     * @throws IOException if the log cannot be read or opened.
+     */
+    public static WriteAheadLog open(File file, long fromGeneration, SyncMode syncMode, int syncIntervalMs,
+                                     ReplayListener listener) throws IOException {
+        long lastGeneration = fromGeneration;
+        for (long generation : getGenerations(file)) {
+            if (generation > lastGeneration) {
+                lastGeneration = generation;
+            }
+        }
+        FileChannel channel = null;
+        for (long generation = fromGeneration; generation <= lastGeneration; generation++) {
+            if (channel != null) {
+                channel.close();
+            }
+            channel = FileChannel.open(getGenerationFile(file, generation).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long validLength = replay(channel, listener);
+            if (validLength < channel.size()) {
+                System.err.println(String.format("[WARNING]: Write ahead log generation %d has a torn tail, truncating from %d to %d bytes",
+                        generation, channel.size(), validLength));
+                channel.truncate(validLength);
+            }
+            channel.position(validLength);
+        }
+
+        WriteAheadLog log = new WriteAheadLog(file, lastGeneration, channel, syncMode);
+        if (syncMode == SyncMode.Interval) {
+            log.mSyncTask = Util.scheduler.scheduleAtFixedRate(log.new SyncTask(), syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        return log;
+    }
+
+    /**
+     * Write out and force the current generation and start appending to a new one.
+     * @return the generation that was current before the roll. Records appended to it may
+     *  belong to writes that are still being applied to the store, so it has to be replayed
+     *  along with the new generation.
+     * @throws IOException if the current generation cannot be written or the new one cannot be created.
+     */
+    public long roll() throws IOException {
+        synchronized(mWriteLock) {
+            checkFailure();
+            FileChannel newChannel = FileChannel.open(getGenerationFile(mFile, mGeneration + 1).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ByteBuffer toWrite;
+            long writtenLsn;
+            synchronized(mAppendLock) {
+                toWrite = mActiveBuffer;
+                mActiveBuffer = mSpareBuffer;
+                writtenLsn = mAppendedLsn;
+            }
+            toWrite.flip();
+            write(toWrite);
+            toWrite.clear();
+            mSpareBuffer = toWrite;
+            force();
+            mChannel.close();
+            mChannel = newChannel;
+            mWrittenLsn = writtenLsn;
+            mSyncedLsn = writtenLsn;
+            return mGeneration++;
+        }
+    }
+
+    /**
+     * Delete the generations that are older than the given one.
+     * @param generation the oldest generation to keep.
+     */
+    public void deleteGenerationsBefore(long generation) {
+        for (long oldGeneration : getGenerations(mFile)) {
+            if (oldGeneration < generation) {
+                File oldFile = getGenerationFile(mFile, oldGeneration);
+                if (!oldFile.delete()) {
+                    System.err.println("[WARNING]: Unable to delete write ahead log file: " + oldFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * Append a PUT record, the record is not written until commit is called.
+     * @return the log sequence number to pass to commit.
+     */
+    public long appendPut(ByteString key, ValuePair pair) {
+        return append(TYPE_PUT, key, pair);
+    }
+
+    /**
+     * Append a REMOVE record, the record is not written until commit is called.
+     * @return the log sequence number to pass to commit.
+     */
+    public long appendRemove(ByteString key) {
+        return append(TYPE_REMOVE, key, null);
+    }
+
+    /**
+     * Write out all records up to lsn, and force them to disk if the sync mode requires it.
+     * @param lsn a log sequence number returned by one of the append methods.
+     * @throws UncheckedIOException if writing to the log fails, or failed before.
+     */
+    public void commit(long lsn) {
+        try {
+            flush(lsn, mSyncMode == SyncMode.Always);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void close() throws IOException {
+        if (mSyncTask != null) {
+            mSyncTask.cancel(false);
+        }
+        long lsn;
+        synchronized(mAppendLock) {
+            lsn = mAppendedLsn;
+        }
+        try {
+            flush(lsn, mSyncMode != SyncMode.OsManaged);
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private long append(byte type, ByteString key, ValuePair pair) {
+        int bodySize = 2 + key.size() + (pair == null ? 0 : EntryFormat.getSize(pair));
+        synchronized(mAppendLock) {
+            ByteBuffer buf = mActiveBuffer;
+            if (buf.remaining() < SIZE_RECORD_HEADER + bodySize) {
+                // Grow instead of writing out here, writing happens in commit without this lock.
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + SIZE_RECORD_HEADER + bodySize));
+                buf.flip();
+                grown.put(buf);
+                mActiveBuffer = buf = grown;
+            }
+            int start = buf.position();
+            buf.putInt(bodySize);
+            buf.putInt(0); // crc placeholder
+            buf.put(type);
+            buf.put((byte) key.size());
+            key.copyTo(buf);
+            if (pair != null) {
+                EntryFormat.write(buf, pair);
+            }
+            mCrc.reset();
+            mCrc.update(buf.array(), start + SIZE_RECORD_HEADER, bodySize);
+            buf.putInt(start + 4, (int) mCrc.getValue());
+            mAppendedLsn += SIZE_RECORD_HEADER + bodySize;
+            return mAppendedLsn;
+        }
+    }
+
+    private static File getGenerationFile(File file, long generation) {
+        return new File(file.getPath() + "." + generation);
+    }
+
+    private static List<Long> getGenerations(File file) {
+        List<Long> generations = new ArrayList<>();
+        File dir = file.getAbsoluteFile().getParentFile();
+        String prefix = file.getName() + ".";
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(prefix)) {
+                    try {
+                        generations.add(Long.parseLong(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // Not a log generation.
+                    }
+                }
+            }
+        }
+        return generations;
+    }
+
+    private void flush(long lsn, boolean force) throws IOException {
+        if (mWrittenLsn >= lsn && (!force || mSyncedLsn >= lsn)) {
+            return;
+        }
+        synchronized(mWriteLock) {
+            checkFailure();
+            // Another writer might have written out our records while we waited.
+            if (mWrittenLsn < lsn) {
+                ByteBuffer toWrite;
+                long writtenLsn;
+                synchronized(mAppendLock) {
+                    toWrite = mActiveBuffer;
+                    mActiveBuffer = mSpareBuffer;
+                    writtenLsn = mAppendedLsn;
+                }
+                toWrite.flip();
+                write(toWrite);
+                toWrite.clear();
+                mSpareBuffer = toWrite;
+                mWrittenLsn = writtenLsn;
+            }
+            if (force && mSyncedLsn < lsn) {
+                long syncedLsn = mWrittenLsn;
+                force();
+                mSyncedLsn = syncedLsn;
+            }
+        }
+    }
+
+    /**
+     * Write out buf, failing the log if that fails. Must hold mWriteLock.
+     */
+    private void write(ByteBuffer buf) throws IOException {
+        long start = -1;
+        try {
+            start = mChannel.position();
+            while (buf.hasRemaining()) {
+                mChannel.write(buf);
+            }
+        } catch (IOException e) {
+            mFailure = e;
+            System.err.println("[ERROR]: Write ahead log write failed, no further writes are logged: " + e);
+            try {
+                if (start >= 0) {
+                    // Drop a torn record, so the records before it replay cleanly.
+                    mChannel.truncate(start);
+                }
+            } catch (IOException truncateError) {
+                // Replay stops at the torn record all the same.
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Force written records to disk, failing the log if that fails. Must hold mWriteLock.
+     */
+    private void force() throws IOException {
+        try {
+            mChannel.force(false);
+        } catch (IOException e) {
+            // Which of the written records reached the disk is unknown.
+            mFailure = e;
+            System.err.println("[ERROR]: Write ahead log force failed, no further writes are logged: " + e);
+            throw e;
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = mFailure;
+        if (failure != null) {
+            throw new IOException("Write ahead log failed earlier", failure);
+        }
+    }
+
+    private class SyncTask implements Runnable {
+        @Override
+        public void run() {
+            if (mFailure != null) {
+                return;
+            }
+            try {
+                long lsn;
+                synchronized(mAppendLock) {
+                    lsn = mAppendedLsn;
+                }
+                flush(lsn, true);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Read records from the start of the channel until the end or the first incomplete or
+     * corrupted record.
+     * @return the length of the valid prefix of the log.
+     */
+    private static long replay(FileChannel channel, ReplayListener listener) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(SIZE_RECORD_HEADER);
+        CRC32 crc = new CRC32();
+        long position = 0;
+        long numRecords = 0;
+        try {
+            while (true) {
+                header.clear();
+                readFully(channel, header, position);
+                header.flip();
+                int bodySize = header.getInt();
+                int checksum = header.getInt();
+                if (bodySize < 2 || bodySize > 2 + 0xff + OffHeapStore.MAX_ENTRY_SIZE) {
+                    break;
+                }
+                ByteBuffer body = ByteBuffer.allocate(bodySize);
+                readFully(channel, body, position + SIZE_RECORD_HEADER);
+                crc.reset();
+                crc.update(body.array(), 0, bodySize);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                body.flip();
+                byte type = body.get();
+                byte[] keyBytes = new byte[body.get() & 0xff];
+                body.get(keyBytes);
+                ByteString key = ByteString.copyFrom(keyBytes);
+                if (type == TYPE_PUT) {
+                    listener.onPut(key, EntryFormat.read(body));
+                }
+                else if (type == TYPE_REMOVE) {
+                    listener.onRemove(key);
+                }
+                else {
+                    break;
+                }
+                position += SIZE_RECORD_HEADER + bodySize;
+                numRecords++;
+            }
+        } catch (EOFException e) {
+            // Reached end of log, possibly in the middle of a record.
+        }
+        System.out.println(String.format("[INFO]: Replayed %d write ahead log records", numRecords));
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int numRead = channel.read(buf, position);
+            if (numRead < 0) {
+                throw new EOFException();
+            }
+            position += numRead;
+        }
+    }
+}
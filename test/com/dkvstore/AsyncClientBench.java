@@ -0,0 +1,63 @@
+package com.dkvstore;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.dkvstore.client.AsyncKVClient;
+import com.google.protobuf.ByteString;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueResponse.KVResponse;
+
+/**
+ * Measures the GET throughput of one AsyncKVClient against a running node, with one request
+ * outstanding at a time, which is what a blocking client does, and with more and more requests
+ * outstanding at once. The keys are put first, so every GET finds its key.
+ *
+ * Usage: AsyncClientBench [hostname:port] [number of requests] [most outstanding requests]
+ */
+public class AsyncClientBench {
+    private static final int NUM_KEYS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        String[] hostAndPort = (args.length > 0 ? args[0] : "127.0.0.1:50111").split(":");
+        int numRequests = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int maxOutstanding = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+        InetSocketAddress node = new InetSocketAddress(InetAddress.getByName(hostAndPort[0]), Integer.parseInt(hostAndPort[1]));
+        AsyncKVClient client = new AsyncKVClient();
+
+        ByteString value = ByteString.copyFrom(new byte[100]);
+        CompletableFuture<?>[] puts = new CompletableFuture<?>[NUM_KEYS];
+        for (int i = 0; i < NUM_KEYS; i++) {
+            puts[i] = client.put(node, getKey(i), value, i);
+        }
+        CompletableFuture.allOf(puts).join();
+        System.out.println(String.format("[INFO]: %d GETs of %d keys on %s", numRequests, NUM_KEYS, node));
+
+        for (int outstanding = 1; outstanding <= maxOutstanding; outstanding *= 4) {
+            Semaphore window = new Semaphore(outstanding);
+            AtomicInteger failures = new AtomicInteger();
+            long startTime = System.nanoTime();
+            for (int i = 0; i < numRequests; i++) {
+                window.acquire();
+                client.get(node, getKey(i % NUM_KEYS)).whenComplete((KVResponse response, Throwable e) -> {
+                    if (e != null || response.getErrCode() != Protocol.ERR_SUCCESS) {
+                        failures.incrementAndGet();
+                    }
+                    window.release();
+                });
+            }
+            window.acquire(outstanding);
+            long nanos = System.nanoTime() - startTime;
+            System.out.println(String.format("%4d outstanding: %7.0f ops/sec, %d failed", outstanding,
+                    numRequests * 1e9 / nanos, failures.get()));
+        }
+        client.close();
+    }
+
+    private static ByteString getKey(int i) {
+        return ByteString.copyFromUtf8("bench" + i);
+    }
+}
@@ -0,0 +1,129 @@
+package com.dkvstore;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import com.dkvstore.server.cache.CachePolicy;
+import com.dkvstore.server.cache.LruPolicy;
+import com.dkvstore.server.cache.WTinyLfuPolicy;
+import com.google.protobuf.ByteString;
+
+/**
+ * Compares the hit ratio of the W-TinyLFU and LRU cache policies on zipfian traces, with and
+ * without scans of keys that are used once mixed in. Every miss is followed by a write of the
+ * key, as a client of a cache would do, and every entry has the same weight.
+ *
+ * Usage: CachePolicyBench [number of keys] [number of accesses] [zipf exponent]
+ */
+public class CachePolicyBench {
+    private static final double[] CACHE_SIZES = {0.001, 0.01, 0.05, 0.1}; // As a fraction of the keys.
+
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int numAccesses = args.length > 1 ? Integer.parseInt(args[1]) : 5000000;
+        double exponent = args.length > 2 ? Double.parseDouble(args[2]) : 0.99;
+
+        ByteString[] keys = new ByteString[numKeys];
+        byte[] keyBytes = new byte[8];
+        for (int i = 0; i < numKeys; i++) {
+            Util.longToBytes(i, keyBytes, 0);
+            keys[i] = ByteString.copyFrom(keyBytes);
+        }
+        System.out.println(String.format("[INFO]: %d keys, %d accesses, zipf exponent %.2f", numKeys, numAccesses, exponent));
+
+        for (boolean withScans : new boolean[] {false, true}) {
+            int[] trace = generateTrace(numKeys, numAccesses, exponent, withScans);
+            System.out.println(withScans ? "zipfian with scans:" : "zipfian:");
+            for (double cacheSize : CACHE_SIZES) {
+                long maxWeight = Math.max(1, (long) (numKeys * cacheSize));
+                double lru = run(new LruPolicy(maxWeight), keys, trace);
+                double tinyLfu = run(new WTinyLfuPolicy(maxWeight), keys, trace);
+                System.out.println(String.format("  cache size %6d: LRU hit ratio %.4f, W-TinyLFU hit ratio %.4f",
+                        maxWeight, lru, tinyLfu));
+            }
+        }
+    }
+
+    private static double run(CachePolicy policy, ByteString[] keys, int[] trace) {
+        Set<ByteString> cached = new HashSet<>();
+        long hits = 0;
+        for (int index : trace) {
+            ByteString key = keys[index];
+            boolean hit = cached.contains(key);
+            policy.recordRead(key, hit);
+            if (hit) {
+                hits++;
+            } else {
+                cached.add(key);
+                policy.recordWrite(key, 1, cached::remove);
+            }
+        }
+        return (double) hits / trace.length;
+    }
+
+    /**
+     * @param withScans if true, every 1000 accesses are followed by a scan of 200 keys that
+     *  are not used again.
+     */
+    private static int[] generateTrace(int numKeys, int numAccesses, double exponent, boolean withScans) {
+        Random rand = new Random(42);
+        ZipfGenerator zipf = new ZipfGenerator(numKeys, exponent, rand);
+        int[] trace = new int[numAccesses];
+        int scanKey = 0;
+        for (int i = 0; i < numAccesses; i++) {
+            if (withScans && i % 1200 >= 1000) {
+                // Scanned keys are taken from the least popular end of the key space.
+                trace[i] = numKeys - 1 - (scanKey++ % (numKeys / 2));
+            } else {
+                trace[i] = zipf.next();
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * Draws ranks from a zipfian distribution with Gray et al's method, as used by YCSB,
+     * and scatters the ranks over the key space so popular keys are not adjacent.
+     */
+    private static class ZipfGenerator {
+        private final int mNumItems;
+        private final double mTheta;
+        private final double mAlpha;
+        private final double mZetaN;
+        private final double mEta;
+        private final Random mRand;
+
+        ZipfGenerator(int numItems, double theta, Random rand) {
+            mNumItems = numItems;
+            mTheta = theta;
+            mRand = rand;
+            double zeta2 = zeta(2, theta);
+            mZetaN = zeta(numItems, theta);
+            mAlpha = 1.0 / (1.0 - theta);
+            mEta = (1 - Math.pow(2.0 / numItems, 1 - theta)) / (1 - zeta2 / mZetaN);
+        }
+
+        int next() {
+            double u = mRand.nextDouble();
+            double uz = u * mZetaN;
+            long rank;
+            if (uz < 1.0) {
+                rank = 0;
+            } else if (uz < 1.0 + Math.pow(0.5, mTheta)) {
+                rank = 1;
+            } else {
+                rank = (long) (mNumItems * Math.pow(mEta * u - mEta + 1, mAlpha));
+            }
+            return (int) (Math.floorMod(rank * 0x9e3779b97f4a7c15L, (long) mNumItems));
+        }
+
+        private static double zeta(long n, double theta) {
+            double sum = 0;
+            for (long i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.dkvstore;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.dkvstore.server.KeyValueStore;
+import com.dkvstore.server.distribution.DirectRoute;
+import com.dkvstore.server.distribution.NodeTable;
+import com.google.protobuf.ByteString;
+
+/**
+ * Measures client PUT throughput of the key value store with an increasing number of
+ * writer threads, to check that the write path scales with the thread pool size. Run it
+ * once per storage engine to compare the engines under the same workload.
+ *
+ * Usage: KeyValueStoreContentionBench [seconds per run] [number of keys] [value size] [map|offheap|lsm]
+ */
+public class KeyValueStoreContentionBench {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16};
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int numKeys = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        KeyValueStore.STORAGE_ENGINE = args.length > 3 ? args[3] : KeyValueStore.ENGINE_MAP;
+
+        // The store needs the self node id for client PUTs.
+        NodeTable.makeInstance(true);
+        DirectRoute.getInstance();
+        KeyValueStore.MAX_SIZE_BYTES = Integer.MAX_VALUE;
+        KeyValueStore kvStore = KeyValueStore.getInstance();
+
+        ByteString[] keys = new ByteString[numKeys];
+        byte[] keyBytes = new byte[8];
+        for (int i = 0; i < numKeys; i++) {
+            Util.longToBytes(i, keyBytes, 0);
+            keys[i] = ByteString.copyFrom(keyBytes);
+        }
+        ByteString value = ByteString.copyFrom(new byte[valueSize]);
+
+        System.out.println(String.format("[INFO]: %s engine, %d keys, %d byte values, %d seconds per run",
+                KeyValueStore.STORAGE_ENGINE, numKeys, valueSize, seconds));
+        for (int numThreads : THREAD_COUNTS) {
+            kvStore.removeAll();
+            long opsPerSec = run(kvStore, keys, value, numThreads, seconds);
+            System.out.println(String.format("threads: %2d, PUT ops/sec: %d", numThreads, opsPerSec));
+        }
+        System.exit(0);
+    }
+
+    private static long run(KeyValueStore kvStore, ByteString[] keys, ByteString value,
+                            int numThreads, int seconds) throws InterruptedException {
+        LongAdder ops = new LongAdder();
+        CountDownLatch ready = new CountDownLatch(numThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(numThreads);
+        // Set once every thread is started, the start latch publishes it to the threads.
+        long[] deadline = new long[1];
+
+        for (int i = 0; i < numThreads; i++) {
+            new Thread(() -> {
+                try {
+                    ready.countDown();
+                    start.await();
+                    ThreadLocalRandom rand = ThreadLocalRandom.current();
+                    long count = 0;
+                    while ((count & 0xff) != 0 || System.nanoTime() < deadline[0]) {
+                        kvStore.put(keys[rand.nextInt(keys.length)], value, 0, null);
+                        count++;
+                    }
+                    ops.add(count);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+
+        // Thread startup is not counted in the measured time.
+        ready.await();
+        long startTime = System.nanoTime();
+        deadline[0] = startTime + TimeUnit.SECONDS.toNanos(seconds);
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+        return ops.sum() * TimeUnit.SECONDS.toNanos(1) / elapsed;
+    }
+}
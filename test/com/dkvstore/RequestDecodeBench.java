@@ -0,0 +1,147 @@
+package com.dkvstore;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import com.dkvstore.server.RequestDecoder;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+
+import ca.NetSysLab.ProtocolBuffers.KeyValueRequest;
+import ca.NetSysLab.ProtocolBuffers.Message;
+
+/**
+ * Measures the bytes allocated and the time taken to decode a GET request datagram, both the way
+ * the receive path used to, copying the receive buffer and parsing the envelope and the request
+ * into new objects, and with RequestDecoder, which decodes in place from the receive buffer into
+ * a reused builder. Allocations are counted with the JVM's per thread allocation counter, so the
+ * numbers are exact once the JIT has warmed up. Before measuring, checks that a request with every
+ * field of KeyValueRequest.proto set decodes to the request that was sent.
+ *
+ * Usage: RequestDecodeBench [number of decodes] [key size]
+ */
+public class RequestDecodeBench {
+    private static final int NUM_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int numDecodes = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int keySize = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        checkAllFields();
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        byte[] datagram = createGetRequest(keySize);
+        ByteBuffer receiveBuffer = ByteBuffer.wrap(NetworkMessage.getMaxDataBuffer());
+        receiveBuffer.put(datagram);
+        receiveBuffer.flip();
+        System.out.println(String.format("[INFO]: %d decodes of a %d byte GET datagram, %d byte key", numDecodes,
+                datagram.length, keySize));
+
+        NetworkMessage message = new NetworkMessage();
+        RequestDecoder decoder = RequestDecoder.get();
+        long checksum = 0;
+        for (int round = 0; round < NUM_ROUNDS; round++) {
+            long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+            long startTime = System.nanoTime();
+            for (int i = 0; i < numDecodes; i++) {
+                // What ReadEventHandler and KeyValueRequestTask used to do per request.
+                receiveBuffer.rewind();
+                byte[] buffer = new byte[receiveBuffer.limit()];
+                receiveBuffer.get(buffer);
+                NetworkMessage oldMessage = NetworkMessage.contructMessage(buffer);
+                KeyValueRequest.KVRequest.Builder builder = KeyValueRequest.KVRequest.newBuilder()
+                        .mergeFrom(oldMessage.getPayload());
+                checksum += builder.getCommand() + builder.getKey().byteAt(0) + oldMessage.getIdString().byteAt(0);
+            }
+            long copyNanos = System.nanoTime() - startTime;
+            long copyBytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+            startBytes = threadBean.getThreadAllocatedBytes(threadId);
+            startTime = System.nanoTime();
+            for (int i = 0; i < numDecodes; i++) {
+                receiveBuffer.rewind();
+                decoder.decode(receiveBuffer, message);
+                KeyValueRequest.KVRequest.Builder builder = decoder.getRequest();
+                checksum += builder.getCommand() + builder.getKey().byteAt(0) + message.getIdString().byteAt(0);
+            }
+            long inPlaceNanos = System.nanoTime() - startTime;
+            long inPlaceBytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+
+            System.out.println(String.format("round %d: copying %5.0f bytes %4d ns, in place %5.0f bytes %4d ns per request",
+                    round, (double) copyBytes / numDecodes, copyNanos / numDecodes,
+                    (double) inPlaceBytes / numDecodes, inPlaceNanos / numDecodes));
+        }
+        // Keep the decoded fields live so the loops are not optimized away.
+        System.out.println(checksum == 0 ? "empty" : "");
+    }
+
+    /**
+     * Decode a request with every declared field set, repeated ones twice, and fail unless it
+     * comes out as it went in.
+     */
+    private static void checkAllFields() throws Exception {
+        KeyValueRequest.KVRequest.Builder request = KeyValueRequest.KVRequest.newBuilder();
+        for (FieldDescriptor field : KeyValueRequest.KVRequest.getDescriptor().getFields()) {
+            for (int i = 0; i < (field.isRepeated() ? 2 : 1); i++) {
+                Object value;
+                switch (field.getJavaType()) {
+                case INT:
+                    value = field.getNumber() + i;
+                    break;
+                case LONG:
+                    value = (long) field.getNumber() + i;
+                    break;
+                case BOOLEAN:
+                    value = true;
+                    break;
+                case STRING:
+                    value = field.getName();
+                    break;
+                case BYTE_STRING:
+                    value = ByteString.copyFromUtf8(field.getName());
+                    break;
+                case MESSAGE:
+                    value = KeyValueRequest.KVEntry.newBuilder().setKey(ByteString.copyFromUtf8(field.getName() + i)).build();
+                    break;
+                default:
+                    throw new IllegalStateException("No test value for " + field.getFullName());
+                }
+                if (field.isRepeated()) {
+                    request.addRepeatedField(field, value);
+                } else {
+                    request.setField(field, value);
+                }
+            }
+        }
+        ByteBuffer buf = ByteBuffer.wrap(createDatagram(request.build().toByteArray()));
+        RequestDecoder.get().decode(buf, new NetworkMessage());
+        if (!RequestDecoder.get().getRequest().build().equals(request.build())) {
+            throw new IllegalStateException("RequestDecoder lost fields: " + RequestDecoder.get().getRequest());
+        }
+    }
+
+    private static byte[] createGetRequest(int keySize) {
+        byte[] key = new byte[keySize];
+        key[0] = 1;
+        return createDatagram(KeyValueRequest.KVRequest.newBuilder()
+                .setCommand(Protocol.GET)
+                .setKey(ByteString.copyFrom(key))
+                .build()
+                .toByteArray());
+    }
+
+    private static byte[] createDatagram(byte[] payload) {
+        byte[] id = new byte[NetworkMessage.ID_SIZE];
+        id[0] = 1;
+        CRC32 crc = new CRC32();
+        crc.update(id);
+        crc.update(payload);
+        return Message.Msg.newBuilder()
+                .setMessageID(ByteString.copyFrom(id))
+                .setPayload(ByteString.copyFrom(payload))
+                .setCheckSum(crc.getValue())
+                .build()
+                .toByteArray();
+    }
+}
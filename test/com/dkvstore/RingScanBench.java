@@ -0,0 +1,98 @@
+package com.dkvstore;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.TokenRange;
+import com.dkvstore.server.distribution.VectorClock;
+import com.dkvstore.server.distribution.VirtualNode;
+import com.dkvstore.server.storage.MapStore;
+import com.google.protobuf.ByteString;
+
+/**
+ * Times the scans that migration and replication run over the map storage engine, both the way
+ * they used to classify keys, by hashing every key and looking up its virtual node on the ring,
+ * and with the range index the engine now passes along from the ring hash stored with each key.
+ * A scan of one node's ranges is what a migration to a joining node does, a scan of all ranges is
+ * what replicating a whole store does. Run it with a heap large enough for the keys, such as
+ * -Xmx2g for 5M keys.
+ *
+ * Usage: RingScanBench [number of keys] [number of nodes] [virtual nodes per node]
+ */
+public class RingScanBench {
+    private static final int NUM_RUNS = 5;
+
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        int numNodes = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int numVNodes = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        System.out.println(String.format("[INFO]: %d keys, %d nodes, %d virtual nodes per node", numKeys, numNodes, numVNodes));
+
+        HashEntity.setNumVNodes(numVNodes);
+        HashEntity hashEntity = HashEntity.getInstance();
+        MapStore store = new MapStore(Long.MAX_VALUE);
+        hashEntity.addRingListener(() -> store.setTokens(hashEntity.getTokens()));
+        List<Integer> nodeIds = new ArrayList<>();
+        for (int i = 0; i < numNodes; i++) {
+            nodeIds.add(hashEntity.addNode(ByteString.copyFromUtf8("node" + i)));
+        }
+
+        byte[] keyBytes = new byte[16];
+        ValuePair entry = new ValuePair(ByteString.copyFrom(new byte[16]), 0, VectorClock.create(0, 1));
+        for (int i = 0; i < numKeys; i++) {
+            Util.longToBytes(i, keyBytes, 0);
+            store.compute(ByteString.copyFrom(keyBytes), curEntry -> entry);
+        }
+
+        List<VirtualNode> oneNode = new ArrayList<>();
+        for (VirtualNode vnode : hashEntity.getVNodeMap().get(nodeIds.get(0))) {
+            oneNode.add(vnode);
+        }
+        List<VirtualNode> allNodes = new ArrayList<>();
+        for (VirtualNode vnode : hashEntity.getVNodes()) {
+            allNodes.add(vnode);
+        }
+        run("one node's ranges", store, hashEntity, oneNode);
+        run("all ranges", store, hashEntity, allNodes);
+    }
+
+    private static void run(String name, MapStore store, HashEntity hashEntity, List<VirtualNode> vnodes) {
+        List<TokenRange> ranges = new ArrayList<>();
+        for (VirtualNode vnode : vnodes) {
+            ranges.add(hashEntity.getTokenRange(vnode));
+        }
+        Set<VirtualNode> vnodeSet = new HashSet<>(vnodes);
+        long[] rehashCounts = new long[1];
+        long[] indexCounts = new long[1];
+        long rehashNanos = Long.MAX_VALUE;
+        long indexNanos = Long.MAX_VALUE;
+        for (int run = 0; run < NUM_RUNS; run++) {
+            rehashCounts[0] = 0;
+            long startTime = System.nanoTime();
+            store.forEachInRanges(ranges, (rangeIndex, position, key, pair) -> {
+                if (vnodeSet.contains(hashEntity.getKVNode(key))) {
+                    rehashCounts[0]++;
+                }
+            });
+            rehashNanos = Math.min(rehashNanos, System.nanoTime() - startTime);
+
+            indexCounts[0] = 0;
+            startTime = System.nanoTime();
+            store.forEachInRanges(ranges, (rangeIndex, position, key, pair) -> {
+                if (vnodes.get(rangeIndex) != null) {
+                    indexCounts[0]++;
+                }
+            });
+            indexNanos = Math.min(indexNanos, System.nanoTime() - startTime);
+        }
+        if (rehashCounts[0] != indexCounts[0]) {
+            throw new IllegalStateException(String.format("Scans disagree: %d and %d keys", rehashCounts[0], indexCounts[0]));
+        }
+        System.out.println(String.format("%-17s: %8d keys, hashing keys %6d ms, stored hashes %6d ms, %.1fx faster",
+                name, indexCounts[0], rehashNanos / 1000000, indexNanos / 1000000, (double) rehashNanos / indexNanos));
+    }
+}
@@ -0,0 +1,108 @@
+package com.dkvstore;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.dkvstore.server.KeyValueStore.ValuePair;
+import com.dkvstore.server.distribution.HashEntity;
+import com.dkvstore.server.distribution.VectorClock;
+import com.dkvstore.server.storage.ShortKeyMap;
+import com.google.protobuf.ByteString;
+
+/**
+ * Compares the heap used per entry by the ShortKeyMap of the map storage engine with a
+ * ConcurrentHashMap of ByteString keys to value pairs, which the engine used before, and the time
+ * a GET takes in each. Every entry has a distinct key, a one node vector clock and a value of the
+ * given size. Run it with a heap large enough for the ConcurrentHashMap, such as -Xmx4g for 10M keys.
+ *
+ * Usage: ShortKeyMapBench [number of keys] [key size, at least 8] [value size, at least 8]
+ */
+public class ShortKeyMapBench {
+    private static final int NUM_GETS = 2000000;
+
+    public static void main(String[] args) {
+        int numKeys = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+        int keySize = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int valueSize = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        HashEntity hashEntity = HashEntity.getInstance();
+        System.out.println(String.format("[INFO]: %d keys, %d byte keys, %d byte values", numKeys, keySize, valueSize));
+
+        long baseline = getUsedHeap();
+        Map<ByteString, ValuePair> map = new ConcurrentHashMap<>();
+        for (int i = 0; i < numKeys; i++) {
+            map.put(createKey(i, keySize), createEntry(i, valueSize));
+        }
+        long mapBytes = getUsedHeap() - baseline;
+        long mapGetNanos = timeGets(numKeys, keySize, key -> map.get(key));
+        report("ConcurrentHashMap", mapBytes, numKeys, keySize, valueSize, mapGetNanos);
+        map.clear();
+
+        baseline = getUsedHeap();
+        ShortKeyMap shortKeyMap = new ShortKeyMap();
+        for (int i = 0; i < numKeys; i++) {
+            ByteString key = createKey(i, keySize);
+            ValuePair entry = createEntry(i, valueSize);
+            shortKeyMap.compute(key, hashEntity.hash(key), curEntry -> entry);
+        }
+        long shortKeyMapBytes = getUsedHeap() - baseline;
+        // Includes hashing the key, which the map engine does for every GET anyway to find its partition.
+        long shortKeyMapGetNanos = timeGets(numKeys, keySize, key -> shortKeyMap.get(key, hashEntity.hash(key)));
+        report("ShortKeyMap", shortKeyMapBytes, numKeys, keySize, valueSize, shortKeyMapGetNanos);
+
+        double mapOverhead = (double) mapBytes / numKeys - keySize - valueSize;
+        double shortKeyMapOverhead = (double) shortKeyMapBytes / numKeys - keySize - valueSize;
+        System.out.println(String.format("Overhead per entry reduced %.2fx", mapOverhead / shortKeyMapOverhead));
+        // Keep both maps reachable until they are measured.
+        System.out.println(map.size() + shortKeyMap.size() > 0 ? "" : "empty");
+    }
+
+    private interface Getter {
+        ValuePair get(ByteString key);
+    }
+
+    private static long timeGets(int numKeys, int keySize, Getter getter) {
+        ByteString[] keys = new ByteString[1024];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = createKey(ThreadLocalRandom.current().nextInt(numKeys), keySize);
+        }
+        long found = 0;
+        long startTime = System.nanoTime();
+        for (int i = 0; i < NUM_GETS; i++) {
+            if (getter.get(keys[i & (keys.length - 1)]) != null) {
+                found++;
+            }
+        }
+        long nanos = (System.nanoTime() - startTime) / NUM_GETS;
+        if (found != NUM_GETS) {
+            throw new IllegalStateException("Missing keys: " + (NUM_GETS - found));
+        }
+        return nanos;
+    }
+
+    private static void report(String name, long bytes, int numKeys, int keySize, int valueSize, long getNanos) {
+        double perEntry = (double) bytes / numKeys;
+        System.out.println(String.format("%-17s: %6.1f bytes per entry, %6.1f bytes overhead, GET %d ns",
+                name, perEntry, perEntry - keySize - valueSize, getNanos));
+    }
+
+    private static ByteString createKey(int i, int keySize) {
+        byte[] keyBytes = new byte[keySize];
+        Util.longToBytes(i, keyBytes, 0);
+        return ByteString.copyFrom(keyBytes);
+    }
+
+    private static ValuePair createEntry(int i, int valueSize) {
+        byte[] valueBytes = new byte[valueSize];
+        Util.longToBytes(i, valueBytes, 0);
+        return new ValuePair(ByteString.copyFrom(valueBytes), 0, VectorClock.create(0, 1));
+    }
+
+    private static long getUsedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}